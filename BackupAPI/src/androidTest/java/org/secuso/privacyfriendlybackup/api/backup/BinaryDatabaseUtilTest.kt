@@ -0,0 +1,164 @@
+package org.secuso.privacyfriendlybackup.api.backup
+
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteOpenHelper
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+
+/**
+ * Instrumented tests for [BinaryDatabaseUtil].
+ * Uses in-memory databases, so the app's data is not touched.
+ */
+@RunWith(AndroidJUnit4::class)
+class BinaryDatabaseUtilTest {
+    private val appContext = InstrumentationRegistry.getInstrumentation().targetContext
+    private lateinit var sourceHelper: SupportSQLiteOpenHelper
+    private lateinit var targetHelper: SupportSQLiteOpenHelper
+
+    @Before
+    fun setUp() {
+        sourceHelper = createHelper(2) {
+            it.execSQL("CREATE TABLE stepcount (_id INTEGER PRIMARY KEY AUTOINCREMENT, stepcount INTEGER, walking_mode INTEGER, timestamp INTEGER)")
+            it.execSQL("CREATE TABLE walkingmodes (_id INTEGER PRIMARY KEY, name TEXT, steplength REAL, icon BLOB)")
+        }
+        targetHelper = createHelper(2) {}
+    }
+
+    @After
+    fun tearDown() {
+        sourceHelper.close()
+        targetHelper.close()
+    }
+
+    @Test
+    fun restoresValuesWithTheirTypes() {
+        val source = sourceHelper.writableDatabase
+        source.beginTransaction()
+        try {
+            val start = 1_600_000_000_000L
+            // more than one frame
+            for (i in 0 until BinaryDatabaseUtil.FRAME_SIZE + 10) {
+                source.execSQL(
+                    "INSERT INTO stepcount (stepcount, walking_mode, timestamp) VALUES (?, ?, ?)",
+                    arrayOf<Any>(i % 2000, i % 3, start + i * 1_800_000L)
+                )
+            }
+            source.execSQL("INSERT INTO walkingmodes VALUES (1, 'Walking', 0.75, X'0102')")
+            source.execSQL("INSERT INTO walkingmodes VALUES (2, NULL, 1, NULL)")
+            source.setTransactionSuccessful()
+        } finally {
+            source.endTransaction()
+        }
+
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { BinaryDatabaseUtil.writeDatabase(it, source) }
+
+        val target = targetHelper.writableDatabase
+        val input = DataInputStream(ByteArrayInputStream(bytes.toByteArray()))
+        assertEquals(2, BinaryDatabaseUtil.readVersion(input))
+        BinaryDatabaseUtil.readDatabaseContent(input, target)
+
+        val query = "SELECT _id, typeof(stepcount), stepcount, walking_mode, timestamp FROM stepcount ORDER BY _id"
+        assertEquals(rows(source, query), rows(target, query))
+        val modes = "SELECT _id, name, typeof(steplength), steplength, hex(icon) FROM walkingmodes ORDER BY _id"
+        assertEquals(rows(source, modes), rows(target, modes))
+        assertEquals(rows(source, "SELECT * FROM sqlite_sequence"), rows(target, "SELECT * FROM sqlite_sequence"))
+    }
+
+    @Test
+    fun deltaReplacesChangedRangeAndCutHead() {
+        val source = sourceHelper.writableDatabase
+        for (i in 0 until 100) {
+            insertStepCount(source, i, i * 10L)
+        }
+        source.execSQL("INSERT INTO walkingmodes VALUES (1, 'Walking', 0.75, NULL)")
+        val base = ByteArrayOutputStream()
+        DataOutputStream(base).use { BinaryDatabaseUtil.writeDatabase(it, source) }
+
+        // history before 200 was compacted, a row at 500 edited and new rows appended
+        source.execSQL("DELETE FROM stepcount WHERE timestamp < 200")
+        source.execSQL("UPDATE stepcount SET stepcount = 1000 WHERE timestamp = 500")
+        for (i in 100 until 120) {
+            insertStepCount(source, i, i * 10L)
+        }
+        source.execSQL("UPDATE walkingmodes SET name = 'Running'")
+        val delta = ByteArrayOutputStream()
+        DataOutputStream(delta).use {
+            BinaryDatabaseUtil.writeDatabaseDelta(it, source, listOf(BinaryDatabaseUtil.TableRange("stepcount", "timestamp", 500, 200)))
+        }
+        assertTrue(delta.size() < base.size())
+
+        val target = targetHelper.writableDatabase
+        val baseInput = DataInputStream(ByteArrayInputStream(base.toByteArray()))
+        assertEquals(2, BinaryDatabaseUtil.readVersion(baseInput))
+        BinaryDatabaseUtil.readDatabaseContent(baseInput, target)
+        BinaryDatabaseUtil.readDatabaseDelta(DataInputStream(ByteArrayInputStream(delta.toByteArray())), target)
+
+        val query = "SELECT * FROM stepcount ORDER BY timestamp"
+        assertEquals(rows(source, query), rows(target, query))
+        assertEquals(rows(source, "SELECT * FROM walkingmodes"), rows(target, "SELECT * FROM walkingmodes"))
+        assertEquals(rows(source, "SELECT * FROM sqlite_sequence"), rows(target, "SELECT * FROM sqlite_sequence"))
+    }
+
+    @Test
+    fun deltaOfChangesBeforeTheCutHead() {
+        val source = sourceHelper.writableDatabase
+        for (i in 0 until 100) {
+            insertStepCount(source, i, i * 10L)
+        }
+        val base = ByteArrayOutputStream()
+        DataOutputStream(base).use { BinaryDatabaseUtil.writeDatabase(it, source) }
+
+        // a row at 100 was edited, then history before 200 was compacted
+        source.execSQL("UPDATE stepcount SET stepcount = 1000 WHERE timestamp = 100")
+        source.execSQL("DELETE FROM stepcount WHERE timestamp < 200")
+        val range = BinaryDatabaseUtil.TableRange("stepcount", "timestamp", 100, 200)
+        assertEquals(200, range.start)
+        val delta = ByteArrayOutputStream()
+        DataOutputStream(delta).use { BinaryDatabaseUtil.writeDatabaseDelta(it, source, listOf(range)) }
+
+        val target = targetHelper.writableDatabase
+        val baseInput = DataInputStream(ByteArrayInputStream(base.toByteArray()))
+        BinaryDatabaseUtil.readVersion(baseInput)
+        BinaryDatabaseUtil.readDatabaseContent(baseInput, target)
+        BinaryDatabaseUtil.readDatabaseDelta(DataInputStream(ByteArrayInputStream(delta.toByteArray())), target)
+
+        val query = "SELECT * FROM stepcount ORDER BY timestamp"
+        assertEquals(rows(source, query), rows(target, query))
+    }
+
+    private fun insertStepCount(db: SupportSQLiteDatabase, steps: Int, timestamp: Long) {
+        db.execSQL("INSERT INTO stepcount (stepcount, walking_mode, timestamp) VALUES (?, 1, ?)", arrayOf<Any>(steps, timestamp))
+    }
+
+    private fun rows(db: SupportSQLiteDatabase, query: String): List<List<String?>> {
+        val rows = ArrayList<List<String?>>()
+        db.query(query).use {
+            while (it.moveToNext()) {
+                rows.add((0 until it.columnCount).map { column -> it.getString(column) })
+            }
+        }
+        return rows
+    }
+
+    private fun createHelper(version: Int, create: (SupportSQLiteDatabase) -> Unit): SupportSQLiteOpenHelper {
+        val config = SupportSQLiteOpenHelper.Configuration.builder(appContext)
+            .name(null)
+            .callback(object : SupportSQLiteOpenHelper.Callback(version) {
+                override fun onCreate(db: SupportSQLiteDatabase) = create(db)
+                override fun onUpgrade(db: SupportSQLiteDatabase, oldVersion: Int, newVersion: Int) {}
+            })
+            .build()
+        return FrameworkSQLiteOpenHelperFactory().create(config)
+    }
+}
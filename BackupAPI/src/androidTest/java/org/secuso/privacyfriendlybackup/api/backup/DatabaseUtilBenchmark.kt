@@ -0,0 +1,95 @@
+package org.secuso.privacyfriendlybackup.api.backup
+
+import android.util.JsonWriter
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteOpenHelper
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.OutputStreamWriter
+
+/**
+ * Benchmarks the JSON serialization of a table in [DatabaseUtil.writeTable] and the binary one in
+ * [BinaryDatabaseUtil.writeTable].
+ * The table resembles one year of 30 minute step count intervals.
+ *
+ * Run with `./gradlew :BackupAPI:connectedAndroidTest`. The results are written as JSON to the
+ * connected device and copied to build/outputs/connected_android_test_additional_output.
+ */
+@RunWith(AndroidJUnit4::class)
+class DatabaseUtilBenchmark {
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val appContext = InstrumentationRegistry.getInstrumentation().targetContext
+    private lateinit var helper: SupportSQLiteOpenHelper
+    private lateinit var db: SupportSQLiteDatabase
+
+    @Before
+    fun setUp() {
+        val config = SupportSQLiteOpenHelper.Configuration.builder(appContext)
+            .name(null)
+            .callback(object : SupportSQLiteOpenHelper.Callback(1) {
+                override fun onCreate(db: SupportSQLiteDatabase) {
+                    db.execSQL("CREATE TABLE stepcount (_id INTEGER PRIMARY KEY, stepcount INTEGER, walking_mode INTEGER, timestamp INTEGER)")
+                }
+
+                override fun onUpgrade(db: SupportSQLiteDatabase, oldVersion: Int, newVersion: Int) {}
+            })
+            .build()
+        helper = FrameworkSQLiteOpenHelperFactory().create(config)
+        db = helper.writableDatabase
+        db.beginTransaction()
+        try {
+            val start = 1_600_000_000_000L
+            for (i in 0 until ROWS) {
+                db.execSQL(
+                    "INSERT INTO stepcount (stepcount, walking_mode, timestamp) VALUES (?, ?, ?)",
+                    arrayOf<Any>(i % 2000, i % 3, start + i * 1_800_000L)
+                )
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    @After
+    fun tearDown() {
+        helper.close()
+    }
+
+    @Test
+    fun writeTable() {
+        benchmarkRule.measureRepeated {
+            val writer = JsonWriter(OutputStreamWriter(NullOutputStream))
+            DatabaseUtil.writeTable(writer, db, "stepcount")
+            writer.flush()
+        }
+    }
+
+    @Test
+    fun writeTableBinary() {
+        benchmarkRule.measureRepeated {
+            val output = BinaryFormat.openWriter(NullOutputStream)
+            BinaryDatabaseUtil.writeTable(output, db, "stepcount")
+            output.close()
+        }
+    }
+
+    private object NullOutputStream : java.io.OutputStream() {
+        override fun write(b: Int) {}
+        override fun write(b: ByteArray, off: Int, len: Int) {}
+    }
+
+    companion object {
+        private const val ROWS = 365 * 48
+    }
+}
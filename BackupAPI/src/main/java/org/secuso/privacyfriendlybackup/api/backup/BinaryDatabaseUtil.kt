@@ -0,0 +1,339 @@
+package org.secuso.privacyfriendlybackup.api.backup
+
+import android.database.Cursor
+import android.database.Cursor.*
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteStatement
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+
+/**
+ * Writes databases in the [BinaryFormat] and reads them back, the binary counterpart to
+ * [DatabaseUtil].
+ * <p>
+ * Tables are stored column by column in frames of up to [FRAME_SIZE] rows, so memory usage does not
+ * depend on the size of a table. Columns which only contain integers in a frame, e.g. ids,
+ * timestamps and step counts, are stored as zigzag varint of the difference to the previous row.
+ * Other columns store a type tag per value, so values are restored with their original type.
+ * <p>
+ * Besides whole databases, deltas can be written with [writeDatabaseDelta], which only contain the
+ * rows of large tables which changed since an earlier backup, see [TableRange].
+ *
+ * @see BinaryFormat
+ */
+object BinaryDatabaseUtil {
+
+    const val FRAME_SIZE = 4096
+
+    private const val COLUMN_INTEGER_DELTA = 0
+    private const val COLUMN_TAGGED = 1
+
+    private const val DELTA_REPLACE_TABLE = 0
+    private const val DELTA_REPLACE_RANGE = 1
+
+    private const val VALUE_NULL = 0
+    private const val VALUE_INTEGER = 1
+    private const val VALUE_FLOAT = 2
+    private const val VALUE_STRING = 3
+    private const val VALUE_BLOB = 4
+
+    @JvmStatic
+    fun writeDatabase(output: DataOutput, db: SupportSQLiteDatabase) {
+        BinaryFormat.writeVarLong(output, db.version.toLong())
+        writeDatabaseContent(output, db)
+    }
+
+    @JvmStatic
+    fun writeDatabaseContent(output: DataOutput, db: SupportSQLiteDatabase) {
+        // do not write android_metadata, as this table will automatically be created when restoring
+        val tables = DatabaseUtil.getTables(db).filter { it.first != "android_metadata" }
+        BinaryFormat.writeVarLong(output, tables.size.toLong())
+        for (table in tables) {
+            BinaryFormat.writeString(output, table.first)
+            output.writeBoolean(table.second != null)
+            table.second?.let { BinaryFormat.writeString(output, it) }
+            writeTable(output, db, table.first)
+        }
+    }
+
+    /**
+     * The rows of a table which may have changed since an earlier backup, all rows with a key not
+     * before [from]. Rows with a key before [before] were removed since, e.g. by compaction.
+     * Long.MIN_VALUE for [from] stands for all rows and for [before] for no removed rows.
+     */
+    class TableRange(val table: String, val keyColumn: String, val from: Long, val before: Long) {
+        /**
+         * The first key written to the delta. The reader replaces the rows from this key on and
+         * deletes the rows before [before], so both sides use the same range.
+         */
+        val start: Long
+            get() = maxOf(from, before)
+    }
+
+    /**
+     * Writes the changes of the database since an earlier backup of it. Tables with a range contain
+     * the rows of the range only, all other tables are written as a whole.
+     * Has to be applied by [readDatabaseDelta] to the database restored from the earlier backup.
+     */
+    @JvmStatic
+    fun writeDatabaseDelta(output: DataOutput, db: SupportSQLiteDatabase, ranges: List<TableRange>) {
+        BinaryFormat.writeVarLong(output, db.version.toLong())
+        val tables = DatabaseUtil.getTables(db).filter { it.first != "android_metadata" }
+        BinaryFormat.writeVarLong(output, tables.size.toLong())
+        for (table in tables) {
+            BinaryFormat.writeString(output, table.first)
+            val range = ranges.firstOrNull { it.table == table.first }
+            if (range == null) {
+                output.writeByte(DELTA_REPLACE_TABLE)
+                writeTable(output, db, table.first)
+            } else {
+                output.writeByte(DELTA_REPLACE_RANGE)
+                BinaryFormat.writeString(output, range.keyColumn)
+                BinaryFormat.writeSignedVarLong(output, range.start)
+                BinaryFormat.writeSignedVarLong(output, range.before)
+                writeTable(output, db, table.first, "${quote(range.keyColumn)} >= ?", arrayOf<Any?>(range.start))
+            }
+        }
+    }
+
+    @JvmStatic
+    @JvmOverloads
+    fun writeTable(output: DataOutput, db: SupportSQLiteDatabase, table: String, selection: String? = null, selectionArgs: Array<Any?>? = null) {
+        val query = if (selection == null) "SELECT * FROM $table" else "SELECT * FROM $table WHERE $selection"
+        db.query(query, selectionArgs ?: emptyArray()).use { cursor ->
+            BinaryFormat.writeVarLong(output, cursor.columnCount.toLong())
+            for (i in 0 until cursor.columnCount) {
+                BinaryFormat.writeString(output, cursor.getColumnName(i))
+            }
+
+            val frame = Frame(cursor.columnCount)
+            while (cursor.moveToNext()) {
+                frame.read(cursor)
+                if (frame.size == FRAME_SIZE) {
+                    frame.write(output)
+                }
+            }
+            if (frame.size > 0) {
+                frame.write(output)
+            }
+            // an empty frame marks the end of the table
+            BinaryFormat.writeVarLong(output, 0)
+        }
+    }
+
+    /**
+     * Reads the database version written by [writeDatabase]. Has to be followed by
+     * [readDatabaseContent] once the database is opened with this version.
+     */
+    @JvmStatic
+    fun readVersion(input: DataInput): Int {
+        return BinaryFormat.readVarLong(input).toInt()
+    }
+
+    @JvmStatic
+    fun readDatabaseContent(input: DataInput, db: SupportSQLiteDatabase) {
+        // make sure that the sqlite_sequence table exists by creating a table with autoincrement and deleting it afterwards.
+        db.execSQL("CREATE TABLE ${DatabaseUtil.SEQUENCE_PLACEHOLDER_TABLE} ('id' INTEGER PRIMARY KEY AUTOINCREMENT UNIQUE);")
+
+        val tableCount = BinaryFormat.readVarLong(input)
+        for (i in 0 until tableCount) {
+            readTable(input, db)
+        }
+
+        db.execSQL("DROP TABLE ${DatabaseUtil.SEQUENCE_PLACEHOLDER_TABLE}")
+    }
+
+    /**
+     * Applies a delta written by [writeDatabaseDelta] to a database restored from the earlier backup.
+     *
+     * @throws IOException if the delta was written for another version of the database
+     */
+    @JvmStatic
+    fun readDatabaseDelta(input: DataInput, db: SupportSQLiteDatabase) {
+        val version = readVersion(input)
+        if (version != db.version) {
+            throw IOException("Delta of version $version does not match database version ${db.version}")
+        }
+        val tableCount = BinaryFormat.readVarLong(input)
+        for (i in 0 until tableCount) {
+            val tableName = BinaryFormat.readString(input)
+            when (val mode = input.readUnsignedByte()) {
+                DELTA_REPLACE_TABLE -> db.execSQL("DELETE FROM ${quote(tableName)}")
+                DELTA_REPLACE_RANGE -> {
+                    val keyColumn = quote(BinaryFormat.readString(input))
+                    // the rows from start on were written, the rows before before were removed
+                    val start = BinaryFormat.readSignedVarLong(input)
+                    val before = BinaryFormat.readSignedVarLong(input)
+                    db.execSQL("DELETE FROM ${quote(tableName)} WHERE $keyColumn >= ? OR $keyColumn < ?", arrayOf<Any>(start, before))
+                }
+                else -> throw IOException("Unknown delta mode $mode")
+            }
+            readValues(input, db, tableName)
+        }
+    }
+
+    @JvmStatic
+    fun readTable(input: DataInput, db: SupportSQLiteDatabase) {
+        val tableName = BinaryFormat.readString(input)
+        val createSql = if (input.readBoolean()) BinaryFormat.readString(input) else null
+        // do not create sqlite_sequence - because it was created already
+        if (tableName != "sqlite_sequence" && createSql != null) {
+            db.execSQL(createSql)
+        }
+        readValues(input, db, tableName)
+    }
+
+    @JvmStatic
+    fun readValues(input: DataInput, db: SupportSQLiteDatabase, tableName: String) {
+        val columnCount = BinaryFormat.readVarLong(input).toInt()
+        if (columnCount <= 0) {
+            throw IOException("Table $tableName has no columns")
+        }
+        val columns = Array(columnCount) { quote(BinaryFormat.readString(input)) }
+        val placeholders = Array(columnCount) { "?" }
+
+        db.compileStatement(
+            "INSERT INTO ${quote(tableName)} (${columns.joinToString(",")}) VALUES (${placeholders.joinToString(",")})"
+        ).use { statement ->
+            val frame = Frame(columnCount)
+            while (frame.read(input)) {
+                frame.insert(statement)
+            }
+        }
+    }
+
+    private fun quote(identifier: String): String {
+        return "\"" + identifier.replace("\"", "\"\"") + "\""
+    }
+
+    /**
+     * The values of up to [FRAME_SIZE] rows, column by column. Reused for all frames of a table.
+     */
+    private class Frame(val columnCount: Int) {
+        val types = Array(columnCount) { ByteArray(FRAME_SIZE) }
+        val longs = Array(columnCount) { LongArray(FRAME_SIZE) }
+        val doubles = Array(columnCount) { DoubleArray(FRAME_SIZE) }
+        val objects = Array(columnCount) { arrayOfNulls<Any>(FRAME_SIZE) }
+        var size = 0
+
+        fun read(cursor: Cursor) {
+            for (column in 0 until columnCount) {
+                // do not keep references to the values of the previous frame
+                objects[column][size] = null
+                when (cursor.getType(column)) {
+                    FIELD_TYPE_INTEGER -> {
+                        types[column][size] = VALUE_INTEGER.toByte()
+                        longs[column][size] = cursor.getLong(column)
+                    }
+                    FIELD_TYPE_FLOAT -> {
+                        types[column][size] = VALUE_FLOAT.toByte()
+                        doubles[column][size] = cursor.getDouble(column)
+                    }
+                    FIELD_TYPE_STRING -> {
+                        types[column][size] = VALUE_STRING.toByte()
+                        objects[column][size] = cursor.getString(column)
+                    }
+                    FIELD_TYPE_BLOB -> {
+                        types[column][size] = VALUE_BLOB.toByte()
+                        objects[column][size] = cursor.getBlob(column)
+                    }
+                    else -> types[column][size] = VALUE_NULL.toByte()
+                }
+            }
+            size++
+        }
+
+        fun write(output: DataOutput) {
+            BinaryFormat.writeVarLong(output, size.toLong())
+            for (column in 0 until columnCount) {
+                val columnTypes = types[column]
+                val columnLongs = longs[column]
+                if ((0 until size).all { columnTypes[it] == VALUE_INTEGER.toByte() }) {
+                    output.writeByte(COLUMN_INTEGER_DELTA)
+                    var previous = 0L
+                    for (row in 0 until size) {
+                        BinaryFormat.writeSignedVarLong(output, columnLongs[row] - previous)
+                        previous = columnLongs[row]
+                    }
+                    continue
+                }
+                output.writeByte(COLUMN_TAGGED)
+                for (row in 0 until size) {
+                    val type = columnTypes[row].toInt()
+                    output.writeByte(type)
+                    when (type) {
+                        VALUE_INTEGER -> BinaryFormat.writeSignedVarLong(output, columnLongs[row])
+                        VALUE_FLOAT -> output.writeDouble(doubles[column][row])
+                        VALUE_STRING -> BinaryFormat.writeString(output, objects[column][row] as String)
+                        VALUE_BLOB -> BinaryFormat.writeByteArray(output, objects[column][row] as ByteArray)
+                    }
+                }
+            }
+            size = 0
+        }
+
+        /**
+         * @return false if the end of the table was reached
+         */
+        fun read(input: DataInput): Boolean {
+            val rows = BinaryFormat.readVarLong(input)
+            if (rows == 0L) {
+                return false
+            }
+            if (rows < 0 || rows > FRAME_SIZE) {
+                throw IOException("Malformed frame size $rows")
+            }
+            size = rows.toInt()
+            for (column in 0 until columnCount) {
+                val columnTypes = types[column]
+                val columnLongs = longs[column]
+                when (val encoding = input.readUnsignedByte()) {
+                    COLUMN_INTEGER_DELTA -> {
+                        var previous = 0L
+                        for (row in 0 until size) {
+                            previous += BinaryFormat.readSignedVarLong(input)
+                            columnTypes[row] = VALUE_INTEGER.toByte()
+                            columnLongs[row] = previous
+                        }
+                    }
+                    COLUMN_TAGGED -> {
+                        for (row in 0 until size) {
+                            val type = input.readUnsignedByte()
+                            columnTypes[row] = type.toByte()
+                            objects[column][row] = null
+                            when (type) {
+                                VALUE_NULL -> {}
+                                VALUE_INTEGER -> columnLongs[row] = BinaryFormat.readSignedVarLong(input)
+                                VALUE_FLOAT -> doubles[column][row] = input.readDouble()
+                                VALUE_STRING -> objects[column][row] = BinaryFormat.readString(input)
+                                VALUE_BLOB -> objects[column][row] = BinaryFormat.readByteArray(input)
+                                else -> throw IOException("Unknown value type $type")
+                            }
+                        }
+                    }
+                    else -> throw IOException("Unknown column encoding $encoding")
+                }
+            }
+            return true
+        }
+
+        fun insert(statement: SupportSQLiteStatement) {
+            for (row in 0 until size) {
+                statement.clearBindings()
+                for (column in 0 until columnCount) {
+                    // bind indices start at 1
+                    val index = column + 1
+                    when (types[column][row].toInt()) {
+                        VALUE_INTEGER -> statement.bindLong(index, longs[column][row])
+                        VALUE_FLOAT -> statement.bindDouble(index, doubles[column][row])
+                        VALUE_STRING -> statement.bindString(index, objects[column][row] as String)
+                        VALUE_BLOB -> statement.bindBlob(index, objects[column][row] as ByteArray)
+                        else -> statement.bindNull(index)
+                    }
+                }
+                statement.executeInsert()
+            }
+        }
+    }
+}
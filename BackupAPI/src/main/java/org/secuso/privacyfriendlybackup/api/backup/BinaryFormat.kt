@@ -0,0 +1,279 @@
+package org.secuso.privacyfriendlybackup.api.backup
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInput
+import java.io.DataInputStream
+import java.io.DataOutput
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.Inflater
+
+/**
+ * Versioned binary backup format, a compact alternative to the json backups.
+ * <p>
+ * A binary backup starts with the magic bytes `PFAB` and a format version byte. Everything after
+ * the header is deflate compressed and consists of named sections, each introduced by its name
+ * (see [writeString]) and followed by its content, e.g. a database written by
+ * [BinaryDatabaseUtil.writeDatabase]. The sections are terminated by [END_OF_SECTIONS].
+ * <p>
+ * Since version 2 the compressed data may consist of several deflate members, which are read as one
+ * stream. So sections can be appended to an existing backup without compressing it again, e.g. the
+ * changes since the backup, see [openMemberWriter].
+ * <p>
+ * Integers are written as varints, signed ones zigzag encoded, so small numbers take a single byte.
+ * Does not depend on the Android framework.
+ */
+object BinaryFormat {
+
+    @JvmField
+    val MAGIC = byteArrayOf('P'.code.toByte(), 'F'.code.toByte(), 'A'.code.toByte(), 'B'.code.toByte())
+    const val VERSION = 2
+
+    /**
+     * Section name which marks the end of the backup
+     */
+    const val END_OF_SECTIONS = ""
+
+    private const val BUFFER_SIZE = 64 * 1024
+    private const val MAX_VARINT_BYTES = 10
+
+    /**
+     * Checks the header without consuming it. The stream has to support mark and reset.
+     *
+     * @return true if the stream contains a binary backup, false if it contains e.g. a json backup
+     */
+    @JvmStatic
+    fun isBinaryFormat(input: InputStream): Boolean {
+        require(input.markSupported()) { "Stream does not support mark" }
+        val header = ByteArray(MAGIC.size)
+        input.mark(MAGIC.size)
+        try {
+            var read = 0
+            while (read < header.size) {
+                val count = input.read(header, read, header.size - read)
+                if (count < 0) return false
+                read += count
+            }
+        } finally {
+            input.reset()
+        }
+        return header.contentEquals(MAGIC)
+    }
+
+    /**
+     * Writes the header and returns the compressed stream to write the sections to.
+     * Closing the returned stream closes the given one.
+     */
+    @JvmStatic
+    fun openWriter(output: OutputStream): DataOutputStream {
+        writeHeader(output)
+        return openMemberWriter(output)
+    }
+
+    @JvmStatic
+    fun writeHeader(output: OutputStream) {
+        output.write(MAGIC)
+        output.write(VERSION)
+    }
+
+    /**
+     * Returns a stream which compresses the sections written to it into a new deflate member.
+     * Members can be written one after another behind a header written by [writeHeader], e.g. by
+     * appending to a file. Closing the returned stream closes the given one.
+     */
+    @JvmStatic
+    fun openMemberWriter(output: OutputStream): DataOutputStream {
+        return DataOutputStream(BufferedOutputStream(FastDeflaterOutputStream(output), BUFFER_SIZE))
+    }
+
+    /**
+     * Reads the header and returns the decompressed stream to read the sections from.
+     * Closing the returned stream closes the given one.
+     *
+     * @throws IOException if the stream does not contain a binary backup of a supported version
+     */
+    @JvmStatic
+    fun openReader(input: InputStream): DataInputStream {
+        val data = DataInputStream(input)
+        val header = ByteArray(MAGIC.size)
+        data.readFully(header)
+        if (!header.contentEquals(MAGIC)) {
+            throw IOException("Not a binary backup")
+        }
+        val version = data.readUnsignedByte()
+        if (version > VERSION) {
+            throw IOException("Unsupported backup format version $version")
+        }
+        // version 1 backups contain a single member
+        return DataInputStream(BufferedInputStream(MemberInflaterInputStream(input), BUFFER_SIZE))
+    }
+
+    @JvmStatic
+    fun writeVarLong(output: DataOutput, value: Long) {
+        var remaining = value
+        while (remaining and 0x7FL.inv() != 0L) {
+            output.writeByte(((remaining and 0x7F) or 0x80).toInt())
+            remaining = remaining ushr 7
+        }
+        output.writeByte(remaining.toInt())
+    }
+
+    @JvmStatic
+    fun readVarLong(input: DataInput): Long {
+        var value = 0L
+        for (i in 0 until MAX_VARINT_BYTES) {
+            val b = input.readUnsignedByte()
+            value = value or ((b and 0x7F).toLong() shl (7 * i))
+            if (b and 0x80 == 0) {
+                return value
+            }
+        }
+        throw IOException("Malformed varint")
+    }
+
+    /**
+     * Writes a signed number zigzag encoded, so small negative numbers are short as well.
+     */
+    @JvmStatic
+    fun writeSignedVarLong(output: DataOutput, value: Long) {
+        writeVarLong(output, (value shl 1) xor (value shr 63))
+    }
+
+    @JvmStatic
+    fun readSignedVarLong(input: DataInput): Long {
+        val value = readVarLong(input)
+        return (value ushr 1) xor -(value and 1)
+    }
+
+    @JvmStatic
+    fun writeByteArray(output: DataOutput, value: ByteArray) {
+        writeVarLong(output, value.size.toLong())
+        output.write(value)
+    }
+
+    @JvmStatic
+    fun readByteArray(input: DataInput): ByteArray {
+        val size = readVarLong(input)
+        if (size < 0 || size > Int.MAX_VALUE) {
+            throw IOException("Malformed length $size")
+        }
+        val value = ByteArray(size.toInt())
+        input.readFully(value)
+        return value
+    }
+
+    /**
+     * Writes the string UTF-8 encoded. Unlike [DataOutput.writeUTF] the length is not limited.
+     */
+    @JvmStatic
+    fun writeString(output: DataOutput, value: String) {
+        writeByteArray(output, value.toByteArray(Charsets.UTF_8))
+    }
+
+    @JvmStatic
+    fun readString(input: DataInput): String {
+        return String(readByteArray(input), Charsets.UTF_8)
+    }
+
+    /**
+     * Reads the name of the next section.
+     *
+     * @return the name or [END_OF_SECTIONS]
+     */
+    @JvmStatic
+    fun readSectionName(input: DataInput): String {
+        return try {
+            readString(input)
+        } catch (e: EOFException) {
+            throw IOException("Backup is truncated", e)
+        }
+    }
+
+    /**
+     * Compresses with the fastest deflate level, the columnar encoding already removes most redundancy.
+     */
+    private class FastDeflaterOutputStream(output: OutputStream) :
+        DeflaterOutputStream(output, Deflater(Deflater.BEST_SPEED), BUFFER_SIZE) {
+        override fun close() {
+            try {
+                super.close()
+            } finally {
+                // a deflater passed to the constructor is not released by close
+                def.end()
+            }
+        }
+    }
+
+    /**
+     * Inflates all deflate members of the stream one after another.
+     * Unlike [java.util.zip.GZIPInputStream] it does not rely on [InputStream.available] to find
+     * out whether another member follows, which does not work for pipes.
+     */
+    private class MemberInflaterInputStream(private val input: InputStream) : InputStream() {
+        private val inflater = Inflater()
+        private val buffer = ByteArray(BUFFER_SIZE)
+        private var bufferEnd = 0
+        private var memberStarted = false
+
+        override fun read(): Int {
+            val b = ByteArray(1)
+            return if (read(b, 0, 1) < 0) -1 else b[0].toInt() and 0xFF
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) {
+                return 0
+            }
+            while (true) {
+                if (inflater.finished()) {
+                    // the next member starts with the input left over by the finished one
+                    val remaining = inflater.remaining
+                    inflater.reset()
+                    memberStarted = false
+                    if (remaining > 0) {
+                        inflater.setInput(buffer, bufferEnd - remaining, remaining)
+                        memberStarted = true
+                    }
+                }
+                if (inflater.needsInput()) {
+                    bufferEnd = input.read(buffer)
+                    if (bufferEnd < 0) {
+                        bufferEnd = 0
+                        if (memberStarted) {
+                            throw EOFException("Unexpected end of deflate member")
+                        }
+                        return -1
+                    }
+                    inflater.setInput(buffer, 0, bufferEnd)
+                    memberStarted = true
+                }
+                val count = try {
+                    inflater.inflate(b, off, len)
+                } catch (e: DataFormatException) {
+                    throw IOException("Malformed deflate member", e)
+                }
+                if (count > 0) {
+                    return count
+                }
+                if (inflater.needsDictionary()) {
+                    throw IOException("Deflate member needs a dictionary")
+                }
+            }
+        }
+
+        override fun close() {
+            try {
+                input.close()
+            } finally {
+                inflater.end()
+            }
+        }
+    }
+}
@@ -34,6 +34,12 @@ import kotlin.collections.ArrayList
  */
 object DatabaseUtil {
 
+    /**
+     * Table with autoincrement, which is created while restoring to make sure that the sqlite_sequence table exists.
+     * Use of a randomly chosen uuid in the name to prevent collisions.
+     */
+    internal const val SEQUENCE_PLACEHOLDER_TABLE = "'tmp_backup_placeholder-03d8d15e-fb6f-4a62-a4a2-975a35a971ae'"
+
     @JvmStatic
     fun writeDatabase(writer: JsonWriter, db: SupportSQLiteDatabase) {
         writer.beginObject()
@@ -125,14 +131,13 @@ object DatabaseUtil {
         reader.beginArray()
 
         // make sure that the sqlite_sequence table exists by creating a table with autoincrement and deleting it afterwards.
-        // Use of a randomly chosen uuid in the name to prevent collisions.
-        db.execSQL("CREATE TABLE 'tmp_backup_placeholder-03d8d15e-fb6f-4a62-a4a2-975a35a971ae' ('id' INTEGER PRIMARY KEY AUTOINCREMENT UNIQUE);")
+        db.execSQL("CREATE TABLE $SEQUENCE_PLACEHOLDER_TABLE ('id' INTEGER PRIMARY KEY AUTOINCREMENT UNIQUE);")
 
         while (reader.hasNext()) {
             readTable(reader, db)
         }
 
-        db.execSQL("DROP TABLE 'tmp_backup_placeholder-03d8d15e-fb6f-4a62-a4a2-975a35a971ae'")
+        db.execSQL("DROP TABLE $SEQUENCE_PLACEHOLDER_TABLE")
 
         reader.endArray()
     }
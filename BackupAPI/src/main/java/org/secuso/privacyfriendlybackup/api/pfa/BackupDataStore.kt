@@ -1,9 +1,13 @@
 package org.secuso.privacyfriendlybackup.api.pfa
 
 import android.content.Context
+import android.util.Log
 import org.secuso.privacyfriendlybackup.api.util.copyInputStreamToFile
+import java.io.BufferedOutputStream
 import java.io.File
+import java.io.FileInputStream
 import java.io.InputStream
+import java.io.OutputStream
 
 /**
  * @author Christopher Beckmann
@@ -13,6 +17,10 @@ object BackupDataStore {
     const val BACKUP_PATH = "temp_backups"
     const val BACKUP_FILE = "BackupDataStore.BACKUP_DATA"
     const val RESTORE_FILE = "BackupDataStore.RESTORE_DATA"
+    const val TEMP_SUFFIX = ".tmp"
+
+    private const val TAG = "PFA BackupDataStore"
+    private const val BUFFER_SIZE = 64 * 1024
 
     fun getRestoreData(context: Context) : InputStream? {
         val path = File(context.filesDir, BACKUP_PATH)
@@ -38,7 +46,7 @@ object BackupDataStore {
         file.delete()
     }
 
-    fun getBackupData(context: Context): InputStream? {
+    fun getBackupData(context: Context): FileInputStream? {
         val path = File(context.filesDir, BACKUP_PATH)
         val file = File(path, BACKUP_FILE)
         path.mkdir()
@@ -54,6 +62,34 @@ object BackupDataStore {
         file.copyInputStreamToFile(backupData)
     }
 
+    /**
+     * Streams the backup directly into the backup file, so the backup is never held in memory as a
+     * whole. The data is written to a temporary file first, which replaces the backup file only if
+     * [writer] succeeds. This way a failed backup never leaves a truncated backup file behind.
+     *
+     * @param writer writes the backup to the given stream and returns whether it succeeded
+     * @return true if the backup was written and stored
+     */
+    fun writeBackupData(context: Context, writer: (OutputStream) -> Boolean): Boolean {
+        val path = File(context.filesDir, BACKUP_PATH)
+        val file = File(path, BACKUP_FILE)
+        val tempFile = File(path, BACKUP_FILE + TEMP_SUFFIX)
+        path.mkdir()
+
+        val success = try {
+            BufferedOutputStream(tempFile.outputStream(), BUFFER_SIZE).use { writer(it) }
+        } catch (e: Exception) {
+            Log.e(TAG, "Writing backup data failed", e)
+            false
+        }
+
+        if (!success || !tempFile.renameTo(file)) {
+            tempFile.delete()
+            return false
+        }
+        return true
+    }
+
     private fun cleanBackupData(context: Context) {
         val path = File(context.filesDir, BACKUP_PATH)
         val file = File(path, BACKUP_FILE)
@@ -6,6 +6,8 @@ import androidx.lifecycle.LiveData
 import androidx.lifecycle.MediatorLiveData
 import java.io.File
 import java.io.InputStream
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
 import java.security.MessageDigest
 
 
@@ -67,6 +69,29 @@ fun File.copyInputStreamToFile(inputStream: InputStream) {
     }
 }
 
+/**
+ * Transfers the remaining content of this channel to [target] without copying it through a heap
+ * buffer. [FileChannel.transferTo] may transfer less than requested, e.g. into a pipe, so it is
+ * called until everything has been written.
+ *
+ * @return the number of bytes transferred
+ */
+fun FileChannel.transferFully(target: WritableByteChannel) : Long {
+    val start = position()
+    val end = size()
+    var position = start
+    while (position < end) {
+        val transferred = transferTo(position, end - position, target)
+        if (transferred <= 0) {
+            // the channel was truncated meanwhile
+            break
+        }
+        position += transferred
+    }
+    position(position)
+    return position - start
+}
+
 fun <T, K, R> MediatorLiveData<R>.addSources(
     liveData1: LiveData<T>,
     liveData2: LiveData<K>,
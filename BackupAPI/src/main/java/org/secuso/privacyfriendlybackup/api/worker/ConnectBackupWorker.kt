@@ -22,6 +22,8 @@ import org.secuso.privacyfriendlybackup.api.common.PfaApi.EXTRA_CONNECT_PACKAGE_
 import org.secuso.privacyfriendlybackup.api.common.PfaError
 import org.secuso.privacyfriendlybackup.api.pfa.BackupManager
 import org.secuso.privacyfriendlybackup.api.util.BackupApiConnection
+import org.secuso.privacyfriendlybackup.api.util.transferFully
+import java.io.FileOutputStream
 import java.lang.ref.WeakReference
 import java.util.concurrent.Executors
 import java.util.concurrent.atomic.AtomicBoolean
@@ -112,7 +114,12 @@ class ConnectBackupWorker(val context : Context, params: WorkerParameters) : Cor
         GlobalScope.launch(IO) {
             outputStream?.use { stream ->
                 backupData.use {
-                    it.copyTo(stream)
+                    if (stream is FileOutputStream) {
+                        // the pipe is backed by a file descriptor, so let the kernel copy the data
+                        it.channel.transferFully(stream.channel)
+                    } else {
+                        it.copyTo(stream)
+                    }
                 }
             }
         }
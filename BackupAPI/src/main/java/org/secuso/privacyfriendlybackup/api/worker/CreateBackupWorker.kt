@@ -10,8 +10,6 @@ import org.secuso.privacyfriendlybackup.api.common.CommonApiConstants
 import org.secuso.privacyfriendlybackup.api.common.PfaApi
 import org.secuso.privacyfriendlybackup.api.pfa.BackupDataStore
 import org.secuso.privacyfriendlybackup.api.pfa.BackupManager
-import java.io.ByteArrayInputStream
-import java.io.ByteArrayOutputStream
 
 /**
  * @author Christopher Beckmann
@@ -23,20 +21,19 @@ class CreateBackupWorker(val context : Context, params: WorkerParameters) : Work
         //if(BackupDataStore.isBackupDataSaved(context)) return Result.success()
 
         Log.d("PFA BackupWorker", "creating backup...")
-        val outStream = ByteArrayOutputStream()
-        val success = BackupManager.backupCreator?.writeBackup(context, outStream) ?: return Result.success(Data.Builder().apply {
+        val backupCreator = BackupManager.backupCreator ?: return Result.success(Data.Builder().apply {
             putInt(CommonApiConstants.RESULT_CODE, CommonApiConstants.RESULT_CODE_ERROR)
         }.build())
 
+        // stream the backup straight into the data store, so memory usage does not depend on the backup size
+        val success = BackupDataStore.writeBackupData(context) { backupCreator.writeBackup(context, it) }
+
         if(!success) {
             return Result.success(Data.Builder().apply {
                 putInt(CommonApiConstants.RESULT_CODE, CommonApiConstants.RESULT_CODE_ERROR)
             }.build())
         }
         Log.d("PFA BackupWorker", "backup created")
-        outStream.close()
-
-        BackupDataStore.saveBackupData(context, ByteArrayInputStream(outStream.toByteArray()))
 
         return Result.success(Data.EMPTY)
     }
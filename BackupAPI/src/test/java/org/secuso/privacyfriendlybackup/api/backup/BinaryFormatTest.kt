@@ -0,0 +1,114 @@
+package org.secuso.privacyfriendlybackup.api.backup
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.BufferedInputStream
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+
+/**
+ * Unit tests for [BinaryFormat].
+ */
+class BinaryFormatTest {
+
+    @Test
+    fun varintsRoundTrip() {
+        val values = longArrayOf(0, 1, 127, 128, 300, 1_600_000_000_000L, Long.MAX_VALUE, -1, Long.MIN_VALUE)
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { out ->
+            for (value in values) {
+                BinaryFormat.writeVarLong(out, value)
+                BinaryFormat.writeSignedVarLong(out, value)
+            }
+        }
+        val input = DataInputStream(ByteArrayInputStream(bytes.toByteArray()))
+        for (value in values) {
+            assertEquals(value, BinaryFormat.readVarLong(input))
+            assertEquals(value, BinaryFormat.readSignedVarLong(input))
+        }
+    }
+
+    @Test
+    fun smallNumbersTakeOneByte() {
+        for (value in longArrayOf(0, 63, -64)) {
+            val bytes = ByteArrayOutputStream()
+            BinaryFormat.writeSignedVarLong(DataOutputStream(bytes), value)
+            assertEquals(1, bytes.size())
+        }
+    }
+
+    @Test
+    fun sectionsRoundTripCompressed() {
+        val bytes = ByteArrayOutputStream()
+        BinaryFormat.openWriter(bytes).use { out ->
+            BinaryFormat.writeString(out, "preferences")
+            BinaryFormat.writeString(out, "{\"key\":\"välue\"}")
+            BinaryFormat.writeByteArray(out, ByteArray(100_000))
+            BinaryFormat.writeString(out, BinaryFormat.END_OF_SECTIONS)
+        }
+        assertTrue(bytes.size() < 1000)
+
+        val input = BufferedInputStream(ByteArrayInputStream(bytes.toByteArray()))
+        assertTrue(BinaryFormat.isBinaryFormat(input))
+        BinaryFormat.openReader(input).use { reader ->
+            assertEquals("preferences", BinaryFormat.readSectionName(reader))
+            assertEquals("{\"key\":\"välue\"}", BinaryFormat.readString(reader))
+            assertEquals(100_000, BinaryFormat.readByteArray(reader).size)
+            assertEquals(BinaryFormat.END_OF_SECTIONS, BinaryFormat.readSectionName(reader))
+        }
+    }
+
+    @Test
+    fun readsAppendedMembersAsOneStream() {
+        val bytes = ByteArrayOutputStream()
+        BinaryFormat.writeHeader(bytes)
+        BinaryFormat.openMemberWriter(bytes).use { out ->
+            BinaryFormat.writeString(out, "base")
+            BinaryFormat.writeByteArray(out, ByteArray(200_000) { it.toByte() })
+        }
+        BinaryFormat.openMemberWriter(bytes).use { out ->
+            BinaryFormat.writeString(out, "delta")
+        }
+        BinaryFormat.openMemberWriter(bytes).use { out ->
+            BinaryFormat.writeString(out, BinaryFormat.END_OF_SECTIONS)
+        }
+
+        BinaryFormat.openReader(ByteArrayInputStream(bytes.toByteArray())).use { reader ->
+            assertEquals("base", BinaryFormat.readSectionName(reader))
+            val data = BinaryFormat.readByteArray(reader)
+            assertEquals(200_000, data.size)
+            assertEquals(199_999.toByte(), data[199_999])
+            assertEquals("delta", BinaryFormat.readSectionName(reader))
+            assertEquals(BinaryFormat.END_OF_SECTIONS, BinaryFormat.readSectionName(reader))
+            assertEquals(-1, reader.read())
+        }
+    }
+
+    @Test
+    fun detectsJsonBackupWithoutConsumingIt() {
+        val input = BufferedInputStream(ByteArrayInputStream("{}".toByteArray()))
+        assertFalse(BinaryFormat.isBinaryFormat(input))
+        assertEquals('{'.code, input.read())
+    }
+
+    @Test(expected = IOException::class)
+    fun rejectsNewerFormatVersion() {
+        val bytes = BinaryFormat.MAGIC + byteArrayOf((BinaryFormat.VERSION + 1).toByte())
+        BinaryFormat.openReader(ByteArrayInputStream(bytes))
+    }
+
+    @Test(expected = IOException::class)
+    fun reportsTruncatedBackup() {
+        val bytes = ByteArrayOutputStream()
+        BinaryFormat.openWriter(bytes).use { out ->
+            BinaryFormat.writeString(out, "preferences")
+        }
+        BinaryFormat.openReader(ByteArrayInputStream(bytes.toByteArray())).use { reader ->
+            BinaryFormat.readSectionName(reader)
+            BinaryFormat.readSectionName(reader)
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.clonepedometer.persistence
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.example.clonepedometer.persistence.StepCountDbHelper.Tier
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Calendar
+
+/**
+ * Instrumented tests for compacting step counts into tiers and reading them back.
+ * Uses an in-memory database, so the app's data is not touched.
+ */
+@RunWith(AndroidJUnit4::class)
+class StepCountCompactionTest {
+    private val appContext = InstrumentationRegistry.getInstrumentation().targetContext
+    private lateinit var helper: StepCountDbHelper
+
+    private val january = date(Calendar.JANUARY, 1)
+    private val february = date(Calendar.FEBRUARY, 1)
+    private val rawCutoff = date(Calendar.MARCH, 1)
+    private val hourlyCutoff = date(Calendar.FEBRUARY, 15)
+    private val end = date(Calendar.APRIL, 1)
+
+    @Before
+    fun setUp() {
+        helper = StepCountDbHelper(appContext, null)
+        // four entries per day from January to March, alternating walking modes
+        val calendar = Calendar.getInstance()
+        calendar.timeInMillis = january
+        calendar.add(Calendar.HOUR_OF_DAY, 3)
+        var i = 0
+        while (calendar.timeInMillis < end) {
+            helper.writer.insert(100 + i % 7, 1L + i % 2, calendar.timeInMillis)
+            calendar.add(Calendar.HOUR_OF_DAY, 6)
+            i++
+        }
+    }
+
+    @After
+    fun tearDown() {
+        helper.close()
+    }
+
+    @Test
+    fun compactionMovesDataIntoTiers() {
+        helper.compact(rawCutoff, hourlyCutoff, february)
+
+        assertEquals(rawCutoff, helper.getBoundary(Tier.RAW))
+        assertEquals(hourlyCutoff, helper.getBoundary(Tier.HOURLY))
+        assertEquals(february, helper.getBoundary(Tier.DAILY))
+        assertEquals(rawCutoff, longForQuery("SELECT MIN(timestamp) FROM stepcount") - 3 * HOUR)
+        // hourly sums are kept per full hour in UTC
+        val firstHour = longForQuery("SELECT MIN(hour) FROM hourly_summary")
+        assertTrue(firstHour >= hourlyCutoff && firstHour <= hourlyCutoff + 3 * HOUR)
+        assertTrue(longForQuery("SELECT MAX(hour) FROM hourly_summary") < rawCutoff)
+        assertEquals(february, longForQuery("SELECT MIN(day) FROM daily_summary"))
+        assertEquals(listOf(listOf(january, 1L), listOf(january, 2L)), rows("SELECT month, walking_mode FROM monthly_summary ORDER BY walking_mode"))
+        assertEquals(january, helper.firstTimestamp)
+    }
+
+    @Test
+    fun compactionKeepsTotals() {
+        val totalsBefore = totalsPerWalkingMode(Tier.RAW)
+        val daysBefore = stepsPerBucket(Tier.DAILY, february, end - 1)
+        val januaryBefore = stepsPerBucket(Tier.RAW, january, february - 1).values.sum()
+
+        helper.compact(rawCutoff, hourlyCutoff, february)
+
+        assertEquals(totalsBefore, totalsPerWalkingMode(Tier.RAW))
+        assertEquals(totalsBefore, totalsPerWalkingMode(Tier.MONTHLY))
+        assertEquals(daysBefore, stepsPerBucket(Tier.DAILY, february, end - 1))
+        assertEquals(mapOf(january to januaryBefore), stepsPerBucket(Tier.RAW, january, february - 1))
+    }
+
+    @Test
+    fun compactionIsIdempotent() {
+        helper.compact(rawCutoff, hourlyCutoff, february)
+        val tables = snapshot()
+
+        helper.compact(rawCutoff, hourlyCutoff, february)
+        assertEquals(tables, snapshot())
+        // boundaries only move forward
+        helper.compact(hourlyCutoff, february, january)
+        assertEquals(tables, snapshot())
+        assertEquals(rawCutoff, helper.getBoundary(Tier.RAW))
+    }
+
+    @Test
+    fun readsEachPartInTheFinestTierLeft() {
+        helper.compact(rawCutoff, hourlyCutoff, february)
+
+        // raw entries, hourly sums, daily sums and the monthly sums, in this order
+        val raw = visit(Tier.RAW, date(Calendar.MARCH, 10), date(Calendar.MARCH, 11) - 1)
+        assertEquals(4, raw.size)
+        val hourly = visit(Tier.RAW, date(Calendar.FEBRUARY, 20), date(Calendar.FEBRUARY, 21) - 1)
+        assertEquals(4, hourly.size)
+        assertTrue(hourly.all { it.end - it.start == HOUR })
+        val daily = visit(Tier.RAW, date(Calendar.FEBRUARY, 10), date(Calendar.FEBRUARY, 11) - 1)
+        assertEquals(listOf(date(Calendar.FEBRUARY, 10)), daily.map { it.start }.distinct())
+        val monthly = visit(Tier.RAW, date(Calendar.JANUARY, 10), date(Calendar.JANUARY, 11) - 1)
+        assertEquals(listOf(january to february), monthly.map { it.start to it.end }.distinct())
+        // all steps of a compacted day are still read
+        assertEquals(
+            stepsPerBucket(Tier.DAILY, date(Calendar.FEBRUARY, 20), date(Calendar.FEBRUARY, 21) - 1).values.sum(),
+            hourly.sumOf { it.steps.toLong() }
+        )
+    }
+
+    @Test
+    fun countsIntervalsAcrossTheRawBoundary() {
+        // each interval starts at the start of a bucket of the tier it is read from after compaction
+        val intervals = listOf(
+            january to date(Calendar.MARCH, 10) - 1,
+            date(Calendar.FEBRUARY, 3) to date(Calendar.MARCH, 10) - 1,
+            date(Calendar.FEBRUARY, 20) to date(Calendar.MARCH, 10) - 1,
+            date(Calendar.FEBRUARY, 20) to date(Calendar.FEBRUARY, 25) - 1,
+            rawCutoff to end - 1
+        )
+        val totalsBefore = intervals.map { helper.getStepCountForInterval(it.first, it.second) }
+        val perModeBefore = intervals.map { helper.getStepCountsPerWalkingMode(it.first, it.second) }
+
+        helper.compact(rawCutoff, hourlyCutoff, february)
+
+        assertEquals(totalsBefore, intervals.map { helper.getStepCountForInterval(it.first, it.second) })
+        assertEquals(perModeBefore, intervals.map { helper.getStepCountsPerWalkingMode(it.first, it.second) })
+        assertTrue(totalsBefore[0] > totalsBefore[4])
+    }
+
+    @Test
+    fun selectsTierAtBoundaries() {
+        val boundaries = longArrayOf(300, 200, 100, Long.MIN_VALUE)
+        assertEquals(Tier.RAW, StepCountDbHelper.selectTier(300, Tier.RAW, boundaries))
+        assertEquals(Tier.HOURLY, StepCountDbHelper.selectTier(299, Tier.RAW, boundaries))
+        assertEquals(Tier.HOURLY, StepCountDbHelper.selectTier(200, Tier.RAW, boundaries))
+        assertEquals(Tier.DAILY, StepCountDbHelper.selectTier(199, Tier.RAW, boundaries))
+        assertEquals(Tier.DAILY, StepCountDbHelper.selectTier(100, Tier.HOURLY, boundaries))
+        assertEquals(Tier.MONTHLY, StepCountDbHelper.selectTier(99, Tier.RAW, boundaries))
+        // the coarsest tier not coarser than the resolution
+        assertEquals(Tier.DAILY, StepCountDbHelper.selectTier(300, Tier.DAILY, boundaries))
+        assertEquals(Tier.DAILY, StepCountDbHelper.selectTier(300, Tier.MONTHLY, boundaries))
+        assertEquals(Tier.MONTHLY, StepCountDbHelper.selectTier(99, Tier.MONTHLY, boundaries))
+
+        // nothing compacted yet
+        val none = longArrayOf(Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE)
+        assertEquals(Tier.RAW, StepCountDbHelper.selectTier(0, Tier.RAW, none))
+        assertEquals(Tier.RAW, StepCountDbHelper.selectTier(0, Tier.HOURLY, none))
+        assertEquals(Tier.DAILY, StepCountDbHelper.selectTier(0, Tier.MONTHLY, none))
+    }
+
+    private data class Bucket(val start: Long, val end: Long, val steps: Int, val walkingMode: Long)
+
+    private fun visit(resolution: Tier, start: Long, end: Long): List<Bucket> {
+        val buckets = ArrayList<Bucket>()
+        helper.visitStepCounts(start, end, resolution) { startTime, endTime, stepCount, walkingModeId ->
+            buckets.add(Bucket(startTime, endTime, stepCount, walkingModeId))
+        }
+        return buckets
+    }
+
+    private fun totalsPerWalkingMode(resolution: Tier): Map<Long, Long> {
+        return visit(resolution, 0, Long.MAX_VALUE).groupBy { it.walkingMode }.mapValues { e -> e.value.sumOf { it.steps.toLong() } }
+    }
+
+    private fun stepsPerBucket(resolution: Tier, start: Long, end: Long): Map<Long, Long> {
+        return visit(resolution, start, end).groupBy { it.start }.mapValues { e -> e.value.sumOf { it.steps.toLong() } }
+    }
+
+    private fun snapshot(): List<List<List<Long>>> {
+        return listOf("stepcount", "hourly_summary", "daily_summary", "monthly_summary").map { rows("SELECT * FROM $it ORDER BY 1, 2") }
+    }
+
+    private fun rows(query: String): List<List<Long>> {
+        val rows = ArrayList<List<Long>>()
+        helper.readableDatabase.rawQuery(query, null).use {
+            while (it.moveToNext()) {
+                rows.add((0 until it.columnCount).map { column -> it.getLong(column) })
+            }
+        }
+        return rows
+    }
+
+    private fun longForQuery(query: String): Long {
+        return rows(query)[0][0]
+    }
+
+    companion object {
+        private const val HOUR = 3600000L
+
+        private fun date(month: Int, day: Int): Long {
+            val calendar = Calendar.getInstance()
+            calendar.clear()
+            calendar.set(2020, month, day)
+            return calendar.timeInMillis
+        }
+    }
+}
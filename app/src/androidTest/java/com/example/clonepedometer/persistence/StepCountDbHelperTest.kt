@@ -0,0 +1,220 @@
+package com.example.clonepedometer.persistence
+
+import android.database.sqlite.SQLiteDatabase
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Instrumented tests for the schema of [StepCountDbHelper].
+ * Uses an in-memory database, so the app's data is not touched.
+ */
+@RunWith(AndroidJUnit4::class)
+class StepCountDbHelperTest {
+    private val appContext = InstrumentationRegistry.getInstrumentation().targetContext
+    private val helper = StepCountDbHelper(appContext)
+    private lateinit var db: SQLiteDatabase
+
+    @Before
+    fun setUp() {
+        db = SQLiteDatabase.create(null)
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    @Test
+    fun intervalQueryUsesTimestampIndex() {
+        helper.onCreate(db)
+        val plan = queryPlan(
+            "SELECT stepcount, timestamp, walking_mode FROM stepcount WHERE timestamp >= ? AND timestamp <= ? ORDER BY timestamp ASC",
+            "0", "1"
+        )
+        assertTrue(plan, plan.contains(StepCountDbHelper.INDEX_TIMESTAMP))
+        assertFalse(plan, plan.contains("TEMP B-TREE"))
+    }
+
+    @Test
+    fun latestStepCountQueryUsesTimestampIndex() {
+        helper.onCreate(db)
+        val plan = queryPlan("SELECT stepcount, timestamp, walking_mode FROM stepcount ORDER BY timestamp DESC LIMIT 1")
+        assertTrue(plan, plan.contains(StepCountDbHelper.INDEX_TIMESTAMP))
+        assertFalse(plan, plan.contains("TEMP B-TREE"))
+    }
+
+    @Test
+    fun pageQueriesUseTimestampIndex() {
+        helper.onCreate(db)
+        val nextPage = queryPlan(
+            "SELECT timestamp, stepcount, walking_mode FROM stepcount WHERE timestamp > ? AND timestamp <= ? ORDER BY timestamp ASC LIMIT 500",
+            "0", "1"
+        )
+        assertTrue(nextPage, nextPage.contains(StepCountDbHelper.INDEX_TIMESTAMP))
+        assertFalse(nextPage, nextPage.contains("TEMP B-TREE"))
+        val olderPage = queryPlan(
+            "SELECT timestamp, stepcount, walking_mode FROM stepcount WHERE timestamp < ? ORDER BY timestamp DESC LIMIT 21",
+            "1"
+        )
+        assertTrue(olderPage, olderPage.contains(StepCountDbHelper.INDEX_TIMESTAMP))
+        assertFalse(olderPage, olderPage.contains("TEMP B-TREE"))
+    }
+
+    @Test
+    fun updateByTimestampUsesTimestampIndex() {
+        helper.onCreate(db)
+        val plan = queryPlan("UPDATE stepcount SET stepcount = 1 WHERE timestamp = ?", "0")
+        assertTrue(plan, plan.contains(StepCountDbHelper.INDEX_TIMESTAMP))
+    }
+
+    @Test
+    fun upgradeFromVersion2CreatesTimestampIndex() {
+        // schema of database version 2
+        db.execSQL("CREATE TABLE stepcount (_id INTEGER PRIMARY KEY,stepcount INTEGER,walking_mode INTEGER,timestamp INTEGER )")
+        db.execSQL("INSERT INTO stepcount (stepcount, walking_mode, timestamp) VALUES (10, 1, 1000)")
+
+        helper.onUpgrade(db, 2, StepCountDbHelper.DATABASE_VERSION)
+
+        db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?", arrayOf(StepCountDbHelper.INDEX_TIMESTAMP)).use {
+            assertTrue(it.moveToFirst())
+        }
+        db.rawQuery("SELECT stepcount FROM stepcount WHERE timestamp = 1000", null).use {
+            assertTrue(it.moveToFirst())
+            assertEquals(10, it.getInt(0))
+        }
+    }
+
+    @Test
+    fun upgradeFromVersion3BackfillsDailySummary() {
+        // schema of database version 3
+        db.execSQL("CREATE TABLE stepcount (_id INTEGER PRIMARY KEY,stepcount INTEGER,walking_mode INTEGER,timestamp INTEGER )")
+        db.execSQL("CREATE INDEX stepcount_timestamp_idx ON stepcount (timestamp)")
+        val day = StepCountDbHelper.getStartOfDay(System.currentTimeMillis())
+        val nextDay = StepCountDbHelper.getStartOfDay(day + 36 * 3600 * 1000L)
+        insertStepCount(10, 1, day + 1000)
+        insertStepCount(20, 1, day + 2000)
+        insertStepCount(5, 2, day + 3000)
+        insertStepCount(7, 1, nextDay)
+
+        db.beginTransaction()
+        try {
+            helper.onUpgrade(db, 3, StepCountDbHelper.DATABASE_VERSION)
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+
+        assertEquals(30, summarySteps(day, 1))
+        assertEquals(5, summarySteps(day, 2))
+        assertEquals(7, summarySteps(nextDay, 1))
+        assertEquals(-1, summarySteps(nextDay, 2))
+    }
+
+    @Test
+    fun upgradeFromVersion5BackfillsCumulativeSteps() {
+        // schema of the step count table in database version 5
+        db.execSQL("CREATE TABLE stepcount (_id INTEGER PRIMARY KEY,stepcount INTEGER,walking_mode INTEGER,timestamp INTEGER )")
+        insertStepCount(20, 2, 2000)
+        insertStepCount(10, 1, 1000)
+        insertStepCount(5, 1, 3000)
+
+        db.beginTransaction()
+        try {
+            helper.onUpgrade(db, 5, StepCountDbHelper.DATABASE_VERSION)
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+
+        val sums = ArrayList<Pair<Long, Long>>()
+        db.rawQuery("SELECT cumulative_steps, mode_cumulative_steps FROM stepcount ORDER BY timestamp", null).use {
+            while (it.moveToNext()) {
+                sums.add(it.getLong(0) to it.getLong(1))
+            }
+        }
+        assertEquals(listOf(10L to 10L, 30L to 20L, 35L to 15L), sums)
+    }
+
+    @Test
+    fun cumulativeStepsLookupUsesWalkingModeIndex() {
+        helper.onCreate(db)
+        val plan = queryPlan(
+            "SELECT mode_cumulative_steps FROM stepcount WHERE walking_mode = ? AND timestamp <= ? ORDER BY timestamp DESC LIMIT 1",
+            "1", "0"
+        )
+        assertTrue(plan, plan.contains(StepCountDbHelper.INDEX_WALKING_MODE_TIMESTAMP))
+        assertFalse(plan, plan.contains("TEMP B-TREE"))
+    }
+
+    @Test
+    fun dailySummaryLookupUsesPrimaryKey() {
+        helper.onCreate(db)
+        val plan = queryPlan("SELECT stepcount FROM daily_summary WHERE day = ? AND walking_mode = ?", "0", "1")
+        assertFalse(plan, plan.contains("SCAN"))
+    }
+
+    @Test
+    fun triggersRecordEarliestChangeSinceBackup() {
+        helper.onCreate(db)
+        insertStepCount(10, 1, 1000)
+        insertStepCount(10, 1, 5000)
+        // reset by a backup
+        setRollupState(StepCountDbHelper.STATE_BACKUP_CHANGED_SINCE, Long.MAX_VALUE)
+
+        insertStepCount(10, 1, 6000)
+        assertEquals(6000, rollupState(StepCountDbHelper.STATE_BACKUP_CHANGED_SINCE))
+        db.execSQL("UPDATE stepcount SET timestamp = 7000 WHERE timestamp = 5000")
+        assertEquals(5000, rollupState(StepCountDbHelper.STATE_BACKUP_CHANGED_SINCE))
+
+        // deleting entries before the raw boundary is compaction, which the backup tracks by the boundary
+        setRollupState(StepCountDbHelper.STATE_RAW_BOUNDARY, 2000)
+        db.execSQL("DELETE FROM stepcount WHERE timestamp = 1000")
+        assertEquals(5000, rollupState(StepCountDbHelper.STATE_BACKUP_CHANGED_SINCE))
+        db.execSQL("DELETE FROM stepcount WHERE timestamp = 6000")
+        assertEquals(5000, rollupState(StepCountDbHelper.STATE_BACKUP_CHANGED_SINCE))
+        db.execSQL("DELETE FROM stepcount WHERE timestamp = 7000")
+        assertEquals(5000, rollupState(StepCountDbHelper.STATE_BACKUP_CHANGED_SINCE))
+        insertStepCount(10, 1, 3000)
+        assertEquals(3000, rollupState(StepCountDbHelper.STATE_BACKUP_CHANGED_SINCE))
+    }
+
+    private fun setRollupState(name: String, value: Long) {
+        db.execSQL("INSERT OR REPLACE INTO rollup_state (name, value) VALUES (?, ?)", arrayOf<Any>(name, value))
+    }
+
+    private fun rollupState(name: String): Long {
+        db.rawQuery("SELECT value FROM rollup_state WHERE name = ?", arrayOf(name)).use {
+            assertTrue(it.moveToFirst())
+            return it.getLong(0)
+        }
+    }
+
+    private fun insertStepCount(steps: Int, walkingMode: Int, timestamp: Long) {
+        db.execSQL("INSERT INTO stepcount (stepcount, walking_mode, timestamp) VALUES (?, ?, ?)", arrayOf<Any>(steps, walkingMode, timestamp))
+    }
+
+    /**
+     * @return the summarized steps or -1 if there is no summary entry
+     */
+    private fun summarySteps(day: Long, walkingMode: Int): Int {
+        db.rawQuery("SELECT stepcount FROM daily_summary WHERE day = ? AND walking_mode = ?", arrayOf(day.toString(), walkingMode.toString())).use {
+            return if (it.moveToFirst()) it.getInt(0) else -1
+        }
+    }
+
+    private fun queryPlan(sql: String, vararg args: String): String {
+        val plan = StringBuilder()
+        db.rawQuery("EXPLAIN QUERY PLAN $sql", args).use { cursor ->
+            val detail = cursor.getColumnIndexOrThrow("detail")
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n')
+            }
+        }
+        return plan.toString()
+    }
+}
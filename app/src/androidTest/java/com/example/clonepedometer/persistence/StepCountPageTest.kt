@@ -0,0 +1,85 @@
+package com.example.clonepedometer.persistence
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.example.clonepedometer.models.StepCountPage
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Instrumented tests for reading step counts page by page, where several entries end at the same
+ * time. Uses an in-memory database, so the app's data is not touched.
+ */
+@RunWith(AndroidJUnit4::class)
+class StepCountPageTest {
+    private val appContext = InstrumentationRegistry.getInstrumentation().targetContext
+    private lateinit var helper: StepCountDbHelper
+
+    @Before
+    fun setUp() {
+        helper = StepCountDbHelper(appContext, null)
+    }
+
+    @After
+    fun tearDown() {
+        helper.close()
+    }
+
+    @Test
+    fun pagesThroughEntriesWithTheSameEndTime() {
+        // three entries end at each time, a page of two splits them
+        for (i in 0 until 30) {
+            helper.writer.insert(i + 1, 1, START + (i / 3) * MINUTE)
+        }
+
+        val steps = ArrayList<Int>()
+        var page: StepCountPage? = null
+        do {
+            page = helper.getStepCountPage(page, 2)
+            assertTrue(page.stepCounts.size <= 2)
+            steps.addAll(page.stepCounts.map { it.stepCount })
+        } while (page!!.hasNext())
+
+        assertEquals((30 downTo 1).toList(), steps)
+    }
+
+    @Test
+    fun lastPageHasNoNext() {
+        for (i in 0 until 4) {
+            helper.writer.insert(1, 1, START)
+        }
+
+        val first = helper.getStepCountPage(null, 4)
+        assertEquals(4, first.stepCounts.size)
+        assertFalse(first.hasNext())
+        assertTrue(helper.getStepCountPage(first, 4).stepCounts.isEmpty())
+    }
+
+    @Test
+    fun visitsEntriesWithTheSameEndTimeAcrossQueryPages() {
+        // the entries around the end of the first query page end at the same time
+        val count = StepCountDbHelper.PAGE_SIZE + 10
+        for (i in 0 until count) {
+            val minute = if (i in StepCountDbHelper.PAGE_SIZE - 5 until StepCountDbHelper.PAGE_SIZE + 5) StepCountDbHelper.PAGE_SIZE - 5 else i
+            helper.writer.insert(1, 1, START + minute * MINUTE)
+        }
+
+        var visited = 0
+        var steps = 0L
+        helper.visitStepCountsForInterval(START, START + count * MINUTE) { _, _, stepCount, _ ->
+            visited++
+            steps += stepCount
+        }
+
+        assertEquals(count, visited)
+        assertEquals(count.toLong(), steps)
+    }
+
+    companion object {
+        private const val MINUTE = 60000L
+        private const val START = 1577869200000L // 2020-01-01 09:00 UTC
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.clonepedometer.persistence
+
+import android.database.sqlite.SQLiteDatabase
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Instrumented tests for [StepCountWriter].
+ * Uses an in-memory database, so the app's data is not touched.
+ */
+@RunWith(AndroidJUnit4::class)
+class StepCountWriterTest {
+    private val appContext = InstrumentationRegistry.getInstrumentation().targetContext
+    private lateinit var db: SQLiteDatabase
+    private lateinit var writer: StepCountWriter
+    private val day = StepCountDbHelper.getStartOfDay(System.currentTimeMillis())
+
+    @Before
+    fun setUp() {
+        db = SQLiteDatabase.create(null)
+        StepCountDbHelper(appContext).onCreate(db)
+        writer = StepCountWriter(db)
+    }
+
+    @After
+    fun tearDown() {
+        writer.close()
+        db.close()
+    }
+
+    @Test
+    fun insertsFirstEntry() {
+        assertFalse(writer.extendOrInsert(10, 1, day + HOUR, day))
+        assertEquals(listOf(Entry(10, 1, day + HOUR)), entries())
+        assertEquals(10, summarySteps(day, 1))
+    }
+
+    @Test
+    fun extendsEntryOfCurrentInterval() {
+        writer.extendOrInsert(10, 1, day + HOUR, day + HOUR)
+        assertTrue(writer.extendOrInsert(5, 1, day + HOUR + 1000, day + HOUR))
+        assertEquals(listOf(Entry(15, 1, day + HOUR + 1000)), entries())
+        assertEquals(15, summarySteps(day, 1))
+    }
+
+    @Test
+    fun startsNewEntryInNewIntervalOrWalkingMode() {
+        writer.extendOrInsert(10, 1, day + HOUR, day + HOUR)
+        assertFalse(writer.extendOrInsert(5, 1, day + 2 * HOUR, day + 2 * HOUR))
+        assertFalse(writer.extendOrInsert(3, 2, day + 2 * HOUR + 1000, day + 2 * HOUR))
+        assertEquals(
+            listOf(Entry(10, 1, day + HOUR), Entry(5, 1, day + 2 * HOUR), Entry(3, 2, day + 2 * HOUR + 1000)),
+            entries()
+        )
+        assertEquals(15, summarySteps(day, 1))
+        assertEquals(3, summarySteps(day, 2))
+    }
+
+    @Test
+    fun extendsEmptyEntryAcrossIntervals() {
+        writer.extendOrInsert(0, 1, day + HOUR, day + HOUR)
+        assertTrue(writer.extendOrInsert(0, 1, day + 3 * HOUR, day + 3 * HOUR))
+        assertEquals(listOf(Entry(0, 1, day + 3 * HOUR)), entries())
+    }
+
+    @Test
+    fun updateMovesStepsBetweenDays() {
+        val nextDay = StepCountDbHelper.getStartOfDay(day + 36 * HOUR)
+        writer.insert(10, 1, day + HOUR)
+        assertEquals(1, writer.update(12, 1, nextDay + HOUR, day + HOUR))
+        assertEquals(0, summarySteps(day, 1))
+        assertEquals(12, summarySteps(nextDay, 1))
+
+        assertEquals(1, writer.delete(nextDay + HOUR))
+        assertEquals(0, summarySteps(nextDay, 1))
+        assertTrue(entries().isEmpty())
+    }
+
+    @Test
+    fun keepsCumulativeStepsWhenEditingHistory() {
+        writer.extendOrInsert(10, 1, day + HOUR, day + HOUR)
+        writer.extendOrInsert(20, 2, day + 3 * HOUR, day + 3 * HOUR)
+        writer.extendOrInsert(5, 2, day + 3 * HOUR + 1000, day + 3 * HOUR)
+        assertEquals(listOf(10L to 10L, 35L to 25L), cumulativeSteps())
+
+        // insert before, move behind and delete the first entry
+        writer.insert(7, 2, day + 2 * HOUR)
+        assertEquals(listOf(10L to 10L, 17L to 7L, 42L to 32L), cumulativeSteps())
+        writer.update(10, 1, day + 4 * HOUR, day + HOUR)
+        assertEquals(listOf(7L to 7L, 32L to 32L, 42L to 10L), cumulativeSteps())
+        writer.delete(day + 2 * HOUR)
+        assertEquals(listOf(25L to 25L, 35L to 10L), cumulativeSteps())
+    }
+
+    @Test
+    fun keepsCumulativeStepsOfEntriesWithTheSameTimestamp() {
+        writer.insert(10, 1, day + HOUR)
+        writer.insert(20, 2, day + 2 * HOUR)
+        writer.insert(30, 1, day + 2 * HOUR)
+        writer.insert(40, 2, day + 3 * HOUR)
+        val sums = listOf(10L to 10L, 30L to 20L, 60L to 40L, 100L to 60L)
+        assertEquals(sums, cumulativeSteps())
+
+        // a rebuild orders the entries the same way
+        db.beginTransaction()
+        try {
+            StepCountDbHelper.rebuildCumulativeSteps(db)
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+        assertEquals(sums, cumulativeSteps())
+
+        // the last entry of the same timestamp is extended
+        writer.insert(5, 2, day + 3 * HOUR)
+        assertTrue(writer.extendOrInsert(1, 2, day + 3 * HOUR + 1000, day + 3 * HOUR))
+        assertEquals(sums + listOf(106L to 66L), cumulativeSteps())
+    }
+
+    @Test
+    fun countsIntervalsWithEntriesOfTheSameTimestamp() {
+        val helper = StepCountDbHelper(appContext, null)
+        try {
+            helper.writer.insert(10, 1, day + HOUR)
+            helper.writer.insert(20, 2, day + 2 * HOUR)
+            helper.writer.insert(30, 1, day + 2 * HOUR)
+            helper.writer.insert(40, 2, day + 3 * HOUR)
+
+            assertEquals(100L, helper.getStepCountForInterval(day, day + 3 * HOUR))
+            assertEquals(50L, helper.getStepCountForInterval(day + 2 * HOUR, day + 2 * HOUR))
+            assertEquals(mapOf(1L to 40L, 2L to 60L), helper.getStepCountsPerWalkingMode(day, day + 3 * HOUR))
+
+            // later entries carry on the right sums
+            helper.writer.insert(5, 1, day + 4 * HOUR)
+            assertEquals(105L, helper.getStepCountForInterval(day, day + 4 * HOUR))
+            assertEquals(mapOf(1L to 5L, 2L to 40L), helper.getStepCountsPerWalkingMode(day + 2 * HOUR + 1, day + 4 * HOUR))
+        } finally {
+            helper.close()
+        }
+    }
+
+    private data class Entry(val steps: Int, val walkingMode: Long, val timestamp: Long)
+
+    private fun cumulativeSteps(): List<Pair<Long, Long>> {
+        val sums = ArrayList<Pair<Long, Long>>()
+        db.rawQuery("SELECT cumulative_steps, mode_cumulative_steps FROM stepcount ORDER BY timestamp, _id", null).use {
+            while (it.moveToNext()) {
+                sums.add(it.getLong(0) to it.getLong(1))
+            }
+        }
+        return sums
+    }
+
+    private fun entries(): List<Entry> {
+        val entries = ArrayList<Entry>()
+        db.rawQuery("SELECT stepcount, walking_mode, timestamp FROM stepcount ORDER BY timestamp, _id", null).use {
+            while (it.moveToNext()) {
+                entries.add(Entry(it.getInt(0), it.getLong(1), it.getLong(2)))
+            }
+        }
+        return entries
+    }
+
+    private fun summarySteps(day: Long, walkingMode: Int): Int {
+        db.rawQuery("SELECT stepcount FROM daily_summary WHERE day = ? AND walking_mode = ?", arrayOf(day.toString(), walkingMode.toString())).use {
+            return if (it.moveToFirst()) it.getInt(0) else 0
+        }
+    }
+
+    companion object {
+        private const val HOUR = 3600000L
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.clonepedometer.persistence
+
+import android.database.sqlite.SQLiteDatabase
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.example.clonepedometer.models.Training
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Calendar
+
+/**
+ * Instrumented tests for the schema of [TrainingDbHelper].
+ * Uses an in-memory database, so the app's data is not touched.
+ */
+@RunWith(AndroidJUnit4::class)
+class TrainingDbHelperTest {
+    private val appContext = InstrumentationRegistry.getInstrumentation().targetContext
+    private val helper = TrainingDbHelper(appContext)
+    private lateinit var db: SQLiteDatabase
+
+    @Before
+    fun setUp() {
+        db = SQLiteDatabase.create(null)
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    @Test
+    fun activeTrainingQueryUsesEndIndex() {
+        helper.onCreate(db)
+        val plan = queryPlan("SELECT _id, name, start, end FROM walkingmodes WHERE end = ?", "0")
+        assertTrue(plan, plan.contains(TrainingDbHelper.INDEX_END))
+    }
+
+    @Test
+    fun upgradeFromVersion1CreatesEndIndex() {
+        // schema of database version 1
+        db.execSQL("CREATE TABLE walkingmodes (_id INTEGER PRIMARY KEY,name TEXT,description TEXT,steps REAL,distance REAL,calories REAL,start REAL,end REAL,feeling REAL )")
+        db.execSQL("INSERT INTO walkingmodes (name, start, end) VALUES ('active', 1000, 0)")
+
+        helper.onUpgrade(db, 1, TrainingDbHelper.DATABASE_VERSION)
+
+        db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?", arrayOf(TrainingDbHelper.INDEX_END)).use {
+            assertTrue(it.moveToFirst())
+        }
+        db.rawQuery("SELECT name FROM walkingmodes WHERE end = ?", arrayOf("0")).use {
+            assertTrue(it.moveToFirst())
+            assertEquals("active", it.getString(0))
+        }
+    }
+
+    @Test
+    fun historyQueryUsesStartIndex() {
+        helper.onCreate(db)
+        val plan = queryPlan("SELECT _id, name, start, end FROM walkingmodes ORDER BY start DESC")
+        assertTrue(plan, plan.contains(TrainingDbHelper.INDEX_START))
+        assertFalse(plan, plan.contains("TEMP B-TREE"))
+    }
+
+    @Test
+    fun upgradeFromVersion2StoresTimesAsIntegers() {
+        // schema of database version 2, times were written as strings
+        db.execSQL("CREATE TABLE walkingmodes (_id INTEGER PRIMARY KEY,name TEXT,description TEXT,steps REAL,distance REAL,calories REAL,start REAL,end REAL,feeling REAL )")
+        db.execSQL("CREATE INDEX walkingmodes_end_idx ON walkingmodes (end)")
+        db.execSQL("INSERT INTO walkingmodes (name, steps, distance, start, end) VALUES ('done', '120.0', '96.5', '1502092800000', '1502096400000')")
+
+        helper.onUpgrade(db, 2, TrainingDbHelper.DATABASE_VERSION)
+
+        db.rawQuery("SELECT typeof(start), typeof(end), typeof(steps), start, end, steps, distance FROM walkingmodes", null).use {
+            assertTrue(it.moveToFirst())
+            assertEquals("integer", it.getString(0))
+            assertEquals("integer", it.getString(1))
+            assertEquals("integer", it.getString(2))
+            assertEquals(1502092800000L, it.getLong(3))
+            assertEquals(1502096400000L, it.getLong(4))
+            assertEquals(120, it.getInt(5))
+            assertEquals(96.5, it.getDouble(6), 1e-9)
+        }
+        for (index in listOf(TrainingDbHelper.INDEX_START, TrainingDbHelper.INDEX_END)) {
+            db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?", arrayOf(index)).use {
+                assertTrue(index, it.moveToFirst())
+            }
+        }
+    }
+
+    @Test
+    fun aggregatesStatisticsOfFinishedTrainings() {
+        val inMemory = TrainingDbHelper(appContext, null)
+        try {
+            val month = Calendar.getInstance()
+            month.set(2017, Calendar.AUGUST, 1, 0, 0, 0)
+            month.set(Calendar.MILLISECOND, 0)
+            val start = month.timeInMillis + 2 * DAY
+            inMemory.addTraining(training("slow", 1000, 600.0, start, start + HOUR))
+            inMemory.addTraining(training("fast", 500, 900.0, start + DAY, start + DAY + HOUR / 2))
+            inMemory.addTraining(training("next month", 100, 50.0, start + 31 * DAY, start + 31 * DAY + HOUR))
+            // the active training is not counted
+            inMemory.addTraining(training("active", 10, 5.0, start + 32 * DAY, 0))
+
+            val perMonth = inMemory.statisticsPerMonth
+            assertEquals(2, perMonth.size)
+            assertEquals(month.timeInMillis, perMonth[0].periodStart)
+            assertEquals(2, perMonth[0].trainingCount)
+            assertEquals(1500L, perMonth[0].steps)
+            assertEquals(1500.0, perMonth[0].distance, 1e-9)
+            assertEquals(HOUR * 3 / 2 / 1000, perMonth[0].duration)
+
+            val all = inMemory.statistics
+            assertEquals(3, all.trainingCount)
+            assertEquals(1550.0 / (HOUR * 5 / 2 / 1000), all.velocity, 1e-9)
+
+            assertEquals("slow", inMemory.getBestTraining(TrainingDbHelper.Record.STEPS).name)
+            assertEquals("fast", inMemory.getBestTraining(TrainingDbHelper.Record.VELOCITY).name)
+        } finally {
+            inMemory.close()
+        }
+    }
+
+    @Test
+    fun storesLastTotalsAfterTrainingWasStopped() {
+        val inMemory = TrainingDbHelper(appContext, null)
+        try {
+            val active = training("active", 10, 8.0, HOUR, 0)
+            val id = inMemory.addTraining(active)
+            // the training is stopped before the service stores its last steps
+            active.id = id
+            active.end = 2 * HOUR
+            inMemory.updateTraining(active)
+
+            assertEquals(1, inMemory.updateTrainingTotals(id, 25, 20.0, 1.5))
+
+            val stopped = inMemory.getTraining(id.toInt())
+            assertEquals(25.0, stopped.steps, 1e-9)
+            assertEquals(20.0, stopped.distance, 1e-9)
+            assertEquals(1.5, stopped.calories, 1e-9)
+            assertEquals(2 * HOUR, stopped.end)
+            assertEquals(0, inMemory.updateTrainingTotals(id + 1, 25, 20.0, 1.5))
+        } finally {
+            inMemory.close()
+        }
+    }
+
+    @Test
+    fun keepsCheckpointedTotalsWhenTrainingStopsRightAfterCheckpoint() {
+        val inMemory = TrainingDbHelper(appContext, null)
+        try {
+            // the model was loaded when the training started
+            val stale = training("active", 0, 0.0, HOUR, 0)
+            val id = inMemory.addTraining(stale)
+            stale.id = id
+            assertEquals(1, inMemory.updateTrainingTotals(id, 25, 20.0, 1.5))
+
+            // no steps since the checkpoint, so the service does not store the totals again
+            stale.end = 2 * HOUR
+            stale.feeling = 3f
+            assertEquals(1, inMemory.updateTraining(stale))
+
+            val stopped = inMemory.getTraining(id.toInt())
+            assertEquals(25.0, stopped.steps, 1e-9)
+            assertEquals(20.0, stopped.distance, 1e-9)
+            assertEquals(1.5, stopped.calories, 1e-9)
+            assertEquals(2 * HOUR, stopped.end)
+            assertEquals(3f, stopped.feeling, 1e-6f)
+            // the saved item holds the stored totals
+            assertEquals(25.0, stale.steps, 1e-9)
+
+            // a finished training is updated completely
+            stopped.steps = 30.0
+            inMemory.updateTraining(stopped)
+            assertEquals(30.0, inMemory.getTraining(id.toInt()).steps, 1e-9)
+        } finally {
+            inMemory.close()
+        }
+    }
+
+    private fun training(name: String, steps: Int, distance: Double, start: Long, end: Long): Training {
+        val training = Training()
+        training.name = name
+        training.steps = steps.toDouble()
+        training.distance = distance
+        training.start = start
+        training.end = end
+        return training
+    }
+
+    private fun queryPlan(sql: String, vararg args: String): String {
+        val plan = StringBuilder()
+        db.rawQuery("EXPLAIN QUERY PLAN $sql", args).use { cursor ->
+            val detail = cursor.getColumnIndexOrThrow("detail")
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n')
+            }
+        }
+        return plan.toString()
+    }
+
+    companion object {
+        private const val HOUR = 3600000L
+        private const val DAY = 24 * HOUR
+    }
+}
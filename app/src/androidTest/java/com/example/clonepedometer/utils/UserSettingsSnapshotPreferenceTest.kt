@@ -0,0 +1,69 @@
+package com.example.clonepedometer.utils
+
+import android.content.SharedPreferences
+import android.preference.PreferenceManager
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.example.clonepedometer.R
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Instrumented tests for updating the [UserSettingsSnapshot] when preferences change.
+ * The changed preferences are restored afterwards.
+ */
+@RunWith(AndroidJUnit4::class)
+class UserSettingsSnapshotPreferenceTest {
+    private val instrumentation = InstrumentationRegistry.getInstrumentation()
+    private val appContext = instrumentation.targetContext
+    private val sharedPref: SharedPreferences = PreferenceManager.getDefaultSharedPreferences(appContext)
+    private val weightKey = appContext.getString(R.string.pref_weight)
+    private var savedWeight: String? = null
+
+    @Before
+    fun setUp() {
+        savedWeight = sharedPref.getString(weightKey, null)
+        // registers the listener
+        UserSettingsSnapshot.get(appContext)
+    }
+
+    @After
+    fun tearDown() {
+        sharedPref.edit().putString(weightKey, savedWeight).remove(UNRELATED_KEY).commit()
+        UserSettingsSnapshot.refresh(appContext)
+    }
+
+    @Test
+    fun fallsBackToDefaultForMalformedWeight() {
+        change { putString(weightKey, "72,5 kg") }
+
+        val defaultWeight = appContext.getString(R.string.pref_default_weight).toFloat()
+        assertEquals(defaultWeight, UserSettingsSnapshot.get(appContext).bodyWeight)
+        assertEquals(defaultWeight, UserSettingsSnapshot.refresh(appContext).bodyWeight)
+    }
+
+    @Test
+    fun rebuildsOnlyForItsPreferences() {
+        change { putString(weightKey, "70") }
+        val snapshot = UserSettingsSnapshot.get(appContext)
+
+        change { putString(UNRELATED_KEY, "value") }
+        assertSame(snapshot, UserSettingsSnapshot.get(appContext))
+
+        change { putString(weightKey, "80") }
+        assertEquals(80f, UserSettingsSnapshot.get(appContext).bodyWeight)
+    }
+
+    private fun change(edit: SharedPreferences.Editor.() -> Unit) {
+        sharedPref.edit().apply(edit).commit()
+        // listeners are notified on the main thread
+        instrumentation.waitForIdleSync()
+    }
+
+    companion object {
+        private const val UNRELATED_KEY = "com.example.clonepedometer.pref.test_unrelated"
+    }
+}
@@ -16,6 +16,7 @@ import android.util.Log
 import android.view.View
 import android.widget.Toast
 import androidx.appcompat.app.AppCompatActivity
+import androidx.core.content.ContextCompat
 import androidx.localbroadcastmanager.content.LocalBroadcastManager
 import com.example.clonepedometer.databinding.ActivityMainBinding
 import com.example.clonepedometer.models.ActivityChartDataSet
@@ -23,19 +24,28 @@ import com.example.clonepedometer.models.ActivityDayChart
 import com.example.clonepedometer.models.ActivitySummary
 import com.example.clonepedometer.models.StepCount
 import com.example.clonepedometer.models.WalkingMode
+import com.example.clonepedometer.persistence.PersistenceExecutor
+import com.example.clonepedometer.persistence.StepAggregationHelper
 import com.example.clonepedometer.persistence.StepCountPersistenceHelper
 import com.example.clonepedometer.persistence.WalkingModePersistenceHelper
 import com.example.clonepedometer.services.AbstractStepDetectorService
 import com.example.clonepedometer.services.MovementSpeedService
+import com.example.clonepedometer.services.StepEventBus
 import com.example.clonepedometer.utils.StepDetectionServiceHelper
 import com.example.clonepedometer.utils.UnitHelper
 import java.text.SimpleDateFormat
 import java.util.Calendar
 import java.util.TimeZone
+import java.util.concurrent.Callable
 
 class MainActivity : AppCompatActivity() {
 
     private val broadcastReceiver: BroadcastReceiver = BroadcastReceiver()
+    private val stepListener = StepEventBus.StepListener { _, _ ->
+        updateData()
+        updateView()
+    }
+    private var stepSubscription: StepEventBus.Subscription? = null
     private val mServiceConnection: ServiceConnection = object : ServiceConnection {
         override fun onServiceDisconnected(name: ComponentName) {
             myBinder = null
@@ -56,7 +66,6 @@ class MainActivity : AppCompatActivity() {
 
         val filterRefreshUpdate = IntentFilter()
         filterRefreshUpdate.addAction(StepCountPersistenceHelper.BROADCAST_ACTION_STEPS_SAVED)
-        filterRefreshUpdate.addAction(AbstractStepDetectorService.BROADCAST_ACTION_STEPS_DETECTED)
         LocalBroadcastManager.getInstance(this)
             .registerReceiver(broadcastReceiver, filterRefreshUpdate)
 
@@ -81,7 +90,7 @@ class MainActivity : AppCompatActivity() {
             stopDistanceMeasurement()
         }
 
-        getStepCounts()
+        loadSavedDistance()
         updateData()
         updateView()
     }
@@ -90,49 +99,45 @@ class MainActivity : AppCompatActivity() {
         private lateinit var binding : ActivityMainBinding
         val LOG_CLASS: String = MainActivity::class.java.getName()
         private val menuWalkingModes: Map<Int, WalkingMode>? = null
-        private var stepCounts: List<StepCount>? = null
+        /**
+         * Distance of the steps saved since the start of the measurement
+         */
+        private var savedDistance = 0.0
         private var start_after_storing_steps = false
         var start_timestamp: Long? = null
         private var distance = 0.0
         private var myBinder: AbstractStepDetectorService.StepDetectorBinder? = null
-        protected fun getStepCounts() {
-            if (start_timestamp == null) {
-                return
-            }
-            stepCounts = StepCountPersistenceHelper.getStepCountsForInterval(
-                start_timestamp!!,
-                Calendar.getInstance().getTimeInMillis(),
-                binding.root.context
-            )
+        /**
+         * Loads the distance of the saved steps since the start of the measurement in background
+         * and updates the view afterwards.
+         */
+        protected fun loadSavedDistance() {
+            val start = start_timestamp ?: return
+            val context = binding.root.context.applicationContext
+            PersistenceExecutor.submit(Callable {
+                StepAggregationHelper.getTotalsForInterval(start, Calendar.getInstance().timeInMillis, context).distance
+            }, PersistenceExecutor.Callback { result ->
+                savedDistance = result
+                updateData()
+                updateView()
+            })
         }
         /**
          * Updates the data, gets the current step counts from step detector service.
-         * It summaries the step data in stepCount, distance and calories.
+         * It adds the distance of the steps which are not in database to the saved distance.
          */
         protected fun updateData() {
             if (start_timestamp == null) {
                 return
             }
-            val stepCounts: MutableList<StepCount?> = ArrayList<StepCount?>(
-                stepCounts
-            )
+            var distance = savedDistance
             // Add the steps which are not in database.
             if (myBinder != null) {
                 val s = StepCount()
-                if (stepCounts.size > 0) {
-                    s.startTime = stepCounts[stepCounts.size - 1]!!.endTime
-                } else {
-                    s.startTime = start_timestamp!!
-                }
-                s.endTime = Calendar.getInstance().getTimeInMillis() // now
                 s.stepCount = myBinder!!.stepsSinceLastSave()
                 s.walkingMode =
                     WalkingModePersistenceHelper.getActiveMode(binding.root.context) // add current walking mode
-                stepCounts.add(s)
-            }
-            var distance = 0.0
-            for (s in stepCounts) {
-                distance += s!!.distance
+                distance += s.distance
             }
             this.distance = distance
         }
@@ -177,9 +182,9 @@ class MainActivity : AppCompatActivity() {
         super.onResume()
         val filterRefreshUpdate = IntentFilter()
         filterRefreshUpdate.addAction(StepCountPersistenceHelper.BROADCAST_ACTION_STEPS_SAVED)
-        filterRefreshUpdate.addAction(AbstractStepDetectorService.BROADCAST_ACTION_STEPS_DETECTED)
         LocalBroadcastManager.getInstance(this)
             .registerReceiver(broadcastReceiver, filterRefreshUpdate)
+        stepSubscription = StepEventBus.getInstance().subscribe(stepListener, ContextCompat.getMainExecutor(this))
         val sharedPref = PreferenceManager.getDefaultSharedPreferences(this)
         start_timestamp =
             sharedPref.getLong(getString(R.string.pref_distance_measurement_start_timestamp), -1)
@@ -191,7 +196,7 @@ class MainActivity : AppCompatActivity() {
             applicationContext.bindService(serviceIntent, mServiceConnection, BIND_AUTO_CREATE)
         }
         // Force refresh of view.
-        getStepCounts()
+        loadSavedDistance()
         updateView()
     }
 
@@ -201,6 +206,8 @@ class MainActivity : AppCompatActivity() {
             myBinder = null
         }
         LocalBroadcastManager.getInstance(this).unregisterReceiver(broadcastReceiver)
+        StepEventBus.getInstance().unsubscribe(stepSubscription)
+        stepSubscription = null
         super.onPause()
     }
 
@@ -222,16 +229,12 @@ class MainActivity : AppCompatActivity() {
                 return
             }
             when (intent.action) {
-                AbstractStepDetectorService.BROADCAST_ACTION_STEPS_DETECTED -> {
-                    updateData()
-                    updateView()
-                }
-
                 StepCountPersistenceHelper.BROADCAST_ACTION_STEPS_SAVED -> {
                     if (start_timestamp == null && start_after_storing_steps) {
                         start_timestamp = Calendar.getInstance().time.time
                         start_after_storing_steps = false
                         distance = 0.0
+                        savedDistance = 0.0
                         val sharedPref =
                             PreferenceManager.getDefaultSharedPreferences(binding.root.context.applicationContext)
                         val editor = sharedPref.edit()
@@ -242,13 +245,13 @@ class MainActivity : AppCompatActivity() {
                         editor.apply()
                         StepDetectionServiceHelper.startAllIfEnabled(binding.root.context.applicationContext)
                     }
-                    getStepCounts()
+                    loadSavedDistance()
                     updateData()
                     updateView()
                 }
 
                 WalkingModePersistenceHelper.BROADCAST_ACTION_WALKING_MODE_CHANGED -> {
-                    getStepCounts()
+                    loadSavedDistance()
                     updateData()
                     updateView()
                 }
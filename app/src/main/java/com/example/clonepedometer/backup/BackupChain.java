@@ -0,0 +1,154 @@
+package com.example.clonepedometer.backup;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.secuso.privacyfriendlybackup.api.backup.BinaryFormat;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Keeps the members of the incremental backup: a full backup (the base) followed by the changes
+ * since then (the deltas), each a deflate member of the {@link BinaryFormat}. A backup appends one
+ * delta and sends the whole chain, so the databases are only read and encoded as far as they
+ * changed. The restorer reads the chain like a single backup and applies the deltas in order.
+ * <p>
+ * The chain is re-based, i.e. replaced by a new full backup, if it is missing or damaged, the
+ * step count database version changed or the deltas became too many or too large, so restoring
+ * stays fast. The state of the chain is kept in the backup_state preferences.
+ */
+public class BackupChain {
+
+    public static final String PREF_NAME = "backup_state";
+    private static final String KEY_CHAIN_SIZE = "chain_size";
+    private static final String KEY_BASE_SIZE = "base_size";
+    private static final String KEY_DELTA_COUNT = "delta_count";
+    private static final String KEY_DATABASE_VERSION = "database_version";
+
+    private static final String CHAIN_FILE = "backup_chain";
+
+    /**
+     * Maximum number of deltas before the chain is re-based
+     */
+    static final int MAX_DELTAS = 30;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final SharedPreferences state;
+    private boolean rebase;
+
+    public BackupChain(Context context) {
+        file = new File(context.getFilesDir(), CHAIN_FILE);
+        state = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Drops the chain, so the next backup is a full one. Has to be called whenever the databases
+     * were replaced, e.g. after restoring a backup.
+     *
+     * @param context The application context
+     */
+    public static void reset(Context context) {
+        new BackupChain(context).reset();
+    }
+
+    public void reset() {
+        state.edit().clear().commit();
+        file.delete();
+    }
+
+    /**
+     * Checks whether the next member has to be a full backup.
+     *
+     * @param databaseVersion The version of the step count database
+     * @return true if the chain has to be re-based
+     */
+    public boolean needsRebase(int databaseVersion) {
+        long chainSize = state.getLong(KEY_CHAIN_SIZE, 0);
+        long baseSize = state.getLong(KEY_BASE_SIZE, 0);
+        return chainSize <= 0
+                || file.length() != chainSize
+                || state.getInt(KEY_DATABASE_VERSION, -1) != databaseVersion
+                || state.getInt(KEY_DELTA_COUNT, 0) >= MAX_DELTAS
+                // restoring the deltas should not take longer than restoring the base
+                || chainSize - baseSize > baseSize;
+    }
+
+    /**
+     * Starts the next member, a full backup if the chain has to be re-based else a delta.
+     * The member becomes part of the chain with {@link #commit(int)} after the returned stream was
+     * closed.
+     *
+     * @param databaseVersion The version of the step count database
+     * @return the stream to write the sections of the member to
+     */
+    public DataOutputStream startMember(int databaseVersion) throws IOException {
+        rebase = needsRebase(databaseVersion);
+        if (rebase) {
+            // invalidate the old chain before it is overwritten
+            state.edit().clear().commit();
+        }
+        return BinaryFormat.openMemberWriter(new FileOutputStream(file, !rebase));
+    }
+
+    /**
+     * @return true if the current member is a full backup
+     */
+    public boolean isRebase() {
+        return rebase;
+    }
+
+    /**
+     * Stores the state of the chain after a member was written.
+     *
+     * @param databaseVersion The version of the step count database
+     */
+    public void commit(int databaseVersion) {
+        long chainSize = file.length();
+        SharedPreferences.Editor editor = state.edit();
+        editor.putLong(KEY_CHAIN_SIZE, chainSize);
+        editor.putInt(KEY_DATABASE_VERSION, databaseVersion);
+        if (rebase) {
+            editor.putLong(KEY_BASE_SIZE, chainSize);
+            editor.putInt(KEY_DELTA_COUNT, 0);
+        } else {
+            editor.putInt(KEY_DELTA_COUNT, state.getInt(KEY_DELTA_COUNT, 0) + 1);
+        }
+        editor.commit();
+    }
+
+    /**
+     * Writes the chain as backup, i.e. the header, all members and the end of the sections.
+     * Closes the given stream.
+     * <p>
+     * Each backup has to be restorable on its own, so the whole chain is sent every time and this
+     * is not cheaper than a full backup. Only reading and encoding the databases is incremental.
+     * As {@link #needsRebase(int)} re-bases a chain larger than twice its base, at most about
+     * twice the size of a full backup is written.
+     *
+     * @param output The stream to write the backup to
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        BinaryFormat.writeHeader(output);
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, count);
+            }
+        } finally {
+            input.close();
+        }
+        DataOutputStream end = BinaryFormat.openMemberWriter(output);
+        BinaryFormat.writeString(end, BinaryFormat.END_OF_SECTIONS);
+        end.close();
+    }
+}
@@ -2,6 +2,7 @@ package com.example.clonepedometer.backup;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.preference.PreferenceManager;
 import android.util.JsonWriter;
 import android.util.Log;
@@ -10,17 +11,24 @@ import androidx.annotation.NonNull;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.example.clonepedometer.PFAPedometerApplication;
+import com.example.clonepedometer.R;
 import com.example.clonepedometer.persistence.StepCountDbHelper;
 import com.example.clonepedometer.persistence.TrainingDbHelper;
 import com.example.clonepedometer.persistence.WalkingModeDbHelper;
 
+import org.secuso.privacyfriendlybackup.api.backup.BinaryDatabaseUtil;
+import org.secuso.privacyfriendlybackup.api.backup.BinaryFormat;
 import org.secuso.privacyfriendlybackup.api.backup.DatabaseUtil;
 import org.secuso.privacyfriendlybackup.api.backup.PreferenceUtil;
 import org.secuso.privacyfriendlybackup.api.pfa.IBackupCreator;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.nio.charset.Charset;
+import java.util.Collections;
 
 
 public class BackupCreator implements IBackupCreator {
@@ -32,6 +40,23 @@ public class BackupCreator implements IBackupCreator {
         ((PFAPedometerApplication) context.getApplicationContext()).lock();
 
         Log.d("PFA BackupCreator", "createBackup() started");
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean success;
+        if (pref.getBoolean(context.getString(R.string.pref_backup_as_json), false)) {
+            success = writeJsonBackup(context, outputStream);
+        } else {
+            success = writeBinaryBackup(context, outputStream);
+        }
+
+        ((PFAPedometerApplication) context.getApplicationContext()).release();
+        return success;
+    }
+
+    /**
+     * Writes all databases and preferences as one json object. This format is larger and slower
+     * than the binary one, but it is readable without the app and by its older versions.
+     */
+    private static boolean writeJsonBackup(Context context, OutputStream outputStream) {
         OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charset.forName("UTF-8"));
         JsonWriter writer = new JsonWriter(outputStreamWriter);
         writer.setIndent("");
@@ -64,26 +89,140 @@ public class BackupCreator implements IBackupCreator {
 
             Log.d("PFA BackupCreator", "Writing preferences");
             writer.name("preferences");
-            SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
-            PreferenceUtil.writePreferences(writer, pref);
+            PreferenceUtil.writePreferences(writer, PreferenceManager.getDefaultSharedPreferences(context));
 
             writer.name("tutorial_preferences");
-            pref = context.getSharedPreferences(PrefManager.PREF_NAME, 0);
-            PreferenceUtil.writePreferences(writer, pref);
+            PreferenceUtil.writePreferences(writer, context.getSharedPreferences(PrefManager.PREF_NAME, 0));
 
             writer.endObject();
             writer.close();
 
             Log.d("PFA BackupCreator", "Backup created successfully");
-
-            ((PFAPedometerApplication) context.getApplicationContext()).release();
             return true;
         } catch (Exception e) {
             Log.e("PFA BackupCreator", "Error occurred", e);
-            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Writes the next member of the {@link BackupChain} in the binary format, followed by the
+     * whole chain.
+     */
+    private static boolean writeBinaryBackup(Context context, OutputStream outputStream) {
+        BackupChain chain = new BackupChain(context);
+
+        try {
+            SupportSQLiteDatabase dataBase1 = DatabaseUtil.getSupportSQLiteOpenHelper(context, StepCountDbHelper.DATABASE_NAME).getWritableDatabase();
+            int version = dataBase1.getVersion();
+
+            // see BackupRestorer for the json format
+            DataOutputStream out = chain.startMember(version);
+
+            if (chain.isRebase()) {
+                Log.d("PFA BackupCreator", "Writing StepCount database");
+                BinaryFormat.writeString(out, "database_stepCount");
+                writeStepCountDatabase(out, dataBase1);
+            } else {
+                Log.d("PFA BackupCreator", "Writing StepCount changes");
+                BinaryFormat.writeString(out, "delta_stepCount");
+                writeStepCountDelta(out, dataBase1);
+            }
+            dataBase1.close();
+
+
+            // the other databases and the preferences are small, so each member contains them completely
+            SupportSQLiteDatabase dataBase2 = DatabaseUtil.getSupportSQLiteOpenHelper(context, TrainingDbHelper.DATABASE_NAME).getReadableDatabase();
+
+            Log.d("PFA BackupCreator", "Writing Training database");
+            BinaryFormat.writeString(out, "database_trainings");
+            BinaryDatabaseUtil.writeDatabase(out, dataBase2);
+            dataBase2.close();
+
+            SupportSQLiteDatabase dataBase3 = DatabaseUtil.getSupportSQLiteOpenHelper(context, WalkingModeDbHelper.DATABASE_NAME).getReadableDatabase();
+
+            Log.d("PFA BackupCreator", "Writing WalkingMode database");
+            BinaryFormat.writeString(out, "database_walkingMode");
+            BinaryDatabaseUtil.writeDatabase(out, dataBase3);
+            dataBase3.close();
+
 
-            ((PFAPedometerApplication) context.getApplicationContext()).release();
+            // preferences are few, so they are kept as json
+            Log.d("PFA BackupCreator", "Writing preferences");
+            BinaryFormat.writeString(out, "preferences");
+            BinaryFormat.writeString(out, toJson(PreferenceManager.getDefaultSharedPreferences(context)));
+
+            BinaryFormat.writeString(out, "tutorial_preferences");
+            BinaryFormat.writeString(out, toJson(context.getSharedPreferences(PrefManager.PREF_NAME, 0)));
+
+            out.close();
+            chain.commit(version);
+
+            chain.writeTo(outputStream);
+
+            Log.d("PFA BackupCreator", "Backup created successfully");
+            return true;
+        } catch (Exception e) {
+            Log.e("PFA BackupCreator", "Error occurred", e);
+            // the chain may contain an incomplete member
+            chain.reset();
             return false;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes the whole step count database. Writing it and resetting the time of the earliest
+     * change happen in one transaction, so the next delta contains every change made afterwards.
+     */
+    private static void writeStepCountDatabase(DataOutputStream out, SupportSQLiteDatabase db) throws IOException {
+        db.beginTransaction();
+        try {
+            setRollupState(db, StepCountDbHelper.STATE_BACKUP_CHANGED_SINCE, Long.MAX_VALUE);
+            BinaryDatabaseUtil.writeDatabase(out, db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Writes the entries changed since the last backup, the other tables of the step count database
+     * completely. Reading and resetting the time of the earliest change happen in one transaction,
+     * so no change gets lost.
+     */
+    private static void writeStepCountDelta(DataOutputStream out, SupportSQLiteDatabase db) throws IOException {
+        db.beginTransaction();
+        try {
+            long changedSince = getRollupState(db, StepCountDbHelper.STATE_BACKUP_CHANGED_SINCE, Long.MIN_VALUE);
+            long rawBoundary = getRollupState(db, StepCountDbHelper.STATE_RAW_BOUNDARY, Long.MIN_VALUE);
+            setRollupState(db, StepCountDbHelper.STATE_BACKUP_CHANGED_SINCE, Long.MAX_VALUE);
+            BinaryDatabaseUtil.writeDatabaseDelta(out, db, Collections.singletonList(new BinaryDatabaseUtil.TableRange(
+                    StepCountDbHelper.TABLE_NAME, StepCountDbHelper.KEY_TIMESTAMP, changedSince, rawBoundary)));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static long getRollupState(SupportSQLiteDatabase db, String name, long defaultValue) {
+        Cursor c = db.query("SELECT " + StepCountDbHelper.KEY_VALUE + " FROM " + StepCountDbHelper.ROLLUP_STATE_TABLE_NAME +
+                " WHERE " + StepCountDbHelper.KEY_NAME + " = ?", new Object[]{name});
+        long value = c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : defaultValue;
+        c.close();
+        return value;
+    }
+
+    private static void setRollupState(SupportSQLiteDatabase db, String name, long value) {
+        db.execSQL("INSERT OR REPLACE INTO " + StepCountDbHelper.ROLLUP_STATE_TABLE_NAME +
+                " (" + StepCountDbHelper.KEY_NAME + ", " + StepCountDbHelper.KEY_VALUE + ") VALUES (?, ?)", new Object[]{name, value});
+    }
+
+    private static String toJson(SharedPreferences pref) throws IOException {
+        StringWriter stringWriter = new StringWriter();
+        JsonWriter writer = new JsonWriter(stringWriter);
+        writer.setIndent("");
+        PreferenceUtil.writePreferences(writer, pref);
+        writer.close();
+        return stringWriter.toString();
+    }
+}
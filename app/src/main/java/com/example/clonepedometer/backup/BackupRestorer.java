@@ -8,26 +8,35 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.util.JsonReader;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
 
+import com.example.clonepedometer.persistence.DatabaseProvider;
+import com.example.clonepedometer.persistence.PersistenceExecutor;
 import com.example.clonepedometer.persistence.StepCountDbHelper;
 import com.example.clonepedometer.persistence.TrainingDbHelper;
 import com.example.clonepedometer.persistence.WalkingModeDbHelper;
 
+import org.secuso.privacyfriendlybackup.api.backup.BinaryDatabaseUtil;
+import org.secuso.privacyfriendlybackup.api.backup.BinaryFormat;
 import org.secuso.privacyfriendlybackup.api.backup.DatabaseUtil;
 import org.secuso.privacyfriendlybackup.api.backup.FileUtil;
 import org.secuso.privacyfriendlybackup.api.pfa.IBackupRestorer;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 public class BackupRestorer implements IBackupRestorer {
 
@@ -44,10 +53,7 @@ public class BackupRestorer implements IBackupRestorer {
         if (!n2.equals("content")) {
             throw new RuntimeException("Unknown value " + n2);
         }
-        DatabaseUtil.deleteRoomDatabase(context, "restoreDatabase");
-        SupportSQLiteDatabase db = DatabaseUtil.getSupportSQLiteOpenHelper(context, "restoreDatabase", version).getWritableDatabase();
-        db.beginTransaction();
-        db.setVersion(version);
+        SupportSQLiteDatabase db = openRestoreDatabase(context, version);
 
         DatabaseUtil.readDatabaseContent(reader, db);
 
@@ -57,10 +63,53 @@ public class BackupRestorer implements IBackupRestorer {
 
         reader.endObject();
 
+        replaceDatabase(context, dbName);
+    }
+
+    private void readBinaryDatabase(@NonNull DataInputStream input, @NonNull Context context, String dbName) throws IOException {
+        int version = BinaryDatabaseUtil.readVersion(input);
+        SupportSQLiteDatabase db = openRestoreDatabase(context, version);
+
+        BinaryDatabaseUtil.readDatabaseContent(input, db);
+
+        db.setTransactionSuccessful();
+        db.endTransaction();
+        db.close();
+
+        replaceDatabase(context, dbName);
+    }
+
+    /**
+     * Applies the changes of an incremental backup to the database restored before, see {@link BackupChain}.
+     */
+    private void readBinaryDelta(@NonNull DataInputStream input, @NonNull Context context, String dbName) throws IOException {
+        // the database was replaced by the restored one and is not opened by the app yet
+        SupportSQLiteDatabase db = DatabaseUtil.getSupportSQLiteOpenHelper(context, dbName).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            BinaryDatabaseUtil.readDatabaseDelta(input, db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            db.close();
+        }
+    }
+
+    private SupportSQLiteDatabase openRestoreDatabase(@NonNull Context context, int version) {
+        DatabaseUtil.deleteRoomDatabase(context, "restoreDatabase");
+        SupportSQLiteDatabase db = DatabaseUtil.getSupportSQLiteOpenHelper(context, "restoreDatabase", version).getWritableDatabase();
+        db.beginTransaction();
+        db.setVersion(version);
+        return db;
+    }
+
+    private void replaceDatabase(@NonNull Context context, String dbName) throws IOException {
         // copy file to correct location
         File databaseFile = context.getDatabasePath("restoreDatabase");
-        File oldDBFile = context.getDatabasePath(dbName);
-        oldDBFile.delete();
+        // close the open database first, a stale write-ahead log must not be applied to the restored file.
+        // Runs on the persistence thread, see restoreBackup
+        DatabaseProvider.invalidate();
+        DatabaseProvider.deleteDatabase(context, dbName);
         FileUtil.copyFile(databaseFile, context.getDatabasePath(dbName));
         databaseFile.delete();
     }
@@ -90,6 +139,8 @@ public class BackupRestorer implements IBackupRestorer {
                 case "com.example.clonepedometer.pref.unit_of_energy":
                 case "com.example.clonepedometer.pref.accelerometer_threshold":
                 case "com.example.clonepedometer.pref.accelerometer_step_threshold":
+                case "com.example.clonepedometer.pref.accelerometer_max_report_latency":
+                case "com.example.clonepedometer.pref.step_count_retention_days":
                 case "com.example.clonepedometer.pref.daily_step_goal":
                 case "com.example.clonepedometer.pref.weight":
                 case "com.example.clonepedometer.pref.gender":
@@ -124,48 +175,98 @@ public class BackupRestorer implements IBackupRestorer {
     }
 
     @Override
-    public boolean restoreBackup(@NonNull Context context, @NonNull InputStream restoreData) {
+    public boolean restoreBackup(@NonNull final Context context, @NonNull InputStream restoreData) {
+        // the databases are replaced, so the next backup has to be a full one even if restoring fails
+        BackupChain.reset(context);
         try {
-            InputStreamReader isReader = new InputStreamReader(restoreData);
-            JsonReader reader = new JsonReader(isReader);
-
-            // START
-            reader.beginObject();
-
-            while (reader.hasNext()) {
-                String type = reader.nextName();
-
-                switch (type) {
-                    case "database_stepCount":
-                        readDatabase(reader, context, StepCountDbHelper.DATABASE_NAME);
-                        break;
-                    case "database_trainings":
-                        readDatabase(reader, context, TrainingDbHelper.DATABASE_NAME);
-                        break;
-                    case "database_walkingMode":
-                        readDatabase(reader, context, WalkingModeDbHelper.DATABASE_NAME);
-                        break;
-                    case "preferences":
-                        readDefaultPreferences(reader, context);
-                        break;
-                    case "tutorial_preferences":
-                        readTutorialPreferences(reader, context);
-                        break;
-                    default:
-                        throw new RuntimeException("Can not parse type " + type);
+            final BufferedInputStream input = new BufferedInputStream(restoreData);
+            // no persistence task may write to the databases or reopen them while they are replaced
+            PersistenceExecutor.runAndWait(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    if (BinaryFormat.isBinaryFormat(input)) {
+                        restoreBinaryBackup(context, input);
+                    } else {
+                        restoreJsonBackup(context, input);
+                    }
+
+                    DatabaseProvider.invalidate();
+                    // the restored position refers to the step journal at the time of the backup
+                    DatabaseProvider.getStepCountDbHelper(context).clearJournalPosition();
+                    return null;
                 }
+            });
 
+            return true;
+        } catch (Exception e) {
+            Log.e("PFA BackupRestorer", "Error occurred", e);
+            return false;
+        }
+    }
+
+    private void restoreJsonBackup(@NonNull Context context, @NonNull InputStream restoreData) throws IOException {
+        InputStreamReader isReader = new InputStreamReader(restoreData);
+        JsonReader reader = new JsonReader(isReader);
+
+        // START
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String type = reader.nextName();
+
+            switch (type) {
+                case "database_stepCount":
+                    readDatabase(reader, context, StepCountDbHelper.DATABASE_NAME);
+                    break;
+                case "database_trainings":
+                    readDatabase(reader, context, TrainingDbHelper.DATABASE_NAME);
+                    break;
+                case "database_walkingMode":
+                    readDatabase(reader, context, WalkingModeDbHelper.DATABASE_NAME);
+                    break;
+                case "preferences":
+                    readDefaultPreferences(reader, context);
+                    break;
+                case "tutorial_preferences":
+                    readTutorialPreferences(reader, context);
+                    break;
+                default:
+                    throw new RuntimeException("Can not parse type " + type);
             }
 
-            reader.endObject();
+        }
 
-            StepCountDbHelper.invalidateReference();
-            TrainingDbHelper.invalidateReference();
-            WalkingModeDbHelper.invalidateReference();
+        reader.endObject();
+    }
 
-            return true;
-        } catch (Exception e) {
-            return false;
+    private void restoreBinaryBackup(@NonNull Context context, @NonNull InputStream restoreData) throws IOException {
+        DataInputStream input = BinaryFormat.openReader(restoreData);
+
+        String type;
+        while (!(type = BinaryFormat.readSectionName(input)).equals(BinaryFormat.END_OF_SECTIONS)) {
+            switch (type) {
+                case "database_stepCount":
+                    readBinaryDatabase(input, context, StepCountDbHelper.DATABASE_NAME);
+                    break;
+                case "delta_stepCount":
+                    readBinaryDelta(input, context, StepCountDbHelper.DATABASE_NAME);
+                    break;
+                case "database_trainings":
+                    readBinaryDatabase(input, context, TrainingDbHelper.DATABASE_NAME);
+                    break;
+                case "database_walkingMode":
+                    readBinaryDatabase(input, context, WalkingModeDbHelper.DATABASE_NAME);
+                    break;
+                case "preferences":
+                    // preferences are stored as json in both formats
+                    readDefaultPreferences(new JsonReader(new StringReader(BinaryFormat.readString(input))), context);
+                    break;
+                case "tutorial_preferences":
+                    readTutorialPreferences(new JsonReader(new StringReader(BinaryFormat.readString(input))), context);
+                    break;
+                default:
+                    throw new RuntimeException("Can not parse type " + type);
+            }
         }
     }
 
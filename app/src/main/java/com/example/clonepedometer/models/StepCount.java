@@ -18,12 +18,8 @@
 package com.example.clonepedometer.models;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 
-
-import com.example.clonepedometer.R;
-import com.example.clonepedometer.utils.UnitHelper;
+import com.example.clonepedometer.utils.UserSettingsSnapshot;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -35,12 +31,6 @@ import java.util.Date;
 
 public class StepCount {
 
-    // from https://github.com/bagilevi/android-pedometer/blob/master/src/name/bagi/levente/pedometer/CaloriesNotifier.java
-    private static double METRIC_RUNNING_FACTOR = 1.02784823;
-    private static double METRIC_WALKING_FACTOR = 0.708;
-    private static double METRIC_AVG_FACTOR = (METRIC_RUNNING_FACTOR + METRIC_WALKING_FACTOR) / 2;
-
-
     private int stepCount;
     private long startTime;
     private long endTime;
@@ -96,11 +86,28 @@ public class StepCount {
      * @return the calories in cal
      */
     public double getCalories(Context context){
-        // inspired by https://github.com/bagilevi/android-pedometer/blob/master/src/name/bagi/levente/pedometer/CaloriesNotifier.java
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
-        float bodyWeight = Float.parseFloat(sharedPref.getString(context.getString(R.string.pref_weight),context.getString(R.string.pref_default_weight)));
-        return bodyWeight * METRIC_AVG_FACTOR * UnitHelper.metersToKilometers(getDistance());
+        return StepTotals.calories(getDistance(), getBodyWeight(context));
+    }
+
+    /**
+     * Adds this interval to the given totals
+     *
+     * @param totals the totals to add to
+     */
+    public void addTo(StepTotals totals){
+        totals.add(getStepCount(), (getWalkingMode() != null) ? getWalkingMode().getStepLength() : 0);
     }
+
+    /**
+     * Gets the user's body weight from the settings snapshot
+     *
+     * @param context The application context
+     * @return the body weight in kg
+     */
+    public static float getBodyWeight(Context context){
+        return UserSettingsSnapshot.get(context).getBodyWeight();
+    }
+
     @Override
     public String toString() {
         SimpleDateFormat format = new SimpleDateFormat("dd.MM.yyy HH:mm:ss");
@@ -0,0 +1,69 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.models;
+
+import java.util.List;
+
+/**
+ * One page of step count entries, newest first. Pass it to get the next older page.
+ * <p>
+ * Several entries may end at the same time, so a page remembers the end time and the id of its
+ * oldest entry to continue exactly after it.
+ */
+public class StepCountPage {
+
+    private final List<StepCount> stepCounts;
+    private final long lastTimestamp;
+    private final long lastId;
+    private final boolean hasNext;
+
+    /**
+     * @param stepCounts    The entries of this page in descending order of time
+     * @param lastTimestamp The end time of the oldest entry
+     * @param lastId        The id of the oldest entry
+     * @param hasNext       Whether there are older entries
+     */
+    public StepCountPage(List<StepCount> stepCounts, long lastTimestamp, long lastId, boolean hasNext) {
+        this.stepCounts = stepCounts;
+        this.lastTimestamp = lastTimestamp;
+        this.lastId = lastId;
+        this.hasNext = hasNext;
+    }
+
+    /**
+     * @return the entries in descending order of time
+     */
+    public List<StepCount> getStepCounts() {
+        return stepCounts;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public long getLastId() {
+        return lastId;
+    }
+
+    /**
+     * @return true if there are older entries
+     */
+    public boolean hasNext() {
+        return hasNext;
+    }
+}
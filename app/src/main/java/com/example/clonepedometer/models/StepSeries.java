@@ -0,0 +1,255 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.models;
+
+import java.util.Arrays;
+
+/**
+ * Step count intervals stored column by column in primitive arrays, about 22 bytes per interval
+ * instead of a {@link StepCount} object each. Meant for long histories, e.g. charts over years.
+ * <p>
+ * Intervals have to be added in ascending order of their end time. Walking modes are stored as
+ * index into a small table of walking mode ids, see {@link #getWalkingModeId(int)}.
+ * An interval belongs to a time range if its end time lies in the range, start exclusive and end
+ * inclusive, so an interval ending at midnight belongs to the day before.
+ * Does not depend on the Android framework.
+ */
+public class StepSeries {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private long[] startTimes;
+    private long[] endTimes;
+    private int[] steps;
+    private short[] modes;
+    private int size;
+
+    private long[] walkingModeIds = new long[4];
+    private int walkingModeCount;
+
+    public StepSeries() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The expected number of intervals
+     */
+    public StepSeries(int capacity) {
+        capacity = Math.max(capacity, 1);
+        startTimes = new long[capacity];
+        endTimes = new long[capacity];
+        steps = new int[capacity];
+        modes = new short[capacity];
+    }
+
+    /**
+     * Appends an interval
+     *
+     * @param startTime     The start of the interval
+     * @param endTime       The end of the interval, not before the end of the last interval
+     * @param stepCount     The number of steps
+     * @param walkingModeId The id of the walking mode
+     */
+    public void add(long startTime, long endTime, int stepCount, long walkingModeId) {
+        if (size > 0 && endTime < endTimes[size - 1]) {
+            throw new IllegalArgumentException("Intervals have to be added in ascending order");
+        }
+        if (size == endTimes.length) {
+            int capacity = size * 2;
+            startTimes = Arrays.copyOf(startTimes, capacity);
+            endTimes = Arrays.copyOf(endTimes, capacity);
+            steps = Arrays.copyOf(steps, capacity);
+            modes = Arrays.copyOf(modes, capacity);
+        }
+        startTimes[size] = startTime;
+        endTimes[size] = endTime;
+        steps[size] = stepCount;
+        modes[size] = (short) indexOfWalkingMode(walkingModeId);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getStartTime(int index) {
+        checkIndex(index);
+        return startTimes[index];
+    }
+
+    public long getEndTime(int index) {
+        checkIndex(index);
+        return endTimes[index];
+    }
+
+    public int getStepCount(int index) {
+        checkIndex(index);
+        return steps[index];
+    }
+
+    /**
+     * @param index The index of the interval
+     * @return the index of the interval's walking mode, see {@link #getWalkingModeId(int)}
+     */
+    public int getWalkingModeIndex(int index) {
+        checkIndex(index);
+        return modes[index];
+    }
+
+    /**
+     * @return the number of distinct walking modes
+     */
+    public int getWalkingModeCount() {
+        return walkingModeCount;
+    }
+
+    /**
+     * @param walkingModeIndex The index of the walking mode
+     * @return the id of the walking mode
+     */
+    public long getWalkingModeId(int walkingModeIndex) {
+        if (walkingModeIndex < 0 || walkingModeIndex >= walkingModeCount) {
+            throw new IndexOutOfBoundsException("Walking mode index " + walkingModeIndex);
+        }
+        return walkingModeIds[walkingModeIndex];
+    }
+
+    /**
+     * @return the steps of all intervals
+     */
+    public long sum() {
+        return sum(0, size);
+    }
+
+    /**
+     * @param from The index of the first interval (inclusive)
+     * @param to   The index of the last interval (exclusive)
+     * @return the steps of the intervals
+     */
+    public long sum(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("Range " + from + " to " + to + " of " + size);
+        }
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += steps[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @param start The start of the range (exclusive)
+     * @param end   The end of the range (inclusive)
+     * @return the steps of the intervals ending in the range
+     */
+    public long sumInRange(long start, long end) {
+        if (end <= start) {
+            return 0;
+        }
+        return sum(indexAfter(start), indexAfter(end));
+    }
+
+    /**
+     * Sums the steps per bucket. Bucket i ranges from boundaries[i] (exclusive) to
+     * boundaries[i + 1] (inclusive).
+     *
+     * @param boundaries The ascending bucket boundaries, e.g. the starts of each day and the end of
+     *                   the last day
+     * @return the steps per bucket, one less than boundaries
+     */
+    public long[] sumPerBucket(long[] boundaries) {
+        long[] sums = new long[Math.max(boundaries.length - 1, 0)];
+        if (sums.length == 0) {
+            return sums;
+        }
+        int from = indexAfter(boundaries[0]);
+        for (int bucket = 0; bucket < sums.length; bucket++) {
+            int to = Math.max(from, indexAfter(boundaries[bucket + 1]));
+            sums[bucket] = sum(from, to);
+            from = to;
+        }
+        return sums;
+    }
+
+    /**
+     * @return the steps per walking mode, indexed like {@link #getWalkingModeId(int)}
+     */
+    public long[] sumPerWalkingMode() {
+        long[] sums = new long[walkingModeCount];
+        for (int i = 0; i < size; i++) {
+            sums[modes[i]] += steps[i];
+        }
+        return sums;
+    }
+
+    /**
+     * Calculates the walked distance.
+     *
+     * @param stepLengths The step length in meters per walking mode, indexed like
+     *                    {@link #getWalkingModeId(int)}
+     * @return the distance in meters
+     */
+    public double getDistance(double[] stepLengths) {
+        long[] sums = sumPerWalkingMode();
+        double distance = 0;
+        for (int i = 0; i < sums.length; i++) {
+            distance += sums[i] * stepLengths[i];
+        }
+        return distance;
+    }
+
+    /**
+     * @param time The time
+     * @return the index of the first interval ending after the given time
+     */
+    public int indexAfter(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (endTimes[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int indexOfWalkingMode(long walkingModeId) {
+        for (int i = 0; i < walkingModeCount; i++) {
+            if (walkingModeIds[i] == walkingModeId) {
+                return i;
+            }
+        }
+        if (walkingModeCount == Short.MAX_VALUE) {
+            throw new IllegalStateException("Too many walking modes");
+        }
+        if (walkingModeCount == walkingModeIds.length) {
+            walkingModeIds = Arrays.copyOf(walkingModeIds, walkingModeCount * 2);
+        }
+        walkingModeIds[walkingModeCount] = walkingModeId;
+        return walkingModeCount++;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+    }
+}
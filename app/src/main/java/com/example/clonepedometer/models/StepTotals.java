@@ -0,0 +1,104 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.models;
+
+/**
+ * Accumulates the steps, distance and calories of several step count intervals in one pass.
+ * The body weight is passed once, so no preferences are read per interval.
+ * Does not depend on the Android framework.
+ */
+public class StepTotals {
+
+    // from https://github.com/bagilevi/android-pedometer/blob/master/src/name/bagi/levente/pedometer/CaloriesNotifier.java
+    private static final double METRIC_RUNNING_FACTOR = 1.02784823;
+    private static final double METRIC_WALKING_FACTOR = 0.708;
+    private static final double METRIC_AVG_FACTOR = (METRIC_RUNNING_FACTOR + METRIC_WALKING_FACTOR) / 2;
+
+    private final double bodyWeight;
+    private int steps;
+    private double distance;
+
+    /**
+     * Creates empty totals
+     *
+     * @param bodyWeight The user's body weight in kg
+     */
+    public StepTotals(double bodyWeight) {
+        this.bodyWeight = bodyWeight;
+    }
+
+    /**
+     * Calculates the calories burned by walking the given distance
+     *
+     * @param distance   the distance in meters
+     * @param bodyWeight the user's body weight in kg
+     * @return the calories in kcal
+     */
+    public static double calories(double distance, double bodyWeight) {
+        // inspired by https://github.com/bagilevi/android-pedometer/blob/master/src/name/bagi/levente/pedometer/CaloriesNotifier.java
+        return bodyWeight * METRIC_AVG_FACTOR * distance / 1000;
+    }
+
+    /**
+     * Adds an interval
+     *
+     * @param steps      the steps walked in the interval
+     * @param stepLength the step length of the interval's walking mode in meters
+     */
+    public void add(int steps, double stepLength) {
+        this.steps += steps;
+        this.distance += steps * stepLength;
+    }
+
+    /**
+     * Adds other totals
+     *
+     * @param other the totals to add
+     */
+    public void add(StepTotals other) {
+        this.steps += other.steps;
+        this.distance += other.distance;
+    }
+
+    public void reset() {
+        steps = 0;
+        distance = 0;
+    }
+
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return The distance in meters
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * @return the calories in kcal
+     */
+    public double getCalories() {
+        return calories(distance, bodyWeight);
+    }
+
+    public double getBodyWeight() {
+        return bodyWeight;
+    }
+}
@@ -167,11 +167,11 @@ public class Training {
         values.put(TrainingDbHelper.TrainingSessionEntry.KEY_NAME, this.getName());
         values.put(TrainingDbHelper.TrainingSessionEntry.KEY_DESCRIPTION, this.getDescription());
         values.put(TrainingDbHelper.TrainingSessionEntry.KEY_STEPS, this.getSteps());
-        values.put(TrainingDbHelper.TrainingSessionEntry.KEY_DISTANCE, String.valueOf(this.getDistance()));
-        values.put(TrainingDbHelper.TrainingSessionEntry.KEY_CALORIES, String.valueOf(this.getCalories()));
-        values.put(TrainingDbHelper.TrainingSessionEntry.KEY_FEELING, String.valueOf(this.getFeeling()));
-        values.put(TrainingDbHelper.TrainingSessionEntry.KEY_START, String.valueOf(this.getStart()));
-        values.put(TrainingDbHelper.TrainingSessionEntry.KEY_END, String.valueOf(this.getEnd()));
+        values.put(TrainingDbHelper.TrainingSessionEntry.KEY_DISTANCE, this.getDistance());
+        values.put(TrainingDbHelper.TrainingSessionEntry.KEY_CALORIES, this.getCalories());
+        values.put(TrainingDbHelper.TrainingSessionEntry.KEY_FEELING, this.getFeeling());
+        values.put(TrainingDbHelper.TrainingSessionEntry.KEY_START, this.getStart());
+        values.put(TrainingDbHelper.TrainingSessionEntry.KEY_END, this.getEnd());
         return values;
     }
 }
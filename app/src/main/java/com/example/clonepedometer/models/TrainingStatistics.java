@@ -0,0 +1,93 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.models;
+
+/**
+ * Aggregated values of several finished training sessions, e.g. of one week.
+ * Is computed in the database, so no training session has to be loaded.
+ */
+public class TrainingStatistics {
+    private final long periodStart;
+    private final int trainingCount;
+    private final long steps;
+    private final double distance;
+    private final double calories;
+    private final long duration;
+
+    /**
+     * @param periodStart   The start of the period or 0 for all training sessions
+     * @param trainingCount The number of training sessions
+     * @param steps         The steps of all training sessions
+     * @param distance      The distance of all training sessions in meters
+     * @param calories      The calories of all training sessions in kcal
+     * @param duration      The duration of all training sessions in seconds
+     */
+    public TrainingStatistics(long periodStart, int trainingCount, long steps, double distance, double calories, long duration) {
+        this.periodStart = periodStart;
+        this.trainingCount = trainingCount;
+        this.steps = steps;
+        this.distance = distance;
+        this.calories = calories;
+        this.duration = duration;
+    }
+
+    public long getPeriodStart() {
+        return periodStart;
+    }
+
+    public int getTrainingCount() {
+        return trainingCount;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the distance in meters
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * @return the calories in kcal
+     */
+    public double getCalories() {
+        return calories;
+    }
+
+    /**
+     * Returns the duration in seconds
+     * @return seconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the average velocity in meters per second
+     * @return m/s
+     */
+    public double getVelocity() {
+        if (duration == 0) {
+            return 0;
+        }
+        return distance / duration;
+    }
+}
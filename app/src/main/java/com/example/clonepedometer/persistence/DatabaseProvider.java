@@ -0,0 +1,162 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.persistence;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Provides one shared database helper per database file for the whole application.
+ * <p>
+ * The databases are opened once in write-ahead logging mode. A single database object then keeps
+ * a pool of connections: queries outside of transactions run on read connections concurrently to
+ * each other and to the writer, while all writes are serialized on the primary connection.
+ * The service, the receivers and the UI therefore neither reopen the files nor block each other's
+ * reads.
+ */
+public class DatabaseProvider {
+
+    private static final String LOG_CLASS = DatabaseProvider.class.getName();
+
+    private static volatile StepCountDbHelper stepCountDbHelper;
+    private static volatile WalkingModeDbHelper walkingModeDbHelper;
+    private static volatile TrainingDbHelper trainingDbHelper;
+
+    /**
+     * @param context The application context
+     * @return the shared helper of the step count database
+     */
+    public static StepCountDbHelper getStepCountDbHelper(Context context) {
+        StepCountDbHelper helper = stepCountDbHelper;
+        if (helper == null) {
+            synchronized (DatabaseProvider.class) {
+                helper = stepCountDbHelper;
+                if (helper == null) {
+                    helper = prepare(new StepCountDbHelper(context.getApplicationContext()));
+                    stepCountDbHelper = helper;
+                }
+            }
+        }
+        return helper;
+    }
+
+    /**
+     * @param context The application context
+     * @return the shared helper of the walking mode database
+     */
+    public static WalkingModeDbHelper getWalkingModeDbHelper(Context context) {
+        WalkingModeDbHelper helper = walkingModeDbHelper;
+        if (helper == null) {
+            synchronized (DatabaseProvider.class) {
+                helper = walkingModeDbHelper;
+                if (helper == null) {
+                    helper = prepare(new WalkingModeDbHelper(context.getApplicationContext()));
+                    walkingModeDbHelper = helper;
+                }
+            }
+        }
+        return helper;
+    }
+
+    /**
+     * @param context The application context
+     * @return the shared helper of the training database
+     */
+    public static TrainingDbHelper getTrainingDbHelper(Context context) {
+        TrainingDbHelper helper = trainingDbHelper;
+        if (helper == null) {
+            synchronized (DatabaseProvider.class) {
+                helper = trainingDbHelper;
+                if (helper == null) {
+                    helper = prepare(new TrainingDbHelper(context.getApplicationContext()));
+                    trainingDbHelper = helper;
+                }
+            }
+        }
+        return helper;
+    }
+
+    /**
+     * Closes all databases and drops the shared helpers and caches, so the next access opens the
+     * database files again. Has to be called before the database files are replaced, e.g. when a
+     * backup is restored.
+     * The databases are closed on the thread of the {@link PersistenceExecutor} after all tasks
+     * submitted before, so no task is writing with the closed helpers. To replace the files before
+     * the next task reopens them, run the whole replacement with
+     * {@link PersistenceExecutor#runAndWait(Callable)}.
+     */
+    public static void invalidate() {
+        try {
+            PersistenceExecutor.runAndWait(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    closeAll();
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // closeAll throws no checked exceptions
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static synchronized void closeAll() {
+        close(stepCountDbHelper);
+        close(walkingModeDbHelper);
+        close(trainingDbHelper);
+        stepCountDbHelper = null;
+        walkingModeDbHelper = null;
+        trainingDbHelper = null;
+        WalkingModePersistenceHelper.invalidateCache();
+        TrainingPersistenceHelper.invalidateCache();
+    }
+
+    /**
+     * Deletes the given database file including its journal and write-ahead log.
+     * Call {@link #invalidate()} first, both on the thread of the {@link PersistenceExecutor}.
+     *
+     * @param context The application context
+     * @param name    The name of the database
+     * @return true if the database was deleted
+     */
+    public static boolean deleteDatabase(Context context, String name) {
+        return SQLiteDatabase.deleteDatabase(context.getDatabasePath(name));
+    }
+
+    private static <T extends SQLiteOpenHelper> T prepare(T helper) {
+        helper.setWriteAheadLoggingEnabled(true);
+        return helper;
+    }
+
+    private static void close(SQLiteOpenHelper helper) {
+        if (helper == null) {
+            return;
+        }
+        try {
+            helper.close();
+        } catch (IllegalStateException e) {
+            Log.w(LOG_CLASS, "Could not close database", e);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.persistence;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs database work off the main thread.
+ * <p>
+ * All tasks run one after another on a single background thread, so writes are never interleaved
+ * and a task sees the results of all tasks submitted before it. Results are delivered through a
+ * {@link Future} or a {@link Callback} on the main thread.
+ */
+public class PersistenceExecutor {
+
+    private static final String LOG_CLASS = PersistenceExecutor.class.getName();
+
+    private static volatile Thread persistenceThread;
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "persistence");
+            thread.setDaemon(true);
+            persistenceThread = thread;
+            return thread;
+        }
+    });
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Receives the result of a task on the main thread
+     *
+     * @param <T> The type of the result
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        /**
+         * Is called instead of {@link #onResult(Object)} if the task failed. The failure is
+         * logged already.
+         *
+         * @param e The exception thrown by the task
+         */
+        default void onFailure(Exception e) {
+        }
+    }
+
+    /**
+     * Runs the given task in background. A failure is logged.
+     *
+     * @param task The task
+     */
+    public static void execute(Runnable task) {
+        submit(Executors.callable(task));
+    }
+
+    /**
+     * Runs the given task in background.
+     *
+     * @param task The task
+     * @param <T>  The type of the result
+     * @return the future result of the task
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return submit(task, null);
+    }
+
+    /**
+     * Runs the given task in background and passes its result to the callback on the main thread.
+     * If the task fails, {@link Callback#onFailure(Exception)} is called instead.
+     *
+     * @param task     The task
+     * @param callback The callback, may be null
+     * @param <T>      The type of the result
+     * @return the future result of the task
+     */
+    public static <T> Future<T> submit(Callable<T> task, final Callback<T> callback) {
+        FutureTask<T> future = new FutureTask<T>(task) {
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                T result = null;
+                Exception failure = null;
+                try {
+                    result = get();
+                } catch (ExecutionException e) {
+                    failure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                } catch (InterruptedException e) {
+                    failure = e;
+                }
+                if (failure != null) {
+                    Log.e(LOG_CLASS, "Persistence task failed", failure);
+                }
+                if (callback != null) {
+                    post(callback, result, failure);
+                }
+            }
+        };
+        executor.execute(future);
+        return future;
+    }
+
+    private static <T> void post(final Callback<T> callback, final T result, final Exception failure) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (failure != null) {
+                    callback.onFailure(failure);
+                } else {
+                    callback.onResult(result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the given task in background and blocks until it is finished. No other task runs
+     * meanwhile, so the task may e.g. close and replace the databases.
+     * Must not be called on the main thread. On the background thread the task is run directly.
+     *
+     * @param task The task
+     * @param <T>  The type of the result
+     * @return the result of the task
+     * @throws Exception the exception thrown by the task
+     */
+    public static <T> T runAndWait(Callable<T> task) throws Exception {
+        if (Thread.currentThread() == persistenceThread) {
+            return task.call();
+        }
+        try {
+            return executor.submit(task).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+}
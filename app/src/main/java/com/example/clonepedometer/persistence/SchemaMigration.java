@@ -0,0 +1,66 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.persistence;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A single step of a database schema upgrade.
+ * Database helpers list their migrations and apply them in {@code onUpgrade} using
+ * {@link #upgrade(SQLiteDatabase, int, int, SchemaMigration...)}.
+ */
+public abstract class SchemaMigration {
+
+    private final int toVersion;
+
+    /**
+     * @param toVersion The database version reached after applying this migration
+     */
+    protected SchemaMigration(int toVersion) {
+        this.toVersion = toVersion;
+    }
+
+    public int getToVersion() {
+        return toVersion;
+    }
+
+    /**
+     * Migrates the schema (and data) from version {@code toVersion - 1} to {@code toVersion}.
+     * Is called inside the upgrade transaction.
+     *
+     * @param db The database to migrate
+     */
+    public abstract void migrate(SQLiteDatabase db);
+
+    /**
+     * Applies all migrations which are required to upgrade from oldVersion to newVersion in
+     * ascending order.
+     *
+     * @param db         The database to upgrade
+     * @param oldVersion The current version of the database
+     * @param newVersion The target version
+     * @param migrations The migrations of the database, ordered by their target version
+     */
+    public static void upgrade(SQLiteDatabase db, int oldVersion, int newVersion, SchemaMigration... migrations) {
+        for (SchemaMigration migration : migrations) {
+            if (migration.getToVersion() > oldVersion && migration.getToVersion() <= newVersion) {
+                migration.migrate(db);
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.persistence;
+
+import android.content.Context;
+
+import com.example.clonepedometer.models.StepCount;
+import com.example.clonepedometer.models.StepTotals;
+import com.example.clonepedometer.utils.UserSettingsSnapshot;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sums up steps, distance and calories, either in total or per bucket for charts.
+ * Each method reads the body weight and the step lengths once and passes over the step counts
+ * only once.
+ */
+public class StepAggregationHelper {
+
+    /**
+     * Returns steps, distance and calories of the given step count models
+     *
+     * @param stepCounts The step count models, e.g. one per walking mode
+     * @param context    The application context
+     * @return the totals
+     */
+    public static StepTotals getTotals(List<StepCount> stepCounts, Context context) {
+        StepTotals totals = new StepTotals(UserSettingsSnapshot.get(context).getBodyWeight());
+        for (StepCount stepCount : stepCounts) {
+            stepCount.addTo(totals);
+        }
+        return totals;
+    }
+
+    /**
+     * Returns steps, distance and calories walked on the given day from the daily summary
+     *
+     * @param calendar The day (in user's timezone)
+     * @param context  The application context
+     * @return the totals of the day
+     */
+    public static StepTotals getTotalsForDay(Calendar calendar, Context context) {
+        return getTotals(StepCountPersistenceHelper.getDailySummariesForDay(calendar, context), context);
+    }
+
+    /**
+     * Returns steps, distance and calories walked in the given time interval. The steps per walking
+     * mode are read from the cumulative steps, so the cost does not depend on the length of the
+     * interval.
+     *
+     * @param start_time The start time
+     * @param end_time   The end time
+     * @param context    The application context
+     * @return the totals between start and end time
+     */
+    public static StepTotals getTotalsForInterval(long start_time, long end_time, Context context) {
+        StepTotals totals = new StepTotals(UserSettingsSnapshot.get(context).getBodyWeight());
+        Map<Long, Long> stepsPerWalkingMode = DatabaseProvider.getStepCountDbHelper(context).getStepCountsPerWalkingMode(start_time, end_time);
+        Map<Long, Double> stepLengths = WalkingModePersistenceHelper.getCachedStepLengths(context);
+        for (Map.Entry<Long, Long> entry : stepsPerWalkingMode.entrySet()) {
+            totals.add(entry.getValue().intValue(), getStepLength(stepLengths, entry.getKey()));
+        }
+        return totals;
+    }
+
+    /**
+     * Returns steps, distance and calories per bucket of the given tier, e.g. per hour of a day or
+     * per day of a month. The step counts are read in the coarsest tier which still satisfies the
+     * bucket size. Where only coarser data is left, each entry is counted in the bucket its last
+     * millisecond lies in.
+     *
+     * @param start_time The start time, the whole bucket is included
+     * @param end_time   The end time, the whole bucket is included
+     * @param bucketSize The bucket size, HOURLY, DAILY or MONTHLY
+     * @param context    The application context
+     * @return the totals per bucket, see {@link #getBucketBoundaries(long, long, StepCountDbHelper.Tier)}
+     */
+    public static StepTotals[] getTotalsPerBucket(long start_time, long end_time, StepCountDbHelper.Tier bucketSize, Context context) {
+        long[] boundaries = getBucketBoundaries(start_time, end_time, bucketSize);
+        BucketAccumulator accumulator = new BucketAccumulator(boundaries,
+                UserSettingsSnapshot.get(context).getBodyWeight(),
+                WalkingModePersistenceHelper.getCachedStepLengths(context));
+        // the accumulator assigns entries by their end time, start exclusive and end inclusive
+        StepCountPersistenceHelper.visitStepCounts(boundaries[0] + 1, boundaries[boundaries.length - 1], bucketSize, accumulator, context);
+        return accumulator.getTotals();
+    }
+
+    /**
+     * Returns steps, distance and calories per hour of the given day
+     *
+     * @param calendar The day (in user's timezone)
+     * @param context  The application context
+     * @return the totals per hour, usually 24
+     */
+    public static StepTotals[] getTotalsPerHour(Calendar calendar, Context context) {
+        long day = StepCountDbHelper.getStartOfDay(calendar.getTimeInMillis());
+        return getTotalsPerBucket(day, StepCountDbHelper.Tier.DAILY.getEndOfBucket(day) - 1, StepCountDbHelper.Tier.HOURLY, context);
+    }
+
+    /**
+     * Returns steps, distance and calories per day between the given times
+     *
+     * @param start_time The start time, the whole day is included
+     * @param end_time   The end time, the whole day is included
+     * @param context    The application context
+     * @return the totals per day
+     */
+    public static StepTotals[] getTotalsPerDay(long start_time, long end_time, Context context) {
+        return getTotalsPerBucket(start_time, end_time, StepCountDbHelper.Tier.DAILY, context);
+    }
+
+    /**
+     * Returns the boundaries of the buckets covering the given interval. Bucket i starts at
+     * boundaries[i] and ends before boundaries[i + 1].
+     *
+     * @param start_time The start time
+     * @param end_time   The end time (inclusive)
+     * @param bucketSize The tier of the buckets
+     * @return the ascending boundaries, one more than buckets
+     */
+    public static long[] getBucketBoundaries(long start_time, long end_time, StepCountDbHelper.Tier bucketSize) {
+        List<Long> boundaries = new ArrayList<>();
+        long boundary = bucketSize.getStartOfBucket(start_time);
+        boundaries.add(boundary);
+        while (boundary <= end_time) {
+            boundary = bucketSize.getEndOfBucket(boundary);
+            boundaries.add(boundary);
+        }
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    private static double getStepLength(Map<Long, Double> stepLengths, long walkingModeId) {
+        Double stepLength = stepLengths.get(walkingModeId);
+        return (stepLength != null) ? stepLength : 0;
+    }
+
+    /**
+     * Sums up the visited step counts per bucket. A step count belongs to the bucket in which its
+     * last millisecond lies, so a summary entry belongs to its own bucket and a raw entry ending at
+     * midnight to the day before. The step counts have to be visited in ascending order of time.
+     * Does not depend on the Android framework.
+     */
+    public static class BucketAccumulator implements StepCountVisitor {
+
+        private final long[] boundaries;
+        private final Map<Long, Double> stepLengths;
+        private final StepTotals[] totals;
+        private int bucket = 0;
+
+        /**
+         * @param boundaries  The ascending bucket boundaries, see
+         *                    {@link #getBucketBoundaries(long, long, StepCountDbHelper.Tier)}
+         * @param bodyWeight  The user's body weight in kg
+         * @param stepLengths The step length in meters by walking mode id
+         */
+        public BucketAccumulator(long[] boundaries, double bodyWeight, Map<Long, Double> stepLengths) {
+            this.boundaries = boundaries;
+            this.stepLengths = stepLengths;
+            this.totals = new StepTotals[Math.max(boundaries.length - 1, 0)];
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] = new StepTotals(bodyWeight);
+            }
+        }
+
+        @Override
+        public void visit(long startTime, long endTime, int stepCount, long walkingModeId) {
+            if (totals.length == 0 || endTime <= boundaries[0]) {
+                return;
+            }
+            while (bucket < totals.length && endTime > boundaries[bucket + 1]) {
+                bucket++;
+            }
+            if (bucket == totals.length) {
+                return;
+            }
+            totals[bucket].add(stepCount, getStepLength(stepLengths, walkingModeId));
+        }
+
+        /**
+         * @return the totals per bucket, one less than boundaries
+         */
+        public StepTotals[] getTotals() {
+            return totals;
+        }
+    }
+}
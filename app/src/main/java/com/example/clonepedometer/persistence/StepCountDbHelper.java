@@ -20,19 +20,36 @@ package com.example.clonepedometer.persistence;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 
 
 import com.example.clonepedometer.models.StepCount;
+import com.example.clonepedometer.models.StepCountPage;
 
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Database helper class for storing steps
  * The database stores for each entry a timestamp and the number of steps since last entry.
+ * Additionally the steps per day and walking mode are kept in the daily summary table, which is
+ * updated in the same transaction as the entries.
+ * <p>
+ * Old data is compacted into coarser tiers (see {@link Tier} and
+ * {@link #compact(long, long, long)}): entries are rolled up into hourly sums, which are dropped
+ * later on (the daily summary still holds them), and old daily sums are rolled up into monthly
+ * sums. The time from which on each tier is complete is stored in the rollup state table.
+ * <p>
+ * Triggers record in the rollup state table from when on entries changed since the last backup,
+ * so backups only have to contain the changed entries, see {@link #STATE_BACKUP_CHANGED_SINCE}.
  *
  * @author Tobias Neidig
  * @version 20160630
@@ -40,16 +57,68 @@ import java.util.List;
 
 public class StepCountDbHelper  extends SQLiteOpenHelper {
     // If you change the database schema, you must increment the database version.
-    public static final int DATABASE_VERSION = 2;
+    public static final int DATABASE_VERSION = 6;
 
     public static final String DATABASE_NAME = "StepCount.db";
+    /**
+     * Maximum number of entries read per query when entries are visited
+     */
+    static final int PAGE_SIZE = 500;
 
     public static final String TABLE_NAME = "stepcount";
+    public static final String SUMMARY_TABLE_NAME = "daily_summary";
+    public static final String HOURLY_SUMMARY_TABLE_NAME = "hourly_summary";
+    public static final String MONTHLY_SUMMARY_TABLE_NAME = "monthly_summary";
+    public static final String ROLLUP_STATE_TABLE_NAME = "rollup_state";
 
     public static final String KEY_ID = "_id";
     public static final String KEY_STEP_COUNT = "stepcount";
     public static final String KEY_WALKING_MODE = "walking_mode";
     public static final String KEY_TIMESTAMP = "timestamp";
+    /**
+     * Steps of all entries up to and including this one, see {@link StepCountWriter}
+     */
+    public static final String KEY_CUMULATIVE_STEPS = "cumulative_steps";
+    /**
+     * Steps of all entries of the same walking mode up to and including this one
+     */
+    public static final String KEY_MODE_CUMULATIVE_STEPS = "mode_cumulative_steps";
+    /**
+     * Start of the day (midnight in users timezone) of the summary entry
+     */
+    public static final String KEY_DAY = "day";
+    /**
+     * Start of the hour of the hourly summary entry
+     */
+    public static final String KEY_HOUR = "hour";
+    /**
+     * Start of the month (first day, midnight in users timezone) of the monthly summary entry
+     */
+    public static final String KEY_MONTH = "month";
+    public static final String KEY_NAME = "name";
+    public static final String KEY_VALUE = "value";
+
+    /**
+     * Names of the rollup state values, each holds a timestamp
+     */
+    public static final String STATE_RAW_BOUNDARY = "raw_boundary";
+    private static final String STATE_HOURLY_BOUNDARY = "hourly_boundary";
+    private static final String STATE_DAILY_BOUNDARY = "daily_boundary";
+    private static final String STATE_LAST_COMPACTION = "last_compaction";
+    /**
+     * The earliest timestamp of the entries added, changed or deleted since the value was reset by
+     * the last backup. Entries deleted by compaction are not recorded, they are before the raw
+     * boundary. Missing or Long.MIN_VALUE if unknown, e.g. after all entries were deleted.
+     */
+    public static final String STATE_BACKUP_CHANGED_SINCE = "backup_changed_since";
+    /**
+     * The position in the {@link StepJournal} up to which the journaled steps are saved. It is
+     * written in the transaction which saves the steps, so the journal can be truncated afterwards
+     * without saving steps twice.
+     */
+    private static final String STATE_JOURNAL_POSITION = "journal_position";
+
+    private static final long HOUR_IN_MILLIS = 3600000L;
 
     private static final String INTEGER_TYPE = " INTEGER";
     private static final String COMMA_SEP = ",";
@@ -58,59 +127,238 @@ public class StepCountDbHelper  extends SQLiteOpenHelper {
                     KEY_ID + " INTEGER PRIMARY KEY," +
                     KEY_STEP_COUNT + INTEGER_TYPE + COMMA_SEP +
                     KEY_WALKING_MODE + INTEGER_TYPE + COMMA_SEP +
-                    KEY_TIMESTAMP + INTEGER_TYPE +
+                    KEY_TIMESTAMP + INTEGER_TYPE + COMMA_SEP +
+                    KEY_CUMULATIVE_STEPS + INTEGER_TYPE + " DEFAULT 0" + COMMA_SEP +
+                    KEY_MODE_CUMULATIVE_STEPS + INTEGER_TYPE + " DEFAULT 0" +
+            " )";
+    public static final String INDEX_TIMESTAMP = TABLE_NAME + "_" + KEY_TIMESTAMP + "_idx";
+    private static final String SQL_CREATE_TIMESTAMP_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_TIMESTAMP + " ON " + TABLE_NAME + " (" + KEY_TIMESTAMP + ")";
+    public static final String INDEX_WALKING_MODE_TIMESTAMP = TABLE_NAME + "_" + KEY_WALKING_MODE + "_" + KEY_TIMESTAMP + "_idx";
+    private static final String SQL_CREATE_WALKING_MODE_TIMESTAMP_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_WALKING_MODE_TIMESTAMP + " ON " + TABLE_NAME + " (" + KEY_WALKING_MODE + COMMA_SEP + KEY_TIMESTAMP + ")";
+    private static final String SQL_CREATE_SUMMARY = createSummaryTable(SUMMARY_TABLE_NAME, KEY_DAY);
+    private static final String SQL_CREATE_HOURLY_SUMMARY = createSummaryTable(HOURLY_SUMMARY_TABLE_NAME, KEY_HOUR);
+    private static final String SQL_CREATE_MONTHLY_SUMMARY = createSummaryTable(MONTHLY_SUMMARY_TABLE_NAME, KEY_MONTH);
+    private static final String SQL_CREATE_ROLLUP_STATE =
+            "CREATE TABLE " + ROLLUP_STATE_TABLE_NAME + " (" +
+                    KEY_NAME + " TEXT PRIMARY KEY," +
+                    KEY_VALUE + INTEGER_TYPE +
             " )";
+    private static final String SQL_CREATE_INSERT_TRIGGER =
+            createChangeTrigger("INSERT", "", "NEW." + KEY_TIMESTAMP);
+    private static final String SQL_CREATE_UPDATE_TRIGGER =
+            createChangeTrigger("UPDATE", "", "OLD." + KEY_TIMESTAMP + COMMA_SEP + "NEW." + KEY_TIMESTAMP);
+    private static final String SQL_CREATE_DELETE_TRIGGER =
+            createChangeTrigger("DELETE", " WHEN OLD." + KEY_TIMESTAMP + " >= IFNULL(" + selectRollupState(STATE_RAW_BOUNDARY) + ", OLD." + KEY_TIMESTAMP + ")", "OLD." + KEY_TIMESTAMP);
+
+    /**
+     * Schema migrations, ordered by version
+     */
+    private static final SchemaMigration[] MIGRATIONS = {
+            new SchemaMigration(3) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    // index for interval queries, latest entry and updates by timestamp
+                    db.execSQL(SQL_CREATE_TIMESTAMP_INDEX);
+                }
+            },
+            new SchemaMigration(4) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_SUMMARY);
+                    rebuildDailySummary(db);
+                }
+            },
+            new SchemaMigration(5) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_HOURLY_SUMMARY);
+                    db.execSQL(SQL_CREATE_MONTHLY_SUMMARY);
+                    db.execSQL(SQL_CREATE_ROLLUP_STATE);
+                }
+            },
+            new SchemaMigration(6) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + KEY_CUMULATIVE_STEPS + INTEGER_TYPE + " DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + KEY_MODE_CUMULATIVE_STEPS + INTEGER_TYPE + " DEFAULT 0");
+                    db.execSQL(SQL_CREATE_WALKING_MODE_TIMESTAMP_INDEX);
+                    rebuildCumulativeSteps(db);
+                }
+            }
+    };
+
+    /**
+     * The resolutions step counts are stored in, from fine to coarse.
+     */
+    public enum Tier {
+        /**
+         * The single entries, usually one per update interval
+         */
+        RAW(TABLE_NAME, KEY_TIMESTAMP, -1),
+        HOURLY(HOURLY_SUMMARY_TABLE_NAME, KEY_HOUR, Calendar.HOUR_OF_DAY),
+        DAILY(SUMMARY_TABLE_NAME, KEY_DAY, Calendar.DAY_OF_MONTH),
+        MONTHLY(MONTHLY_SUMMARY_TABLE_NAME, KEY_MONTH, Calendar.MONTH);
+
+        private final String tableName;
+        private final String keyColumn;
+        private final int calendarField;
+
+        Tier(String tableName, String keyColumn, int calendarField) {
+            this.tableName = tableName;
+            this.keyColumn = keyColumn;
+            this.calendarField = calendarField;
+        }
+
+        /**
+         * Returns the start of the bucket of this tier containing the given timestamp.
+         *
+         * @param timestamp The timestamp in milliseconds
+         * @return the start of the bucket, the timestamp itself for raw entries
+         */
+        public long getStartOfBucket(long timestamp) {
+            switch (this) {
+                case RAW:
+                    return timestamp;
+                case HOURLY:
+                    // full hours in UTC, which are full hours in almost all timezones
+                    return timestamp - Math.floorMod(timestamp, HOUR_IN_MILLIS);
+                case DAILY:
+                    return getStartOfDay(timestamp);
+                default:
+                    Calendar calendar = Calendar.getInstance();
+                    calendar.setTimeInMillis(getStartOfDay(timestamp));
+                    calendar.set(Calendar.DAY_OF_MONTH, 1);
+                    return calendar.getTimeInMillis();
+            }
+        }
 
-    private static SQLiteDatabase db;
+        /**
+         * Returns the start of the next bucket
+         *
+         * @param startOfBucket The start of a bucket of this tier
+         * @return the start of the following bucket
+         */
+        public long getEndOfBucket(long startOfBucket) {
+            if (this == RAW) {
+                return startOfBucket + 1;
+            }
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(startOfBucket);
+            calendar.add(calendarField, 1);
+            return calendar.getTimeInMillis();
+        }
+    }
 
     private Context context;
+    private StepCountWriter writer;
+
+    private static String selectRollupState(String name) {
+        return "(SELECT " + KEY_VALUE + " FROM " + ROLLUP_STATE_TABLE_NAME + " WHERE " + KEY_NAME + " = '" + name + "')";
+    }
 
     /**
-     * Returns a static database instance
-     * @param instance Instance of stepCountDbHelper to fetch new db-instance if necessary
-     * @return static database instance
+     * Creates a trigger which lowers {@link #STATE_BACKUP_CHANGED_SINCE} to the timestamps of the
+     * changed entry. It stays unknown if it is missing.
+     *
+     * @param event      INSERT, UPDATE or DELETE
+     * @param condition  The WHEN clause or an empty string
+     * @param timestamps Comma separated old and/or new timestamp of the entry
      */
-    private static SQLiteDatabase getDatabase(StepCountDbHelper instance){
-        if(db == null){
-            db = instance.getWritableDatabase();
-        }
-        return db;
+    private static String createChangeTrigger(String event, String condition, String timestamps) {
+        return "CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_" + event.toLowerCase(Locale.ROOT) + "_backup" +
+                " AFTER " + event + " ON " + TABLE_NAME + condition +
+                " BEGIN INSERT OR REPLACE INTO " + ROLLUP_STATE_TABLE_NAME + " (" + KEY_NAME + COMMA_SEP + KEY_VALUE + ")" +
+                " VALUES ('" + STATE_BACKUP_CHANGED_SINCE + "', MIN(" + timestamps +
+                ", IFNULL(" + selectRollupState(STATE_BACKUP_CHANGED_SINCE) + ", " + Long.MIN_VALUE + "))); END";
     }
 
-    public static void invalidateReference(){
-        db = null;
+    private static String createSummaryTable(String tableName, String keyColumn) {
+        return "CREATE TABLE " + tableName + " (" +
+                keyColumn + INTEGER_TYPE + COMMA_SEP +
+                KEY_WALKING_MODE + INTEGER_TYPE + COMMA_SEP +
+                KEY_STEP_COUNT + INTEGER_TYPE + COMMA_SEP +
+                "PRIMARY KEY (" + keyColumn + COMMA_SEP + KEY_WALKING_MODE + ")" +
+                " )";
     }
 
     public StepCountDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * @param context The application context
+     * @param name    The name of the database file or null for an in-memory database
+     */
+    StepCountDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
         this.context = context;
     }
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_TIMESTAMP_INDEX);
+        db.execSQL(SQL_CREATE_WALKING_MODE_TIMESTAMP_INDEX);
+        db.execSQL(SQL_CREATE_SUMMARY);
+        db.execSQL(SQL_CREATE_HOURLY_SUMMARY);
+        db.execSQL(SQL_CREATE_MONTHLY_SUMMARY);
+        db.execSQL(SQL_CREATE_ROLLUP_STATE);
+        createChangeTriggers(db);
     }
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Fill when upgrading DB
+        SchemaMigration.upgrade(db, oldVersion, newVersion, MIGRATIONS);
+    }
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Backups contain tables only, so make sure the indexes and triggers exist after a restore.
+        if (!db.isReadOnly()) {
+            db.execSQL(SQL_CREATE_TIMESTAMP_INDEX);
+            db.execSQL(SQL_CREATE_WALKING_MODE_TIMESTAMP_INDEX);
+            createChangeTriggers(db);
+        }
+    }
+
+    private static void createChangeTriggers(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_INSERT_TRIGGER);
+        db.execSQL(SQL_CREATE_UPDATE_TRIGGER);
+        db.execSQL(SQL_CREATE_DELETE_TRIGGER);
     }
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         onUpgrade(db, oldVersion, newVersion);
     }
 
+    @Override
+    public synchronized void close() {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        super.close();
+    }
+
+    /**
+     * Returns the writer of this database, which reuses its compiled statements.
+     *
+     * @return the writer
+     */
+    public synchronized StepCountWriter getWriter() {
+        if (writer == null) {
+            writer = new StepCountWriter(getWritableDatabase());
+        }
+        return writer;
+    }
+
+    private static long getWalkingModeId(StepCount stepCount) {
+        return (stepCount.getWalkingMode() != null) ? stepCount.getWalkingMode().getId() : 1;
+    }
+
     /**
      * Stores the given StepCount in database. EndTime will be used for KEY_TIMESTAMP.
      * @param stepCount the StepCount to save.
      */
     public void addStepCount(StepCount stepCount){
-        // Create a new map of values, where column names are the keys
-        ContentValues values = new ContentValues();
-        values.put(KEY_STEP_COUNT, stepCount.getStepCount());
-        values.put(KEY_WALKING_MODE, (stepCount.getWalkingMode() != null) ? stepCount.getWalkingMode().getId() : 1);
-        values.put(KEY_TIMESTAMP, stepCount.getEndTime());
-
-        // Insert the new row, returning the primary key value of the new row
-        getDatabase(this).insert(
-                TABLE_NAME,
-                null,
-                values);
+        getWriter().insert(stepCount.getStepCount(), getWalkingModeId(stepCount), stepCount.getEndTime());
     }
 
     /**
@@ -122,7 +370,7 @@ public class StepCountDbHelper  extends SQLiteOpenHelper {
     }
 
     /**
-     * Return all StepCounts
+     * Return all StepCounts, compacted data in the finest tier it is still available in
      * @return all StepCount-Entries
      */
     public List<StepCount> getAllStepCounts(){
@@ -131,71 +379,224 @@ public class StepCountDbHelper  extends SQLiteOpenHelper {
 
     /**
      * Returns the stepCount models for the steps walked in the given interval.
+     * Compacted data is returned in the finest tier it is still available in, see
+     * {@link #visitStepCounts(long, long, Tier, StepCountVisitor)}.
      *
      * @param start_time The start time in users timezone
-     * @param end_time   The end time in users timezone
+     * @param end_time   The end time in users timezone (inclusive)
      * @return The StepCount-Models between start and end time
      */
     public List<StepCount> getStepCountsForInterval(long start_time, long end_time) {
-        Cursor c = getDatabase(this).query(TABLE_NAME,
-                new String[]{
-                        KEY_STEP_COUNT,
-                        KEY_TIMESTAMP,
-                        KEY_WALKING_MODE
-                },
-                KEY_TIMESTAMP + " >= ? AND " + KEY_TIMESTAMP + " <= ?", new String[]{String.valueOf(start_time),
-                        String.valueOf(end_time)}, null, null, KEY_TIMESTAMP + " ASC");
-        WalkingModeDbHelper walkingModeDbHelper = new WalkingModeDbHelper(context);
-        List<StepCount> steps = new ArrayList<>();
+        return getStepCounts(start_time, end_time, Tier.RAW);
+    }
+
+    /**
+     * Returns the stepCount models for the steps walked in the given interval, tiers are selected
+     * as in {@link #visitStepCounts(long, long, Tier, StepCountVisitor)}.
+     *
+     * @param start_time The start time
+     * @param end_time   The end time (inclusive)
+     * @param resolution The coarsest acceptable tier
+     * @return The StepCount-Models ordered by time
+     */
+    public List<StepCount> getStepCounts(long start_time, long end_time, Tier resolution) {
+        StepCountCollector collector = new StepCountCollector();
+        visitStepCounts(start_time, end_time, resolution, collector);
+        return collector.steps;
+    }
+
+    /**
+     * Passes the step counts walked in the given interval to the visitor using the coarsest tier
+     * which still satisfies the requested resolution.
+     * The interval is split at the tier boundaries. For each part the coarsest tier not coarser
+     * than the resolution is used which holds the data of this part. If all of them were
+     * compacted already, the finest tier holding it is used instead.
+     *
+     * @param start_time The start time
+     * @param end_time   The end time (inclusive)
+     * @param resolution The coarsest acceptable tier, e.g. DAILY for a chart with one bar per day
+     * @param visitor    The visitor, called in ascending order of time
+     */
+    public void visitStepCounts(long start_time, long end_time, Tier resolution, StepCountVisitor visitor) {
+        long[] boundaries = new long[Tier.values().length];
+        for (Tier tier : Tier.values()) {
+            boundaries[tier.ordinal()] = getBoundary(tier);
+        }
+        long end = end_time == Long.MAX_VALUE ? end_time : end_time + 1;
         long start = start_time;
-        while (c.moveToNext()) {
-            StepCount s = new StepCount();
-            s.setStartTime(start);
-            s.setEndTime(c.getLong(c.getColumnIndexOrThrow(KEY_TIMESTAMP)));
-            s.setStepCount(c.getInt(c.getColumnIndexOrThrow(KEY_STEP_COUNT)));
-            s.setWalkingMode(walkingModeDbHelper.getWalkingMode(c.getInt(c.getColumnIndexOrThrow(KEY_WALKING_MODE))));
-            steps.add(s);
-            start = s.getEndTime();
+        while (start < end) {
+            // the next boundary after start ends the current part
+            long partEnd = end;
+            for (long boundary : boundaries) {
+                if (boundary > start && boundary < partEnd) {
+                    partEnd = boundary;
+                }
+            }
+            visitStepCountsForInterval(selectTier(start, resolution, boundaries), start, partEnd, visitor);
+            start = partEnd;
         }
-        c.close();
-        return steps;
+    }
+
+    /**
+     * Selects the tier to read the data from start on until the next boundary.
+     *
+     * @param boundaries The boundaries of the tiers, indexed by ordinal, see {@link #getBoundary(Tier)}
+     */
+    static Tier selectTier(long start, Tier resolution, long[] boundaries) {
+        Tier[] tiers = Tier.values();
+        for (int i = resolution.ordinal(); i >= 0; i--) {
+            if (isComplete(tiers[i], start, boundaries)) {
+                return tiers[i];
+            }
+        }
+        for (int i = resolution.ordinal() + 1; i < tiers.length; i++) {
+            if (isComplete(tiers[i], start, boundaries)) {
+                return tiers[i];
+            }
+        }
+        return Tier.MONTHLY;
+    }
+
+    /**
+     * Whether the tier holds all steps from time on until the next boundary.
+     */
+    private static boolean isComplete(Tier tier, long time, long[] boundaries) {
+        long rawBoundary = boundaries[Tier.RAW.ordinal()];
+        long dailyBoundary = boundaries[Tier.DAILY.ordinal()];
+        switch (tier) {
+            case RAW:
+                return time >= rawBoundary;
+            case HOURLY:
+                return time >= boundaries[Tier.HOURLY.ordinal()] && time < rawBoundary;
+            case DAILY:
+                return time >= dailyBoundary;
+            default:
+                return time < dailyBoundary;
+        }
+    }
+
+    /**
+     * Passes the entries in the given interval to the visitor in ascending order of time.
+     * The entries are read page by page with at most {@link #PAGE_SIZE} rows per query, so the
+     * cursor window stays small however large the interval is.
+     *
+     * @param start_time The start time in users timezone, start of the first entry
+     * @param end_time   The end time in users timezone (inclusive)
+     * @param visitor    The visitor
+     */
+    public void visitStepCountsForInterval(long start_time, long end_time, StepCountVisitor visitor) {
+        SQLiteDatabase db = getWritableDatabase();
+        String[] columns = new String[]{KEY_TIMESTAMP, KEY_STEP_COUNT, KEY_WALKING_MODE, KEY_ID};
+        String limit = String.valueOf(PAGE_SIZE);
+        String order = KEY_TIMESTAMP + " ASC, " + KEY_ID + " ASC";
+        long start = start_time;
+        // keyset pagination on timestamp and id, several entries may end at the same time
+        String selection = KEY_TIMESTAMP + " >= ? AND " + KEY_TIMESTAMP + " <= ?";
+        String[] selectionArgs = new String[]{String.valueOf(start_time), String.valueOf(end_time)};
+        int rows;
+        do {
+            Cursor c = db.query(TABLE_NAME, columns, selection, selectionArgs, null, null, order, limit);
+            long lastId = 0;
+            try {
+                rows = c.getCount();
+                while (c.moveToNext()) {
+                    long end = c.getLong(0);
+                    visitor.visit(start, end, c.getInt(1), c.getLong(2));
+                    start = end;
+                    lastId = c.getLong(3);
+                }
+            } finally {
+                c.close();
+            }
+            selection = "(" + KEY_TIMESTAMP + " > ? OR (" + KEY_TIMESTAMP + " = ? AND " + KEY_ID + " > ?)) AND " + KEY_TIMESTAMP + " <= ?";
+            selectionArgs = new String[]{String.valueOf(start), String.valueOf(start), String.valueOf(lastId), String.valueOf(end_time)};
+        } while (rows == PAGE_SIZE);
+    }
+
+    /**
+     * Returns one page of entries, newest first. Pass the page to get the next older one.
+     *
+     * @param previous The previous page, or null for the first page
+     * @param limit    The maximum number of entries
+     * @return The page with the StepCount-Models in descending order of time
+     */
+    public StepCountPage getStepCountPage(StepCountPage previous, int limit) {
+        String selection = null;
+        String[] selectionArgs = null;
+        if (previous != null) {
+            // keyset pagination, several entries may end at the same time
+            selection = KEY_TIMESTAMP + " < ? OR (" + KEY_TIMESTAMP + " = ? AND " + KEY_ID + " < ?)";
+            String timestamp = String.valueOf(previous.getLastTimestamp());
+            selectionArgs = new String[]{timestamp, timestamp, String.valueOf(previous.getLastId())};
+        }
+        // one more entry to know the start of the oldest one
+        Cursor c = getWritableDatabase().query(TABLE_NAME,
+                new String[]{KEY_TIMESTAMP, KEY_STEP_COUNT, KEY_WALKING_MODE, KEY_ID},
+                selection, selectionArgs, null, null, KEY_TIMESTAMP + " DESC, " + KEY_ID + " DESC", String.valueOf(limit + 1));
+        List<StepCount> steps = new ArrayList<>(Math.min(limit, PAGE_SIZE));
+        StepCount newer = null;
+        long lastTimestamp = 0;
+        long lastId = 0;
+        boolean hasNext = false;
+        try {
+            while (c.moveToNext()) {
+                long end = c.getLong(0);
+                if (newer != null) {
+                    newer.setStartTime(end);
+                }
+                if (steps.size() == limit) {
+                    hasNext = true;
+                    break;
+                }
+                StepCount s = new StepCount();
+                s.setStartTime(getStartOfDay(end));
+                s.setEndTime(end);
+                s.setStepCount(c.getInt(1));
+                s.setWalkingMode(WalkingModePersistenceHelper.getCachedItem(c.getLong(2), context));
+                steps.add(s);
+                newer = s;
+                lastTimestamp = end;
+                lastId = c.getLong(3);
+            }
+        } finally {
+            c.close();
+        }
+        return new StepCountPage(steps, lastTimestamp, lastId, hasNext);
     }
 
     public StepCount getLatestStepCount(){
-        Cursor c = getDatabase(this).query(TABLE_NAME,
+        Cursor c = getWritableDatabase().query(TABLE_NAME,
                 new String[]{
                         KEY_STEP_COUNT,
                         KEY_TIMESTAMP,
                         KEY_WALKING_MODE
                 },
                 null, null, null, null, KEY_TIMESTAMP + " DESC", "1");
-        WalkingModeDbHelper walkingModeDbHelper = new WalkingModeDbHelper(context);
         StepCount s = null;
         while (c.moveToNext()) {
             s = new StepCount();
             s.setEndTime(c.getLong(c.getColumnIndexOrThrow(KEY_TIMESTAMP)));
             s.setStepCount(c.getInt(c.getColumnIndexOrThrow(KEY_STEP_COUNT)));
-            s.setWalkingMode(walkingModeDbHelper.getWalkingMode(c.getInt(c.getColumnIndexOrThrow(KEY_WALKING_MODE))));
+            s.setWalkingMode(WalkingModePersistenceHelper.getCachedItem(c.getLong(c.getColumnIndexOrThrow(KEY_WALKING_MODE)), context));
         }
         c.close();
         return s;
     }
 
     public StepCount getFirstStepCount(){
-        Cursor c = getDatabase(this).query(TABLE_NAME,
+        Cursor c = getWritableDatabase().query(TABLE_NAME,
                 new String[]{
                         KEY_STEP_COUNT,
                         KEY_TIMESTAMP,
                         KEY_WALKING_MODE
                 },
                 null, null, null, null, KEY_TIMESTAMP + " ASC", "1");
-        WalkingModeDbHelper walkingModeDbHelper = new WalkingModeDbHelper(context);
         StepCount s = null;
         while (c.moveToNext()) {
             s = new StepCount();
             s.setEndTime(c.getLong(c.getColumnIndexOrThrow(KEY_TIMESTAMP)));
             s.setStepCount(c.getInt(c.getColumnIndexOrThrow(KEY_STEP_COUNT)));
-            s.setWalkingMode(walkingModeDbHelper.getWalkingMode(c.getInt(c.getColumnIndexOrThrow(KEY_WALKING_MODE))));
+            s.setWalkingMode(WalkingModePersistenceHelper.getCachedItem(c.getLong(c.getColumnIndexOrThrow(KEY_WALKING_MODE)), context));
         }
         c.close();
         return s;
@@ -217,19 +618,7 @@ public class StepCountDbHelper  extends SQLiteOpenHelper {
      * @param oldEndTime The original end time to determine which entry should be updated.
      */
     public void updateStepCount(StepCount stepCount, long oldEndTime){
-        // Create a new map of values, where column names are the keys
-        ContentValues values = new ContentValues();
-        values.put(KEY_STEP_COUNT, stepCount.getStepCount());
-        values.put(KEY_WALKING_MODE, (stepCount.getWalkingMode() != null) ? stepCount.getWalkingMode().getId() : 1);
-        values.put(KEY_TIMESTAMP, stepCount.getEndTime());
-
-        // Update the row, returning the primary key value of the new row
-        getDatabase(this).update(
-                TABLE_NAME,
-                values,
-                KEY_TIMESTAMP + " = ?",
-                new String[]{String.valueOf(oldEndTime)}
-        );
+        getWriter().update(stepCount.getStepCount(), getWalkingModeId(stepCount), stepCount.getEndTime(), oldEndTime);
     }
 
     /**
@@ -237,16 +626,507 @@ public class StepCountDbHelper  extends SQLiteOpenHelper {
      * @param stepCount The StepCount to delete.
      */
     public void deleteStepCount(StepCount stepCount){
-        String selection = KEY_TIMESTAMP + " = ?";
-        String[] selectionArgs = {String.valueOf(stepCount.getEndTime())};
-        this.getDatabase(this).delete(TABLE_NAME, selection, selectionArgs);
+        getWriter().delete(stepCount.getEndTime());
     }
 
     /**
      * Deletes all StepCounts from database
      */
     public void deleteAllStepCounts(){
-        getDatabase(this).execSQL("delete from " + TABLE_NAME);
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL("delete from " + TABLE_NAME);
+            db.execSQL("delete from " + SUMMARY_TABLE_NAME);
+            db.execSQL("delete from " + HOURLY_SUMMARY_TABLE_NAME);
+            db.execSQL("delete from " + MONTHLY_SUMMARY_TABLE_NAME);
+            db.execSQL("delete from " + ROLLUP_STATE_TABLE_NAME);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the number of steps walked on the given day according to the daily summary.
+     *
+     * @param day The start of the day (midnight in users timezone), see {@link #getStartOfDay(long)}
+     * @return the number of steps
+     */
+    public int getStepCountForDay(long day) {
+        return (int) DatabaseUtils.longForQuery(getWritableDatabase(),
+                "SELECT IFNULL(SUM(" + KEY_STEP_COUNT + "), 0) FROM " + SUMMARY_TABLE_NAME + " WHERE " + KEY_DAY + " = ?",
+                new String[]{String.valueOf(day)});
+    }
+
+    /**
+     * Returns the number of steps of the entries in the given interval from the cumulative steps,
+     * with two index lookups regardless of the length of the interval. The part before the raw
+     * boundary is summed up from the compacted tiers, see {@link #addCompactedSteps(long, long, Map)}.
+     *
+     * @param start_time The start time (inclusive)
+     * @param end_time   The end time (inclusive)
+     * @return the number of steps
+     */
+    public long getStepCountForInterval(long start_time, long end_time) {
+        if (end_time < start_time) {
+            return 0;
+        }
+        Map<Long, Long> compactedSteps = new HashMap<>();
+        long start = addCompactedSteps(start_time, end_time, compactedSteps);
+        long steps = 0;
+        for (long modeSteps : compactedSteps.values()) {
+            steps += modeSteps;
+        }
+        if (start > end_time) {
+            return steps;
+        }
+        return steps + DatabaseUtils.longForQuery(getWritableDatabase(),
+                "SELECT " + cumulativeStepsAt(null, "?2") + " - " + cumulativeStepsAt(null, "?1"),
+                new String[]{String.valueOf(start - 1), String.valueOf(end_time)});
+    }
+
+    /**
+     * Returns the number of steps per walking mode of the entries in the given interval from the
+     * cumulative steps, with two index lookups per walking mode. The part before the raw boundary
+     * is summed up from the compacted tiers, see {@link #addCompactedSteps(long, long, Map)}.
+     *
+     * @param start_time The start time (inclusive)
+     * @param end_time   The end time (inclusive)
+     * @return the number of steps per walking mode id, walking modes without steps are omitted
+     */
+    public Map<Long, Long> getStepCountsPerWalkingMode(long start_time, long end_time) {
+        Map<Long, Long> steps = new HashMap<>();
+        if (end_time < start_time) {
+            return steps;
+        }
+        long start = addCompactedSteps(start_time, end_time, steps);
+        if (start > end_time) {
+            return steps;
+        }
+        // the daily summary is small and holds every walking mode with raw entries
+        String walkingMode = "m." + KEY_WALKING_MODE;
+        Cursor c = getWritableDatabase().rawQuery("SELECT " + walkingMode + ", " +
+                        cumulativeStepsAt(walkingMode, "?2") + " - " + cumulativeStepsAt(walkingMode, "?1") +
+                        " FROM (SELECT DISTINCT " + KEY_WALKING_MODE + " FROM " + SUMMARY_TABLE_NAME + ") m",
+                new String[]{String.valueOf(start - 1), String.valueOf(end_time)});
+        try {
+            while (c.moveToNext()) {
+                if (c.getLong(1) != 0) {
+                    addSteps(steps, c.getLong(0), c.getLong(1));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return steps;
+    }
+
+    /**
+     * Adds the steps of the given interval before the raw boundary per walking mode. Compacted
+     * entries have no cumulative steps, so their part is summed up from the finest tier holding
+     * it. Buckets overlapping the interval are counted completely.
+     *
+     * @param start_time The start time (inclusive)
+     * @param end_time   The end time (inclusive)
+     * @param steps      The steps per walking mode id to add to
+     * @return the start of the rest of the interval, which is held by raw entries
+     */
+    private long addCompactedSteps(long start_time, long end_time, final Map<Long, Long> steps) {
+        long rawBoundary = getBoundary(Tier.RAW);
+        if (start_time >= rawBoundary) {
+            return start_time;
+        }
+        visitStepCounts(start_time, Math.min(end_time, rawBoundary - 1), Tier.RAW, new StepCountVisitor() {
+            @Override
+            public void visit(long startTime, long endTime, int stepCount, long walkingModeId) {
+                addSteps(steps, walkingModeId, stepCount);
+            }
+        });
+        return rawBoundary;
+    }
+
+    private static void addSteps(Map<Long, Long> steps, long walkingModeId, long stepCount) {
+        Long sum = steps.get(walkingModeId);
+        steps.put(walkingModeId, (sum == null ? 0 : sum) + stepCount);
+    }
+
+    /**
+     * The steps of all entries (of the given walking mode) up to and including the given time.
+     * Entries are ordered by timestamp and id, so of several entries ending at the time the last
+     * one holds the steps of all of them. If there is no entry before, the cumulative steps of the
+     * next entry less its own steps are used, so the differences stay right after old entries
+     * were compacted.
+     *
+     * @param walkingMode The walking mode expression or null for all entries
+     * @param time        The time expression
+     */
+    static String cumulativeStepsAt(String walkingMode, String time) {
+        String column = (walkingMode == null) ? KEY_CUMULATIVE_STEPS : KEY_MODE_CUMULATIVE_STEPS;
+        String filter = (walkingMode == null) ? "" : "s." + KEY_WALKING_MODE + " = " + walkingMode + " AND ";
+        return "IFNULL((SELECT s." + column + " FROM " + TABLE_NAME + " s" +
+                " WHERE " + filter + "s." + KEY_TIMESTAMP + " <= " + time +
+                " ORDER BY s." + KEY_TIMESTAMP + " DESC, s." + KEY_ID + " DESC LIMIT 1), " +
+                "IFNULL((SELECT s." + column + " - s." + KEY_STEP_COUNT + " FROM " + TABLE_NAME + " s" +
+                " WHERE " + filter + "s." + KEY_TIMESTAMP + " > " + time +
+                " ORDER BY s." + KEY_TIMESTAMP + " ASC, s." + KEY_ID + " ASC LIMIT 1), 0))";
+    }
+
+    /**
+     * Returns the daily summaries in the given interval. There is one StepCount-Model per day and
+     * walking mode, spanning the whole day. Distance and calories are derived from these models
+     * as for the single entries.
+     *
+     * @param start_day The start of the first day, see {@link #getStartOfDay(long)}
+     * @param end_day   The start of the last day
+     * @return The StepCount-Models ordered by day
+     */
+    public List<StepCount> getDailySummariesForInterval(long start_day, long end_day) {
+        Cursor c = getWritableDatabase().query(SUMMARY_TABLE_NAME,
+                new String[]{
+                        KEY_DAY,
+                        KEY_WALKING_MODE,
+                        KEY_STEP_COUNT
+                },
+                KEY_DAY + " >= ? AND " + KEY_DAY + " <= ?", new String[]{String.valueOf(start_day),
+                        String.valueOf(end_day)}, null, null, KEY_DAY + " ASC");
+        List<StepCount> steps = new ArrayList<>();
+        Calendar calendar = Calendar.getInstance();
+        while (c.moveToNext()) {
+            StepCount s = new StepCount();
+            calendar.setTimeInMillis(c.getLong(c.getColumnIndexOrThrow(KEY_DAY)));
+            s.setStartTime(calendar.getTimeInMillis());
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            s.setEndTime(calendar.getTimeInMillis());
+            s.setStepCount(c.getInt(c.getColumnIndexOrThrow(KEY_STEP_COUNT)));
+            s.setWalkingMode(WalkingModePersistenceHelper.getCachedItem(c.getLong(c.getColumnIndexOrThrow(KEY_WALKING_MODE)), context));
+            steps.add(s);
+        }
+        c.close();
+        return steps;
+    }
+
+    /**
+     * Returns the step count models of the given tier whose bucket starts in the given interval.
+     * For raw entries these are the single entries, otherwise there is one model per bucket and
+     * walking mode spanning the whole bucket.
+     *
+     * @param tier       The tier to read
+     * @param start_time The start time (inclusive), the bucket containing it is included
+     * @param end_time   The end time (exclusive)
+     * @return The StepCount-Models ordered by time
+     */
+    public List<StepCount> getStepCountsForInterval(Tier tier, long start_time, long end_time) {
+        StepCountCollector collector = new StepCountCollector();
+        visitStepCountsForInterval(tier, start_time, end_time, collector);
+        return collector.steps;
+    }
+
+    /**
+     * Passes the step counts of the given tier whose bucket starts in the given interval to the
+     * visitor in ascending order of time.
+     *
+     * @param tier       The tier to read
+     * @param start_time The start time (inclusive), the bucket containing it is included
+     * @param end_time   The end time (exclusive)
+     * @param visitor    The visitor
+     * @see #getStepCountsForInterval(Tier, long, long)
+     */
+    public void visitStepCountsForInterval(Tier tier, long start_time, long end_time, StepCountVisitor visitor) {
+        if (tier == Tier.RAW) {
+            visitStepCountsForInterval(start_time, end_time - 1, visitor);
+            return;
+        }
+        Cursor c = getWritableDatabase().query(tier.tableName,
+                new String[]{
+                        tier.keyColumn,
+                        KEY_WALKING_MODE,
+                        KEY_STEP_COUNT
+                },
+                tier.keyColumn + " >= ? AND " + tier.keyColumn + " < ?", new String[]{String.valueOf(tier.getStartOfBucket(start_time)),
+                        String.valueOf(end_time)}, null, null, tier.keyColumn + " ASC");
+        try {
+            while (c.moveToNext()) {
+                long start = c.getLong(0);
+                visitor.visit(start, tier.getEndOfBucket(start), c.getInt(2), c.getLong(1));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Creates a StepCount-Model for each visited entry
+     */
+    private class StepCountCollector implements StepCountVisitor {
+        private final List<StepCount> steps = new ArrayList<>();
+
+        @Override
+        public void visit(long startTime, long endTime, int stepCount, long walkingModeId) {
+            StepCount s = new StepCount();
+            s.setStartTime(startTime);
+            s.setEndTime(endTime);
+            s.setStepCount(stepCount);
+            s.setWalkingMode(WalkingModePersistenceHelper.getCachedItem(walkingModeId, context));
+            steps.add(s);
+        }
+    }
+
+    /**
+     * Returns the time from which on the given tier holds all steps.
+     * Raw entries and the daily summary are complete up to now, the hourly summary up to the
+     * boundary of the raw entries and the monthly summary up to the boundary of the daily summary.
+     *
+     * @param tier The tier
+     * @return the boundary or Long.MIN_VALUE if nothing was compacted
+     */
+    public long getBoundary(Tier tier) {
+        switch (tier) {
+            case RAW:
+                return getRollupState(getWritableDatabase(), STATE_RAW_BOUNDARY, Long.MIN_VALUE);
+            case HOURLY:
+                return getRollupState(getWritableDatabase(), STATE_HOURLY_BOUNDARY, Long.MIN_VALUE);
+            case DAILY:
+                return getRollupState(getWritableDatabase(), STATE_DAILY_BOUNDARY, Long.MIN_VALUE);
+            default:
+                return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Returns the time of the last compaction
+     *
+     * @return the timestamp or 0 if the step counts were never compacted
+     */
+    public long getLastCompaction() {
+        return getRollupState(getWritableDatabase(), STATE_LAST_COMPACTION, 0);
+    }
+
+    /**
+     * Returns the position of the step journal up to which the steps are saved, see
+     * {@link StepJournal#discard(long)}.
+     *
+     * @return the position or Long.MIN_VALUE if unknown
+     */
+    public long getJournalPosition() {
+        return getRollupState(getWritableDatabase(), STATE_JOURNAL_POSITION, Long.MIN_VALUE);
+    }
+
+    /**
+     * Stores the position of the step journal up to which the steps are saved. Call it in the
+     * transaction which saves the steps.
+     *
+     * @param position The position
+     */
+    public void setJournalPosition(long position) {
+        setRollupState(getWritableDatabase(), STATE_JOURNAL_POSITION, position);
+    }
+
+    /**
+     * Forgets the position of the step journal, e.g. if the database was restored from a backup
+     * and the position refers to another journal.
+     */
+    public void clearJournalPosition() {
+        getWritableDatabase().delete(ROLLUP_STATE_TABLE_NAME, KEY_NAME + " = ?", new String[]{STATE_JOURNAL_POSITION});
+    }
+
+    /**
+     * Returns the earliest time steps are stored for.
+     * For compacted data this is the start of the earliest bucket.
+     *
+     * @return the timestamp or null if there are no steps
+     */
+    public Long getFirstTimestamp() {
+        String first = DatabaseUtils.stringForQuery(getWritableDatabase(),
+                "SELECT MIN(first) FROM (" +
+                        "SELECT MIN(" + KEY_MONTH + ") AS first FROM " + MONTHLY_SUMMARY_TABLE_NAME +
+                        " UNION ALL SELECT MIN(" + KEY_DAY + ") FROM " + SUMMARY_TABLE_NAME +
+                        " UNION ALL SELECT MIN(" + KEY_HOUR + ") FROM " + HOURLY_SUMMARY_TABLE_NAME +
+                        " UNION ALL SELECT MIN(" + KEY_TIMESTAMP + ") FROM " + TABLE_NAME + ")",
+                null);
+        return first == null ? null : Long.valueOf(first);
+    }
+
+    /**
+     * Compacts old step counts. Each boundary is only moved forward, so data is never expected in
+     * a finer tier than it is stored in.
+     * <ul>
+     * <li>Entries before rawCutoff are rolled up into the hourly summary.</li>
+     * <li>Hourly sums before hourlyCutoff are dropped, the daily summary still holds them.</li>
+     * <li>Daily sums before dailyCutoff are rolled up into the monthly summary.</li>
+     * </ul>
+     *
+     * @param rawCutoff    Start of a day, raw entries before are compacted
+     * @param hourlyCutoff Start of a day before rawCutoff
+     * @param dailyCutoff  Start of a month before hourlyCutoff
+     */
+    public void compact(long rawCutoff, long hourlyCutoff, long dailyCutoff) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (rawCutoff > getRollupState(db, STATE_RAW_BOUNDARY, Long.MIN_VALUE)) {
+                // move the boundary first, so the delete trigger does not record the compacted entries
+                setRollupState(db, STATE_RAW_BOUNDARY, rawCutoff);
+                rollUp(db, Tier.RAW, Tier.HOURLY, rawCutoff);
+            }
+            if (hourlyCutoff > getRollupState(db, STATE_HOURLY_BOUNDARY, Long.MIN_VALUE)) {
+                db.delete(HOURLY_SUMMARY_TABLE_NAME, KEY_HOUR + " < ?", new String[]{String.valueOf(hourlyCutoff)});
+                setRollupState(db, STATE_HOURLY_BOUNDARY, hourlyCutoff);
+            }
+            if (dailyCutoff > getRollupState(db, STATE_DAILY_BOUNDARY, Long.MIN_VALUE)) {
+                rollUp(db, Tier.DAILY, Tier.MONTHLY, dailyCutoff);
+                setRollupState(db, STATE_DAILY_BOUNDARY, dailyCutoff);
+            }
+            setRollupState(db, STATE_LAST_COMPACTION, System.currentTimeMillis());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Moves all rows of tier from before cutoff into the summary of tier to.
+     */
+    private static void rollUp(SQLiteDatabase db, Tier from, Tier to, long cutoff) {
+        sumUp(db, from, to, cutoff);
+        db.delete(from.tableName, from.keyColumn + " < ?", new String[]{String.valueOf(cutoff)});
+    }
+
+    /**
+     * Adds all rows of tier from before cutoff to the summary of tier to.
+     */
+    private static void sumUp(SQLiteDatabase db, Tier from, Tier to, long cutoff) {
+        Cursor c = db.query(from.tableName, new String[]{from.keyColumn, KEY_WALKING_MODE, KEY_STEP_COUNT},
+                from.keyColumn + " < ?", new String[]{String.valueOf(cutoff)}, null, null, from.keyColumn + " ASC");
+        // rows are ordered, so the steps of one bucket can be summed up before they are written
+        Map<Long, Integer> stepsPerWalkingMode = new HashMap<>();
+        long bucket = 0;
+        long nextBucket = Long.MIN_VALUE;
+        while (c.moveToNext()) {
+            long key = c.getLong(0);
+            if (key < bucket || key >= nextBucket) {
+                addToSummary(db, to, bucket, stepsPerWalkingMode);
+                bucket = to.getStartOfBucket(key);
+                nextBucket = to.getEndOfBucket(bucket);
+            }
+            long walkingMode = c.getLong(1);
+            Integer steps = stepsPerWalkingMode.get(walkingMode);
+            stepsPerWalkingMode.put(walkingMode, (steps == null ? 0 : steps) + c.getInt(2));
+        }
+        c.close();
+        addToSummary(db, to, bucket, stepsPerWalkingMode);
+    }
+
+    private static void addToSummary(SQLiteDatabase db, Tier tier, long key, Map<Long, Integer> stepsPerWalkingMode) {
+        for (Map.Entry<Long, Integer> entry : stepsPerWalkingMode.entrySet()) {
+            addToSummary(db, tier, key, entry.getKey(), entry.getValue());
+        }
+        stepsPerWalkingMode.clear();
+    }
+
+    private static long getRollupState(SQLiteDatabase db, String name, long defaultValue) {
+        Cursor c = db.query(ROLLUP_STATE_TABLE_NAME, new String[]{KEY_VALUE}, KEY_NAME + " = ?",
+                new String[]{name}, null, null, null);
+        long value = c.moveToFirst() ? c.getLong(0) : defaultValue;
+        c.close();
+        return value;
+    }
+
+    private static void setRollupState(SQLiteDatabase db, String name, long value) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_NAME, name);
+        values.put(KEY_VALUE, value);
+        db.insertWithOnConflict(ROLLUP_STATE_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Returns the start of the day (midnight in users timezone) of the given timestamp, which is
+     * the key of the daily summary.
+     *
+     * @param timestamp The timestamp in milliseconds
+     * @return the start of the day
+     */
+    public static long getStartOfDay(long timestamp) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timestamp);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Adds the given steps to the summary entry of the given tier.
+     *
+     * @param key The start of the bucket
+     */
+    private static void addToSummary(SQLiteDatabase db, Tier tier, long key, long walkingMode, int steps) {
+        if (steps == 0) {
+            return;
+        }
+        SQLiteStatement update = db.compileStatement("UPDATE " + tier.tableName +
+                " SET " + KEY_STEP_COUNT + " = " + KEY_STEP_COUNT + " + ?" +
+                " WHERE " + tier.keyColumn + " = ? AND " + KEY_WALKING_MODE + " = ?");
+        try {
+            update.bindLong(1, steps);
+            update.bindLong(2, key);
+            update.bindLong(3, walkingMode);
+            if (update.executeUpdateDelete() > 0) {
+                return;
+            }
+        } finally {
+            update.close();
+        }
+        ContentValues values = new ContentValues();
+        values.put(tier.keyColumn, key);
+        values.put(KEY_WALKING_MODE, walkingMode);
+        values.put(KEY_STEP_COUNT, steps);
+        db.insert(tier.tableName, null, values);
+    }
+
+    /**
+     * Recreates the content of the daily summary from all entries.
+     * Has to be called inside a transaction.
+     *
+     * @param db The database
+     */
+    public static void rebuildDailySummary(SQLiteDatabase db) {
+        db.execSQL("delete from " + SUMMARY_TABLE_NAME);
+        sumUp(db, Tier.RAW, Tier.DAILY, Long.MAX_VALUE);
+    }
+
+    /**
+     * Recalculates the cumulative steps of all entries in one pass, in the order of
+     * {@link StepCountWriter}.
+     * Has to be called inside a transaction.
+     *
+     * @param db The database
+     */
+    public static void rebuildCumulativeSteps(SQLiteDatabase db) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + KEY_CUMULATIVE_STEPS + " = ?, " +
+                KEY_MODE_CUMULATIVE_STEPS + " = ? WHERE " + KEY_ID + " = ?");
+        Cursor c = db.query(TABLE_NAME, new String[]{KEY_ID, KEY_STEP_COUNT, KEY_WALKING_MODE},
+                null, null, null, null, KEY_TIMESTAMP + " ASC, " + KEY_ID + " ASC");
+        try {
+            long cumulativeSteps = 0;
+            Map<Long, Long> modeCumulativeSteps = new HashMap<>();
+            while (c.moveToNext()) {
+                int steps = c.getInt(1);
+                long walkingMode = c.getLong(2);
+                Long modeSteps = modeCumulativeSteps.get(walkingMode);
+                modeSteps = (modeSteps != null ? modeSteps : 0) + steps;
+                modeCumulativeSteps.put(walkingMode, modeSteps);
+                cumulativeSteps += steps;
+                update.bindLong(1, cumulativeSteps);
+                update.bindLong(2, modeSteps);
+                update.bindLong(3, c.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            c.close();
+            update.close();
+        }
     }
 
     /**
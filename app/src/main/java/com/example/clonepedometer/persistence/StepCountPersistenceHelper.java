@@ -20,7 +20,6 @@ package com.example.clonepedometer.persistence;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
@@ -31,6 +30,8 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.example.clonepedometer.R;
 import com.example.clonepedometer.models.StepCount;
+import com.example.clonepedometer.models.StepCountPage;
+import com.example.clonepedometer.models.StepSeries;
 import com.example.clonepedometer.models.WalkingMode;
 import com.example.clonepedometer.services.AbstractStepDetectorService;
 
@@ -55,10 +56,19 @@ public class StepCountPersistenceHelper {
     public static final String BROADCAST_ACTION_STEPS_UPDATED = "org.secuso.privacyfriendlystepcounter.STEPS_UPDATED";
     public static final String BROADCAST_ACTION_STEPS_INSERTED = "org.secuso.privacyfriendlystepcounter.STEPS_INSERTED";
     public static String LOG_CLASS = StepCountPersistenceHelper.class.getName();
-    private static SQLiteDatabase db = null;
+    /**
+     * Hourly sums are kept for this many days after the raw entries were compacted
+     */
+    private static final int HOURLY_RETENTION_DAYS = 365;
+    /**
+     * Daily sums are kept for this many days after the hourly sums were dropped
+     */
+    private static final int DAILY_RETENTION_DAYS = 2 * 365;
+    private static final long COMPACTION_INTERVAL = 24 * 60 * 60 * 1000L;
 
     /**
-     * Stores the current step count to database and resets the step counter in step-detector
+     * Stores the current step count to database and removes the saved steps from the step counter
+     * in step-detector. Runs database work, so call it from {@link PersistenceExecutor}.
      *
      * @param serviceBinder The binder for stepCountService
      * @param context       The application context
@@ -70,36 +80,45 @@ public class StepCountPersistenceHelper {
             return false;
         }
         AbstractStepDetectorService.StepDetectorBinder myBinder = (AbstractStepDetectorService.StepDetectorBinder) serviceBinder;
-        StepCountDbHelper stepCountDbHelper = new StepCountDbHelper(context);
+        StepCountDbHelper stepCountDbHelper = DatabaseProvider.getStepCountDbHelper(context);
 
         // Get the steps since last save
         int stepCountSinceLastSave = myBinder.stepsSinceLastSave();
 
         SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
         long updateInterval = Long.parseLong(sharedPref.getString(context.getString(R.string.pref_hw_background_counter_frequency), "3600000"));
-        StepCount lastStoredStepCount = stepCountDbHelper.getLatestStepCount();;
         long currentTime = Calendar.getInstance().getTimeInMillis();
         long currentUpdateIntervalStartTime = currentTime - (updateInterval > 0 ? currentTime % updateInterval : 0);
-        if(lastStoredStepCount == null || (lastStoredStepCount.getEndTime() < currentUpdateIntervalStartTime && stepCountSinceLastSave + lastStoredStepCount.getStepCount() > 0) ||
-                lastStoredStepCount.getWalkingMode() != null && walkingMode != null && walkingMode.getId() != lastStoredStepCount.getWalkingMode().getId()) {
-            // create new step count if none is stored or last one was saved before the current update interval and there are new staps to save
-            // (the time interval of the previous step count may only be extended if it had 0 steps and there are 0 steps to add)
-            StepCount stepCount = new StepCount();
-            stepCount.setWalkingMode(walkingMode);
-            stepCount.setStepCount(stepCountSinceLastSave);
-            stepCount.setEndTime(currentTime);
-            stepCountDbHelper.addStepCount(stepCount);
-            Log.i(LOG_CLASS, "Creating new step count");
-        } else {
-            lastStoredStepCount.setStepCount(lastStoredStepCount.getStepCount() + stepCountSinceLastSave);
-            long oldEndTime = lastStoredStepCount.getEndTime();
-            lastStoredStepCount.setEndTime(currentTime);
-            stepCountDbHelper.updateStepCount(lastStoredStepCount, oldEndTime);
+        StepJournal journal = StepJournal.getInstance(context);
+        // the journal holds the same steps as the step counter from its start on
+        long journalPosition = (journal != null) ? journal.getStart() + stepCountSinceLastSave : Long.MIN_VALUE;
+        boolean extended;
+        SQLiteDatabase db = stepCountDbHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            // Extend the last step count if it was saved in the current update interval (or there are no steps at all) and
+            // has the same walking mode, else create a new one. This is decided atomically by the writer.
+            extended = stepCountDbHelper.getWriter().extendOrInsert(stepCountSinceLastSave,
+                    (walkingMode != null) ? walkingMode.getId() : 1, currentTime, currentUpdateIntervalStartTime);
+            if (journal != null) {
+                stepCountDbHelper.setJournalPosition(journalPosition);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (extended) {
             Log.i(LOG_CLASS, "Updating last stored step count - not creating a new one");
+        } else {
+            Log.i(LOG_CLASS, "Creating new step count");
+        }
+        // remove the saved steps from the step counter, steps detected meanwhile are kept
+        myBinder.removeSavedSteps(stepCountSinceLastSave);
+        if (journal != null) {
+            journal.discard(journalPosition);
         }
-        // reset step count
-        myBinder.resetStepCount();
         Log.i(LOG_CLASS, "Stored " + stepCountSinceLastSave + " steps");
+        compactStepCountsIfDue(context);
 
         // broadcast the event
         Intent localIntent = new Intent(BROADCAST_ACTION_STEPS_SAVED);
@@ -109,6 +128,68 @@ public class StepCountPersistenceHelper {
         return true;
     }
 
+    /**
+     * Saves the steps of the step journal to database. The journal contains the steps which were
+     * detected but not saved before the step detector service was killed. Steps which were saved
+     * before but not discarded from the journal are skipped. Has to be run on
+     * {@link PersistenceExecutor} before any other save of the restarted service.
+     *
+     * @param context The application context
+     * @param end     The end of the journal when the service was started, later steps are counted
+     *                by the service
+     * @return the number of restored steps
+     */
+    public static int restoreStepJournal(Context context, long end) {
+        StepJournal journal = StepJournal.getInstance(context);
+        if (journal == null) {
+            return 0;
+        }
+        StepCountDbHelper stepCountDbHelper = DatabaseProvider.getStepCountDbHelper(context);
+        long savedPosition = stepCountDbHelper.getJournalPosition();
+        // a position after the end belongs to a journal which was recreated
+        if (savedPosition <= journal.getEnd()) {
+            journal.discard(savedPosition);
+        }
+        List<StepJournal.Entry> entries = journal.getEntries();
+        if (entries.isEmpty() || entries.get(0).position >= end) {
+            return 0;
+        }
+        WalkingMode walkingMode = WalkingModePersistenceHelper.getActiveMode(context);
+        long walkingModeId = (walkingMode != null) ? walkingMode.getId() : 1;
+        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
+        long updateInterval = Long.parseLong(sharedPref.getString(context.getString(R.string.pref_hw_background_counter_frequency), "3600000"));
+        StepCountWriter writer = stepCountDbHelper.getWriter();
+        SQLiteDatabase db = stepCountDbHelper.getWritableDatabase();
+        long position = entries.get(0).position;
+        int steps = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            for (StepJournal.Entry entry : entries) {
+                if (entry.position >= end) {
+                    break;
+                }
+                int entrySteps = (int) Math.min(entry.steps, end - entry.position);
+                long intervalStart = entry.timestamp - (updateInterval > 0 ? entry.timestamp % updateInterval : 0);
+                writer.extendOrInsert(entrySteps, walkingModeId, entry.timestamp, intervalStart);
+                steps += entrySteps;
+                position = entry.position + entrySteps;
+            }
+            stepCountDbHelper.setJournalPosition(position);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        // steps of the restarted service follow the restored ones
+        journal.discard(position);
+        Log.i(LOG_CLASS, "Restored " + steps + " steps from step journal");
+
+        // broadcast the event
+        Intent localIntent = new Intent(BROADCAST_ACTION_STEPS_INSERTED);
+        // Broadcasts the Intent to receivers in this app.
+        LocalBroadcastManager.getInstance(context).sendBroadcast(localIntent);
+        return steps;
+    }
+
     /**
      * Stores the given step count to database and sends broadcast-event
      *
@@ -117,7 +198,7 @@ public class StepCountPersistenceHelper {
      * @return true if save was successful else false.
      */
     public static boolean storeStepCount(StepCount stepCount, Context context) {
-        new StepCountDbHelper(context).addStepCount(stepCount);
+        DatabaseProvider.getStepCountDbHelper(context).addStepCount(stepCount);
 
         // broadcast the event
         Intent localIntent = new Intent(BROADCAST_ACTION_STEPS_INSERTED);
@@ -134,7 +215,7 @@ public class StepCountPersistenceHelper {
      * @return true if save was successful else false.
      */
     public static boolean updateStepCount(StepCount stepCount, Context context) {
-        new StepCountDbHelper(context).updateStepCount(stepCount);
+        DatabaseProvider.getStepCountDbHelper(context).updateStepCount(stepCount);
         // broadcast the event
         Intent localIntent = new Intent(BROADCAST_ACTION_STEPS_UPDATED);
         // Broadcasts the Intent to receivers in this app.
@@ -150,16 +231,35 @@ public class StepCountPersistenceHelper {
      * @return the number of steps
      */
     public static int getStepCountForDay(Calendar calendar, Context context) {
-        calendar.set(Calendar.MILLISECOND, 0);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MINUTE, 0);
-        calendar.set(Calendar.HOUR_OF_DAY, 0);
-        long start_time = calendar.getTimeInMillis();
-        calendar.set(Calendar.SECOND, 59);
-        calendar.set(Calendar.MINUTE, 59);
-        calendar.set(Calendar.HOUR_OF_DAY, 23);
-        long end_time = calendar.getTimeInMillis();
-        return StepCountPersistenceHelper.getStepCountForInterval(start_time, end_time, context);
+        return DatabaseProvider.getStepCountDbHelper(context).getStepCountForDay(StepCountDbHelper.getStartOfDay(calendar.getTimeInMillis()));
+    }
+
+    /**
+     * Get the summarized step count models for the given day, one per walking mode.
+     * Use this instead of {@link #getStepCountsForDay(Calendar, Context)} if only the totals of
+     * the day are needed.
+     *
+     * @param calendar The day (in user's timezone)
+     * @param context  The application context
+     * @return the step count models for the day
+     */
+    public static List<StepCount> getDailySummariesForDay(Calendar calendar, Context context) {
+        long day = StepCountDbHelper.getStartOfDay(calendar.getTimeInMillis());
+        return DatabaseProvider.getStepCountDbHelper(context).getDailySummariesForInterval(day, day);
+    }
+
+    /**
+     * Get the summarized step count models for all days between the given times, one per day and
+     * walking mode.
+     *
+     * @param start_time The start time, the whole day is included
+     * @param end_time   The end time, the whole day is included
+     * @param context    The application context
+     * @return the step count models ordered by day
+     */
+    public static List<StepCount> getDailySummariesForInterval(long start_time, long end_time, Context context) {
+        return DatabaseProvider.getStepCountDbHelper(context).getDailySummariesForInterval(
+                StepCountDbHelper.getStartOfDay(start_time), StepCountDbHelper.getStartOfDay(end_time));
     }
 
     /**
@@ -185,7 +285,8 @@ public class StepCountPersistenceHelper {
     /**
      * @deprecated Use {@link StepCountDbHelper#getStepCountsForInterval(long, long)} instead.
      *
-     * Returns the stepCount models for the steps walked in the given interval.
+     * Returns the stepCount models for the steps walked in the given interval. Compacted data is
+     * returned in the finest tier it is still available in.
      *
      * @param start_time The start time in users timezone
      * @param end_time   The end time in users timezone
@@ -197,7 +298,7 @@ public class StepCountPersistenceHelper {
             Log.e(LOG_CLASS, "Cannot get step count - context is null");
             return new ArrayList<>();
         }
-        return new StepCountDbHelper(context).getStepCountsForInterval(start_time, end_time);
+        return DatabaseProvider.getStepCountDbHelper(context).getStepCountsForInterval(start_time, end_time);
     }
 
     /**
@@ -211,25 +312,106 @@ public class StepCountPersistenceHelper {
             Log.e(LOG_CLASS, "Cannot get step count - context is null");
             return new ArrayList<>();
         }
-        Cursor c = getDB(context).query(StepCountDbHelper.StepCountEntry.TABLE_NAME,
-                new String[]{StepCountDbHelper.StepCountEntry.KEY_STEP_COUNT, StepCountDbHelper.StepCountEntry.KEY_TIMESTAMP, StepCountDbHelper.StepCountEntry.KEY_WALKING_MODE},
-                "", new String[]{}, null, null, StepCountDbHelper.StepCountEntry.KEY_TIMESTAMP + " ASC");
-        List<StepCount> steps = new ArrayList<>();
-        long start = 0;
-        int sum = 0;
-        while (c.moveToNext()) {
-            StepCount s = new StepCount();
-            s.setStartTime(start);
-            s.setEndTime(c.getLong(c.getColumnIndexOrThrow(StepCountDbHelper.StepCountEntry.KEY_TIMESTAMP)));
-            s.setStepCount(c.getInt(c.getColumnIndexOrThrow(StepCountDbHelper.StepCountEntry.KEY_STEP_COUNT)));
-            //Log.w("ASDF", "Getting walking mode " + c.getLong(c.getColumnIndexOrThrow(StepCountDbHelper.StepCountEntry.COLUMN_NAME_WALKING_MODE)));
-            s.setWalkingMode(WalkingModePersistenceHelper.getItem(c.getLong(c.getColumnIndexOrThrow(StepCountDbHelper.StepCountEntry.KEY_WALKING_MODE)), context));
-            steps.add(s);
-            start = s.getEndTime();
-            sum += s.getStepCount();
+        // compacted data is returned in the finest tier it is still available in
+        return getStepCounts(0, Long.MAX_VALUE, StepCountDbHelper.Tier.RAW, context);
+    }
+
+    /**
+     * Returns the stepCount models for the steps walked in the given interval using the coarsest
+     * tier which still satisfies the requested resolution.
+     * The interval is split at the tier boundaries. For each part the coarsest tier not coarser
+     * than the resolution is used which holds the data of this part. If all of them were
+     * compacted already, the finest tier holding it is used instead.
+     *
+     * @param start_time The start time
+     * @param end_time   The end time (inclusive)
+     * @param resolution The coarsest acceptable tier, e.g. DAILY for a chart with one bar per day
+     * @param context    The application context
+     * @return The @{see StepCount}-Models ordered by time
+     */
+    public static List<StepCount> getStepCounts(long start_time, long end_time, StepCountDbHelper.Tier resolution, Context context) {
+        return DatabaseProvider.getStepCountDbHelper(context).getStepCounts(start_time, end_time, resolution);
+    }
+
+    /**
+     * Passes the step counts walked in the given interval to the visitor, tiers are selected as in
+     * {@link #getStepCounts(long, long, StepCountDbHelper.Tier, Context)}.
+     *
+     * @param start_time The start time
+     * @param end_time   The end time (inclusive)
+     * @param resolution The coarsest acceptable tier
+     * @param visitor    The visitor, called in ascending order of time
+     * @param context    The application context
+     */
+    public static void visitStepCounts(long start_time, long end_time, StepCountDbHelper.Tier resolution, StepCountVisitor visitor, Context context) {
+        DatabaseProvider.getStepCountDbHelper(context).visitStepCounts(start_time, end_time, resolution, visitor);
+    }
+
+    /**
+     * Returns the step counts walked in the given interval as columnar series, tiers are selected
+     * as in {@link #getStepCounts(long, long, StepCountDbHelper.Tier, Context)}. The series is
+     * filled straight from the cursor without creating a model per entry.
+     *
+     * @param start_time The start time
+     * @param end_time   The end time (inclusive)
+     * @param resolution The coarsest acceptable tier
+     * @param context    The application context
+     * @return the step series ordered by time
+     */
+    public static StepSeries getStepSeries(long start_time, long end_time, StepCountDbHelper.Tier resolution, Context context) {
+        final StepSeries series = new StepSeries();
+        visitStepCounts(start_time, end_time, resolution, new StepCountVisitor() {
+            @Override
+            public void visit(long startTime, long endTime, int stepCount, long walkingModeId) {
+                series.add(startTime, endTime, stepCount, walkingModeId);
+            }
+        }, context);
+        return series;
+    }
+
+    /**
+     * Returns one page of the stepCount models, newest first.
+     *
+     * @param previous The previous page, or null for the first page
+     * @param limit    The maximum number of models
+     * @param context  The application context
+     * @return The page with the @{see StepCount}-Models in descending order of time
+     * @see StepCountDbHelper#getStepCountPage(StepCountPage, int)
+     */
+    public static StepCountPage getStepCountPage(StepCountPage previous, int limit, Context context) {
+        return DatabaseProvider.getStepCountDbHelper(context).getStepCountPage(previous, limit);
+    }
+
+    /**
+     * Compacts old step counts if this was not done within the last day.
+     * Raw entries are kept as long as configured by the user, afterwards they are rolled up into
+     * hourly, daily and finally monthly sums. Compaction is off unless a retention is configured.
+     *
+     * @param context The application context
+     */
+    public static void compactStepCountsIfDue(Context context) {
+        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
+        int retentionDays = Integer.parseInt(sharedPref.getString(context.getString(R.string.pref_step_count_retention_days),
+                context.getString(R.string.pref_default_step_count_retention_days)));
+        if (retentionDays <= 0) {
+            // keep all raw entries
+            return;
         }
-        c.close();
-        return steps;
+        StepCountDbHelper dbHelper = DatabaseProvider.getStepCountDbHelper(context);
+        long now = System.currentTimeMillis();
+        if (Math.abs(now - dbHelper.getLastCompaction()) < COMPACTION_INTERVAL) {
+            return;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(StepCountDbHelper.getStartOfDay(now));
+        calendar.add(Calendar.DAY_OF_MONTH, -retentionDays);
+        long rawCutoff = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, -HOURLY_RETENTION_DAYS);
+        long hourlyCutoff = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, -DAILY_RETENTION_DAYS);
+        long dailyCutoff = StepCountDbHelper.Tier.MONTHLY.getStartOfBucket(calendar.getTimeInMillis());
+        dbHelper.compact(rawCutoff, hourlyCutoff, dailyCutoff);
+        Log.i(LOG_CLASS, "Compacted step counts before " + new Date(rawCutoff));
     }
 
     /**
@@ -241,11 +423,7 @@ public class StepCountPersistenceHelper {
      * @return Number of steps between start and end time
      */
     public static int getStepCountForInterval(long start_time, long end_time, Context context) {
-        int steps = 0;
-        for (StepCount s : getStepCountsForInterval(start_time, end_time, context)) {
-            steps += s.getStepCount();
-        }
-        return steps;
+        return (int) DatabaseProvider.getStepCountDbHelper(context).getStepCountForInterval(start_time, end_time);
     }
 
     /**
@@ -254,10 +432,11 @@ public class StepCountPersistenceHelper {
      * @return Date of first entry or default today
      */
     public static Date getDateOfFirstEntry(Context context){
-        StepCount s = new StepCountDbHelper(context).getFirstStepCount();
+        // compacted data is only available per hour, day or month
+        Long first = DatabaseProvider.getStepCountDbHelper(context).getFirstTimestamp();
         Date date = Calendar.getInstance().getTime(); // fallback is today
-        if(s != null){
-            date.setTime(s.getEndTime());
+        if(first != null){
+            date.setTime(first);
         }
         return date;
     }
@@ -276,18 +455,4 @@ public class StepCountPersistenceHelper {
             return stepCounts.get(stepCounts.size() - 1);
         }
     }
-
-    /**
-     * Returns the writable database
-     *
-     * @param context The application context
-     * @return a writable database object
-     */
-    protected static SQLiteDatabase getDB(Context context) {
-        if (StepCountPersistenceHelper.db == null) {
-            StepCountDbHelper dbHelper = new StepCountDbHelper(context);
-            StepCountPersistenceHelper.db = dbHelper.getWritableDatabase();
-        }
-        return StepCountPersistenceHelper.db;
-    }
 }
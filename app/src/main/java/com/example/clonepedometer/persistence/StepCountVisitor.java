@@ -0,0 +1,39 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.persistence;
+
+/**
+ * Receives step count entries one after another while they are read from database.
+ * No model object is created per entry, so callers which only aggregate the entries need constant
+ * memory regardless of the size of the database.
+ *
+ * @see StepCountDbHelper#visitStepCountsForInterval(long, long, StepCountVisitor)
+ */
+public interface StepCountVisitor {
+
+    /**
+     * Is called for each entry in ascending order of time.
+     *
+     * @param startTime     The start of the entry, the end of the previous entry or bucket start
+     * @param endTime       The end of the entry
+     * @param stepCount     The number of steps
+     * @param walkingModeId The id of the walking mode, see
+     *                      {@link WalkingModePersistenceHelper#getCachedItem(long, android.content.Context)}
+     */
+    void visit(long startTime, long endTime, int stepCount, long walkingModeId);
+}
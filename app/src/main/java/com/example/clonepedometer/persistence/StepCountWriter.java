@@ -0,0 +1,297 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.persistence;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import static com.example.clonepedometer.persistence.StepCountDbHelper.KEY_CUMULATIVE_STEPS;
+import static com.example.clonepedometer.persistence.StepCountDbHelper.KEY_DAY;
+import static com.example.clonepedometer.persistence.StepCountDbHelper.KEY_ID;
+import static com.example.clonepedometer.persistence.StepCountDbHelper.KEY_MODE_CUMULATIVE_STEPS;
+import static com.example.clonepedometer.persistence.StepCountDbHelper.KEY_STEP_COUNT;
+import static com.example.clonepedometer.persistence.StepCountDbHelper.KEY_TIMESTAMP;
+import static com.example.clonepedometer.persistence.StepCountDbHelper.KEY_WALKING_MODE;
+import static com.example.clonepedometer.persistence.StepCountDbHelper.SUMMARY_TABLE_NAME;
+import static com.example.clonepedometer.persistence.StepCountDbHelper.TABLE_NAME;
+
+/**
+ * Writes step count entries and keeps the daily summary and the cumulative step counts in sync
+ * using precompiled statements.
+ * Every write runs in its own transaction. The statements belong to one database connection, so
+ * an instance is owned by {@link StepCountDbHelper} and closed together with it.
+ * <p>
+ * Each entry holds the steps of all entries up to and including itself, and the steps of all
+ * entries of its walking mode up to and including itself. Entries are ordered by timestamp and
+ * then by id, as several entries may end at the same time. Appending an entry only reads the
+ * previous one. Inserting, moving or deleting an entry before others shifts the sums of the later
+ * entries.
+ */
+public class StepCountWriter {
+
+    private static final String SQL_INSERT =
+            "INSERT INTO " + TABLE_NAME + " (" + KEY_STEP_COUNT + ", " + KEY_WALKING_MODE + ", " + KEY_TIMESTAMP + ", " +
+                    KEY_CUMULATIVE_STEPS + ", " + KEY_MODE_CUMULATIVE_STEPS + ")" +
+                    " VALUES (?1, ?2, ?3, ?1 + " + StepCountDbHelper.cumulativeStepsAt(null, "?3") +
+                    ", ?1 + " + StepCountDbHelper.cumulativeStepsAt("?2", "?3") + ")";
+    private static final String SQL_DELETE =
+            "DELETE FROM " + TABLE_NAME + " WHERE " + KEY_TIMESTAMP + " = ?";
+    /**
+     * Extends the latest entry if it has the same walking mode and either ends in the current
+     * update interval and day or there are no steps at all.
+     */
+    private static final String SQL_EXTEND_LATEST =
+            "UPDATE " + TABLE_NAME + " SET " + KEY_STEP_COUNT + " = " + KEY_STEP_COUNT + " + ?1, " +
+                    KEY_CUMULATIVE_STEPS + " = " + KEY_CUMULATIVE_STEPS + " + ?1, " +
+                    KEY_MODE_CUMULATIVE_STEPS + " = " + KEY_MODE_CUMULATIVE_STEPS + " + ?1, " + KEY_TIMESTAMP + " = ?2" +
+                    " WHERE " + KEY_ID + " = (SELECT " + KEY_ID + " FROM " + TABLE_NAME + " ORDER BY " + KEY_TIMESTAMP + " DESC, " + KEY_ID + " DESC LIMIT 1)" +
+                    " AND " + KEY_WALKING_MODE + " = ?3" +
+                    " AND ((" + KEY_TIMESTAMP + " >= ?4 AND " + KEY_TIMESTAMP + " >= ?5) OR " + KEY_STEP_COUNT + " + ?1 = 0)";
+    private static final String SQL_ADD_TO_SUMMARY =
+            "UPDATE " + SUMMARY_TABLE_NAME + " SET " + KEY_STEP_COUNT + " = " + KEY_STEP_COUNT + " + ?" +
+                    " WHERE " + KEY_DAY + " = ? AND " + KEY_WALKING_MODE + " = ?";
+    private static final String SQL_INSERT_SUMMARY =
+            "INSERT INTO " + SUMMARY_TABLE_NAME + " (" + KEY_DAY + ", " + KEY_WALKING_MODE + ", " + KEY_STEP_COUNT + ") VALUES (?, ?, ?)";
+    /**
+     * Subtracts the steps of the entries with the given timestamp from the summary of their day
+     */
+    private static final String SQL_REMOVE_FROM_SUMMARY =
+            "UPDATE " + SUMMARY_TABLE_NAME + " SET " + KEY_STEP_COUNT + " = " + KEY_STEP_COUNT + " - (" +
+                    "SELECT IFNULL(SUM(s." + KEY_STEP_COUNT + "), 0) FROM " + TABLE_NAME + " s" +
+                    " WHERE s." + KEY_TIMESTAMP + " = ?1 AND s." + KEY_WALKING_MODE + " = " + SUMMARY_TABLE_NAME + "." + KEY_WALKING_MODE + ")" +
+                    " WHERE " + KEY_DAY + " = ?2";
+    /**
+     * Adds steps to the cumulative steps of all entries after a timestamp. A new entry comes after
+     * the entries with the same timestamp, as it has the largest id.
+     */
+    private static final String SQL_SHIFT_CUMULATIVE =
+            "UPDATE " + TABLE_NAME + " SET " + KEY_CUMULATIVE_STEPS + " = " + KEY_CUMULATIVE_STEPS + " + ?1" +
+                    " WHERE " + KEY_TIMESTAMP + " > ?2";
+    private static final String SQL_SHIFT_MODE_CUMULATIVE =
+            "UPDATE " + TABLE_NAME + " SET " + KEY_MODE_CUMULATIVE_STEPS + " = " + KEY_MODE_CUMULATIVE_STEPS + " + ?1" +
+                    " WHERE " + KEY_WALKING_MODE + " = ?2 AND " + KEY_TIMESTAMP + " > ?3";
+    /**
+     * Subtracts the steps of the entries with the given timestamp from the cumulative steps of all
+     * later entries
+     */
+    private static final String SQL_REMOVE_FROM_CUMULATIVE =
+            "UPDATE " + TABLE_NAME + " SET " +
+                    KEY_CUMULATIVE_STEPS + " = " + KEY_CUMULATIVE_STEPS + " - (" +
+                    "SELECT IFNULL(SUM(s." + KEY_STEP_COUNT + "), 0) FROM " + TABLE_NAME + " s WHERE s." + KEY_TIMESTAMP + " = ?1), " +
+                    KEY_MODE_CUMULATIVE_STEPS + " = " + KEY_MODE_CUMULATIVE_STEPS + " - (" +
+                    "SELECT IFNULL(SUM(s." + KEY_STEP_COUNT + "), 0) FROM " + TABLE_NAME + " s WHERE s." + KEY_TIMESTAMP + " = ?1" +
+                    " AND s." + KEY_WALKING_MODE + " = " + TABLE_NAME + "." + KEY_WALKING_MODE + ")" +
+                    " WHERE " + KEY_TIMESTAMP + " > ?1";
+
+    private final SQLiteDatabase db;
+    private final SQLiteStatement insert;
+    private final SQLiteStatement delete;
+    private final SQLiteStatement extendLatest;
+    private final SQLiteStatement addToSummary;
+    private final SQLiteStatement insertSummary;
+    private final SQLiteStatement removeFromSummary;
+    private final SQLiteStatement shiftCumulative;
+    private final SQLiteStatement shiftModeCumulative;
+    private final SQLiteStatement removeFromCumulative;
+
+    /**
+     * @param db The writable step count database
+     */
+    StepCountWriter(SQLiteDatabase db) {
+        this.db = db;
+        this.insert = db.compileStatement(SQL_INSERT);
+        this.delete = db.compileStatement(SQL_DELETE);
+        this.extendLatest = db.compileStatement(SQL_EXTEND_LATEST);
+        this.addToSummary = db.compileStatement(SQL_ADD_TO_SUMMARY);
+        this.insertSummary = db.compileStatement(SQL_INSERT_SUMMARY);
+        this.removeFromSummary = db.compileStatement(SQL_REMOVE_FROM_SUMMARY);
+        this.shiftCumulative = db.compileStatement(SQL_SHIFT_CUMULATIVE);
+        this.shiftModeCumulative = db.compileStatement(SQL_SHIFT_MODE_CUMULATIVE);
+        this.removeFromCumulative = db.compileStatement(SQL_REMOVE_FROM_CUMULATIVE);
+    }
+
+    /**
+     * Inserts a new entry.
+     *
+     * @param steps       The number of steps
+     * @param walkingMode The id of the walking mode
+     * @param timestamp   The end time of the entry
+     * @return the id of the inserted row or -1 on error
+     */
+    public synchronized long insert(int steps, long walkingMode, long timestamp) {
+        db.beginTransactionNonExclusive();
+        try {
+            long id = insertEntry(steps, walkingMode, timestamp);
+            if (id != -1) {
+                addToDailySummary(steps, walkingMode, timestamp);
+                shiftCumulativeSteps(steps, walkingMode, timestamp);
+            }
+            db.setTransactionSuccessful();
+            return id;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Replaces the entries ending at oldTimestamp. The entries are inserted anew, so they come
+     * after the other entries ending at timestamp.
+     *
+     * @param steps        The new number of steps
+     * @param walkingMode  The new id of the walking mode
+     * @param timestamp    The new end time
+     * @param oldTimestamp The end time of the entries to update
+     * @return the number of rows affected
+     */
+    public synchronized int update(int steps, long walkingMode, long timestamp, long oldTimestamp) {
+        db.beginTransactionNonExclusive();
+        try {
+            removeFromDailySummary(oldTimestamp);
+            removeFromCumulativeSteps(oldTimestamp);
+            delete.bindLong(1, oldTimestamp);
+            int affectedRows = delete.executeUpdateDelete();
+            for (int i = 0; i < affectedRows; i++) {
+                insertEntry(steps, walkingMode, timestamp);
+                shiftCumulativeSteps(steps, walkingMode, timestamp);
+            }
+            addToDailySummary(affectedRows * steps, walkingMode, timestamp);
+            db.setTransactionSuccessful();
+            return affectedRows;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes the entries ending at timestamp.
+     *
+     * @param timestamp The end time of the entries
+     * @return the number of rows affected
+     */
+    public synchronized int delete(long timestamp) {
+        db.beginTransactionNonExclusive();
+        try {
+            removeFromDailySummary(timestamp);
+            removeFromCumulativeSteps(timestamp);
+            delete.bindLong(1, timestamp);
+            int affectedRows = delete.executeUpdateDelete();
+            db.setTransactionSuccessful();
+            return affectedRows;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Adds the steps to the latest entry and moves its end to timestamp if it belongs to the
+     * current update interval, the same day and the same walking mode. The latest entry is also
+     * extended if there are no steps at all. Otherwise a new entry is started.
+     * The decision and the write are done atomically.
+     *
+     * @param steps         The steps since the latest entry
+     * @param walkingMode   The id of the current walking mode
+     * @param timestamp     The current time, end of the entry
+     * @param intervalStart The start of the current update interval
+     * @return true if the latest entry was extended, false if a new one was inserted
+     */
+    public synchronized boolean extendOrInsert(int steps, long walkingMode, long timestamp, long intervalStart) {
+        db.beginTransactionNonExclusive();
+        try {
+            extendLatest.bindLong(1, steps);
+            extendLatest.bindLong(2, timestamp);
+            extendLatest.bindLong(3, walkingMode);
+            extendLatest.bindLong(4, intervalStart);
+            extendLatest.bindLong(5, StepCountDbHelper.getStartOfDay(timestamp));
+            boolean extended = extendLatest.executeUpdateDelete() > 0;
+            if (!extended) {
+                insertEntry(steps, walkingMode, timestamp);
+                shiftCumulativeSteps(steps, walkingMode, timestamp);
+            }
+            addToDailySummary(steps, walkingMode, timestamp);
+            db.setTransactionSuccessful();
+            return extended;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Releases the compiled statements
+     */
+    synchronized void close() {
+        insert.close();
+        delete.close();
+        extendLatest.close();
+        addToSummary.close();
+        insertSummary.close();
+        removeFromSummary.close();
+        shiftCumulative.close();
+        shiftModeCumulative.close();
+        removeFromCumulative.close();
+    }
+
+    private long insertEntry(int steps, long walkingMode, long timestamp) {
+        insert.bindLong(1, steps);
+        insert.bindLong(2, walkingMode);
+        insert.bindLong(3, timestamp);
+        return insert.executeInsert();
+    }
+
+    private void addToDailySummary(int steps, long walkingMode, long timestamp) {
+        if (steps == 0) {
+            return;
+        }
+        long day = StepCountDbHelper.getStartOfDay(timestamp);
+        addToSummary.bindLong(1, steps);
+        addToSummary.bindLong(2, day);
+        addToSummary.bindLong(3, walkingMode);
+        if (addToSummary.executeUpdateDelete() == 0) {
+            insertSummary.bindLong(1, day);
+            insertSummary.bindLong(2, walkingMode);
+            insertSummary.bindLong(3, steps);
+            insertSummary.executeInsert();
+        }
+    }
+
+    /**
+     * Adds the steps of an entry to the cumulative steps of the later entries
+     */
+    private void shiftCumulativeSteps(int steps, long walkingMode, long timestamp) {
+        if (steps == 0) {
+            return;
+        }
+        shiftCumulative.bindLong(1, steps);
+        shiftCumulative.bindLong(2, timestamp);
+        shiftCumulative.executeUpdateDelete();
+        shiftModeCumulative.bindLong(1, steps);
+        shiftModeCumulative.bindLong(2, walkingMode);
+        shiftModeCumulative.bindLong(3, timestamp);
+        shiftModeCumulative.executeUpdateDelete();
+    }
+
+    private void removeFromCumulativeSteps(long timestamp) {
+        removeFromCumulative.bindLong(1, timestamp);
+        removeFromCumulative.executeUpdateDelete();
+    }
+
+    private void removeFromDailySummary(long timestamp) {
+        removeFromSummary.bindLong(1, timestamp);
+        removeFromSummary.bindLong(2, StepCountDbHelper.getStartOfDay(timestamp));
+        removeFromSummary.executeUpdateDelete();
+    }
+}
@@ -0,0 +1,286 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.persistence;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only journal of the detected steps which are not saved to database yet.
+ * <p>
+ * The journal is a memory-mapped file, so appending is a plain memory write and the data survives
+ * if the process is killed before the steps are saved. Each record holds the steps of one minute:
+ * timestamp of the first step (long), position (long), number of steps (int) and a check value
+ * derived from timestamp and position (int). The steps are written last and a record is only valid
+ * if the check value matches, so a partially written record is ignored or holds no steps.
+ * <p>
+ * Every journaled step has a position which only grows, a record holds the steps from its position
+ * on. The position up to which the steps are saved is stored in the same database transaction as
+ * the steps, see {@link StepCountDbHelper#getJournalPosition()}. Discarding up to a position is
+ * idempotent, so steps are neither lost nor saved twice if the process is killed between saving
+ * and discarding. The journal is replayed into the database on the next start.
+ */
+public class StepJournal {
+
+    private static final String LOG_CLASS = StepJournal.class.getName();
+    private static final String FILE_NAME = "step_journal";
+    static final int RECORD_SIZE = 24;
+    private static final int POSITION_OFFSET = 8;
+    private static final int STEPS_OFFSET = 16;
+    private static final int CHECK_OFFSET = 20;
+    /**
+     * Number of records, each minute with steps takes one
+     */
+    static final int CAPACITY = 4096;
+    private static final int CHECK_SALT = 0x5354504A; // "STPJ"
+    private static final long MINUTE_IN_MILLIS = 60000L;
+
+    private static StepJournal instance;
+
+    private final MappedByteBuffer buffer;
+    /**
+     * Number of valid records
+     */
+    private int count;
+    /**
+     * Position after the last journaled step
+     */
+    private long end;
+
+    /**
+     * A journal record
+     */
+    public static class Entry {
+        /**
+         * Time of the first step of this record
+         */
+        public final long timestamp;
+        /**
+         * Position of the first step of this record
+         */
+        public final long position;
+        public final int steps;
+
+        Entry(long timestamp, long position, int steps) {
+            this.timestamp = timestamp;
+            this.position = position;
+            this.steps = steps;
+        }
+    }
+
+    /**
+     * Returns the journal of this application
+     *
+     * @param context The application context
+     * @return the journal or null if it could not be opened
+     */
+    public static synchronized StepJournal getInstance(Context context) {
+        if (instance == null) {
+            try {
+                instance = new StepJournal(new File(context.getApplicationContext().getNoBackupFilesDir(), FILE_NAME));
+            } catch (IOException e) {
+                Log.e(LOG_CLASS, "Could not open step journal", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Opens (or creates) the journal in the given file.
+     *
+     * @param file The journal file
+     * @throws IOException if the file cannot be mapped
+     */
+    StepJournal(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the file is closed
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) CAPACITY * RECORD_SIZE);
+        } finally {
+            randomAccessFile.close();
+        }
+        // A discard which was interrupted may have left invalid records or copies of records which
+        // were moved to the front already. Copies are recognized by their position.
+        List<Entry> records = new ArrayList<>();
+        boolean dirty = false;
+        for (int i = 0; i < CAPACITY; i++) {
+            if (!isValid(i)) {
+                continue;
+            }
+            Entry record = read(i);
+            if (!records.isEmpty() && record.position < end) {
+                dirty = true;
+                continue;
+            }
+            dirty |= records.size() != i;
+            records.add(record);
+            end = record.position + record.steps;
+        }
+        count = records.size();
+        if (dirty) {
+            rewrite(records, CAPACITY);
+        }
+    }
+
+    /**
+     * Appends the given steps. Steps of the same minute are merged into one record. If the journal
+     * is full, the steps are added to the last record.
+     *
+     * @param steps     The number of detected steps
+     * @param timestamp The time the steps were detected
+     */
+    public synchronized void append(int steps, long timestamp) {
+        if (steps <= 0) {
+            return;
+        }
+        if (count > 0) {
+            int last = (count - 1) * RECORD_SIZE;
+            long lastTimestamp = buffer.getLong(last);
+            int lastSteps = buffer.getInt(last + STEPS_OFFSET);
+            if (count == CAPACITY || (lastSteps > 0 && lastTimestamp / MINUTE_IN_MILLIS == timestamp / MINUTE_IN_MILLIS)) {
+                buffer.putInt(last + STEPS_OFFSET, lastSteps + steps);
+                end += steps;
+                return;
+            }
+        }
+        write(count, new Entry(timestamp, end, steps));
+        count++;
+        end += steps;
+    }
+
+    /**
+     * @return the records of the journal in the order they were written
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Entry entry = read(i);
+            if (entry.steps > 0) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return the number of journaled steps
+     */
+    public synchronized int getSteps() {
+        return (int) (end - getStart());
+    }
+
+    /**
+     * @return the position of the first journaled step
+     */
+    public synchronized long getStart() {
+        return (count > 0) ? buffer.getLong(POSITION_OFFSET) : end;
+    }
+
+    /**
+     * @return the position after the last journaled step
+     */
+    public synchronized long getEnd() {
+        return end;
+    }
+
+    /**
+     * Removes all records
+     */
+    public synchronized void clear() {
+        discard(end);
+    }
+
+    /**
+     * Removes the steps before the given position, is called after these steps were saved to
+     * database. Steps which were appended in the meantime stay in the journal. Positions which
+     * were discarded already are ignored.
+     *
+     * @param position The position up to which the steps were saved
+     */
+    public synchronized void discard(long position) {
+        position = Math.min(position, end);
+        if (position <= getStart()) {
+            return;
+        }
+        List<Entry> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Entry record = read(i);
+            long recordEnd = record.position + record.steps;
+            if (recordEnd > position) {
+                records.add(record.position >= position ? record :
+                        new Entry(record.timestamp, position, (int) (recordEnd - position)));
+            }
+        }
+        if (records.isEmpty()) {
+            // keeps the position if the journal is reopened
+            records.add(new Entry(0, position, 0));
+        }
+        rewrite(records, count);
+        count = records.size();
+    }
+
+    /**
+     * Writes the given records to the front and invalidates the others up to the given limit.
+     * Records are only moved to the front, so a record is never overwritten before it was copied.
+     */
+    private void rewrite(List<Entry> records, int limit) {
+        for (int i = 0; i < records.size(); i++) {
+            write(i, records.get(i));
+        }
+        for (int i = limit - 1; i >= records.size(); i--) {
+            int offset = i * RECORD_SIZE;
+            buffer.putInt(offset + STEPS_OFFSET, 0);
+            buffer.putInt(offset + CHECK_OFFSET, 0);
+        }
+    }
+
+    private Entry read(int index) {
+        int offset = index * RECORD_SIZE;
+        return new Entry(buffer.getLong(offset), buffer.getLong(offset + POSITION_OFFSET), buffer.getInt(offset + STEPS_OFFSET));
+    }
+
+    private void write(int index, Entry entry) {
+        int offset = index * RECORD_SIZE;
+        // a partially overwritten record is either invalid or holds no steps
+        buffer.putInt(offset + STEPS_OFFSET, 0);
+        buffer.putLong(offset, entry.timestamp);
+        buffer.putLong(offset + POSITION_OFFSET, entry.position);
+        buffer.putInt(offset + CHECK_OFFSET, check(entry.timestamp, entry.position));
+        // steps last, they complete the record
+        buffer.putInt(offset + STEPS_OFFSET, entry.steps);
+    }
+
+    private boolean isValid(int index) {
+        int offset = index * RECORD_SIZE;
+        return buffer.getInt(offset + STEPS_OFFSET) >= 0
+                && buffer.getInt(offset + CHECK_OFFSET) == check(buffer.getLong(offset), buffer.getLong(offset + POSITION_OFFSET));
+    }
+
+    private static int check(long timestamp, long position) {
+        long value = timestamp ^ (position * 31);
+        return (int) (value ^ (value >>> 32)) ^ CHECK_SALT;
+    }
+}
@@ -25,6 +25,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
 
 import com.example.clonepedometer.models.Training;
+import com.example.clonepedometer.models.TrainingStatistics;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -38,7 +39,7 @@ import java.util.List;
 
 public class TrainingDbHelper extends SQLiteOpenHelper {
     // If you change the database schema, you must increment the database version.
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 3;
 
     public static final String DATABASE_NAME = "TrainingSessions.db";
 
@@ -55,47 +56,125 @@ public class TrainingDbHelper extends SQLiteOpenHelper {
     public static final String KEY_FEELING = "feeling";
 
     private static final String STRING_TYPE = " TEXT";
+    private static final String INTEGER_TYPE = " INTEGER";
     private static final String REAL_TYPE = " REAL";
 
     private static final String COMMA_SEP = ",";
-    private static final String SQL_CREATE_ENTRIES =
-            "CREATE TABLE " + TABLE_NAME + " (" +
-                    KEY_ID + " INTEGER PRIMARY KEY," +
-                    KEY_NAME + STRING_TYPE + COMMA_SEP +
-                    KEY_DESCRIPTION + STRING_TYPE + COMMA_SEP +
-                    KEY_STEPS + REAL_TYPE + COMMA_SEP +
-                    KEY_DISTANCE + REAL_TYPE + COMMA_SEP +
-                    KEY_CALORIES + REAL_TYPE + COMMA_SEP +
-                    KEY_START + REAL_TYPE + COMMA_SEP +
-                    KEY_END + REAL_TYPE + COMMA_SEP +
-                    KEY_FEELING + REAL_TYPE +
-            " )";
-    private static SQLiteDatabase db;
+    private static final String SQL_CREATE_ENTRIES = createTrainingTable(TABLE_NAME);
+    /**
+     * The columns required by {@link Training#from(Cursor)}
+     */
+    private static final String[] PROJECTION = {
+            KEY_ID,
+            KEY_NAME,
+            KEY_DESCRIPTION,
+            KEY_STEPS,
+            KEY_DISTANCE,
+            KEY_CALORIES,
+            KEY_START,
+            KEY_END,
+            KEY_FEELING
+    };
+    private static final String SQL_STATISTICS_COLUMNS = "COUNT(*), TOTAL(" + KEY_STEPS + "), TOTAL(" + KEY_DISTANCE + "), TOTAL(" +
+            KEY_CALORIES + "), TOTAL(" + KEY_END + " - " + KEY_START + ") / 1000";
+    public static final String INDEX_START = TABLE_NAME + "_" + KEY_START + "_idx";
+    private static final String SQL_CREATE_START_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_START + " ON " + TABLE_NAME + " (" + KEY_START + ")";
+    public static final String INDEX_END = TABLE_NAME + "_" + KEY_END + "_idx";
+    private static final String SQL_CREATE_END_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_END + " ON " + TABLE_NAME + " (" + KEY_END + ")";
 
     /**
-     * Returns a static database instance
-     * @param instance Instance of stepCountDbHelper to fetch new db-instance if necessary
-     * @return static database instance
+     * Schema migrations, ordered by version
      */
-    private static SQLiteDatabase getDatabase(TrainingDbHelper instance){
-        if(db == null){
-            db = instance.getWritableDatabase();
+    private static final SchemaMigration[] MIGRATIONS = {
+            new SchemaMigration(2) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    // index for the lookup of the active training session
+                    db.execSQL(SQL_CREATE_END_INDEX);
+                }
+            },
+            new SchemaMigration(3) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    // start and end were declared REAL and written as strings, copy them into
+                    // a table with typed columns
+                    String newTable = TABLE_NAME + "_new";
+                    String columns = KEY_ID + COMMA_SEP + KEY_NAME + COMMA_SEP + KEY_DESCRIPTION + COMMA_SEP +
+                            KEY_STEPS + COMMA_SEP + KEY_DISTANCE + COMMA_SEP + KEY_CALORIES + COMMA_SEP +
+                            KEY_START + COMMA_SEP + KEY_END + COMMA_SEP + KEY_FEELING;
+                    db.execSQL(createTrainingTable(newTable));
+                    db.execSQL("INSERT INTO " + newTable + " (" + columns + ") SELECT " +
+                            KEY_ID + COMMA_SEP + KEY_NAME + COMMA_SEP + KEY_DESCRIPTION + COMMA_SEP +
+                            "CAST(" + KEY_STEPS + " AS INTEGER)" + COMMA_SEP + KEY_DISTANCE + COMMA_SEP + KEY_CALORIES + COMMA_SEP +
+                            "CAST(" + KEY_START + " AS INTEGER)" + COMMA_SEP + "CAST(" + KEY_END + " AS INTEGER)" + COMMA_SEP + KEY_FEELING +
+                            " FROM " + TABLE_NAME);
+                    db.execSQL("DROP TABLE " + TABLE_NAME);
+                    db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + TABLE_NAME);
+                    db.execSQL(SQL_CREATE_START_INDEX);
+                    db.execSQL(SQL_CREATE_END_INDEX);
+                }
+            }
+    };
+
+    /**
+     * The personal records which can be looked up with {@link #getBestTraining(Record)}
+     */
+    public enum Record {
+        STEPS(KEY_STEPS),
+        DISTANCE(KEY_DISTANCE),
+        DURATION(KEY_END + " - " + KEY_START),
+        VELOCITY(KEY_DISTANCE + " / (" + KEY_END + " - " + KEY_START + ")");
+
+        private final String expression;
+
+        Record(String expression) {
+            this.expression = expression;
         }
-        return db;
     }
 
-    public static void invalidateReference(){
-        db = null;
+    private static String createTrainingTable(String tableName) {
+        return "CREATE TABLE " + tableName + " (" +
+                KEY_ID + " INTEGER PRIMARY KEY," +
+                KEY_NAME + STRING_TYPE + COMMA_SEP +
+                KEY_DESCRIPTION + STRING_TYPE + COMMA_SEP +
+                KEY_STEPS + INTEGER_TYPE + COMMA_SEP +
+                KEY_DISTANCE + REAL_TYPE + COMMA_SEP +
+                KEY_CALORIES + REAL_TYPE + COMMA_SEP +
+                KEY_START + INTEGER_TYPE + COMMA_SEP +
+                KEY_END + INTEGER_TYPE + COMMA_SEP +
+                KEY_FEELING + REAL_TYPE +
+                " )";
     }
 
     public TrainingDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * @param context The application context
+     * @param name    The name of the database file or null for an in-memory database
+     */
+    TrainingDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
     }
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_START_INDEX);
+        db.execSQL(SQL_CREATE_END_INDEX);
     }
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Fill when upgrading DB
+        SchemaMigration.upgrade(db, oldVersion, newVersion, MIGRATIONS);
+    }
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Backups contain tables only, so make sure the indexes exist after a restore.
+        if (!db.isReadOnly()) {
+            db.execSQL(SQL_CREATE_START_INDEX);
+            db.execSQL(SQL_CREATE_END_INDEX);
+        }
     }
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         onUpgrade(db, oldVersion, newVersion);
@@ -109,7 +188,7 @@ public class TrainingDbHelper extends SQLiteOpenHelper {
      */
     protected long addTraining(Training item) {
         ContentValues values = item.toContentValues();
-        return getDatabase(this).insert(
+        return getWritableDatabase().insert(
                 TABLE_NAME,
                 null,
                 values);
@@ -124,7 +203,7 @@ public class TrainingDbHelper extends SQLiteOpenHelper {
     protected long addTrainingWithID(Training item) {
         ContentValues values = item.toContentValues();
         values.put(KEY_ID, item.getId());
-        return getDatabase(this).insert(
+        return getWritableDatabase().insert(
                 TABLE_NAME,
                 null,
                 values);
@@ -154,7 +233,8 @@ public class TrainingDbHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Gets the active training session
+     * Gets the active training session from database. Use
+     * {@link TrainingPersistenceHelper#getActiveItem(Context)} to benefit from the cached state.
      *
      * @return the requested training session or null
      */
@@ -195,7 +275,87 @@ public class TrainingDbHelper extends SQLiteOpenHelper {
 
 
     /**
-     * Updates the given training session in database
+     * Gets the statistics of the finished training sessions per week. A training session belongs
+     * to the week it started in.
+     *
+     * @param firstDayOfWeek The first day of the week, e.g. {@link java.util.Calendar#MONDAY}
+     * @return the statistics per week ordered by the start of the week
+     */
+    public List<TrainingStatistics> getStatisticsPerWeek(int firstDayOfWeek) {
+        // SQLite counts the weekdays from 0 (Sunday), Calendar from 1 (Sunday)
+        return getStatisticsPerPeriod("'start of day', '-6 days', 'weekday " + (firstDayOfWeek - 1) + "'");
+    }
+
+    /**
+     * Gets the statistics of the finished training sessions per month. A training session belongs
+     * to the month it started in.
+     *
+     * @return the statistics per month ordered by the start of the month
+     */
+    public List<TrainingStatistics> getStatisticsPerMonth() {
+        return getStatisticsPerPeriod("'start of month'");
+    }
+
+    /**
+     * Gets the statistics of all finished training sessions, e.g. the overall average velocity.
+     *
+     * @return the statistics with period start 0
+     */
+    public TrainingStatistics getStatistics() {
+        Cursor c = getWritableDatabase().rawQuery("SELECT 0, " + SQL_STATISTICS_COLUMNS +
+                " FROM " + TABLE_NAME + " WHERE " + KEY_END + " > 0", null);
+        try {
+            c.moveToFirst();
+            return statisticsFrom(c);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Gets the finished training session with the best value of the given record
+     *
+     * @param record The record, e.g. the longest distance
+     * @return the training session or null if there is no finished training session
+     */
+    public Training getBestTraining(Record record) {
+        Cursor c = getWritableDatabase().query(TABLE_NAME, PROJECTION, KEY_END + " > 0", null,
+                null, null, record.expression + " DESC", "1");
+        try {
+            return c.moveToFirst() ? Training.from(c) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @param modifiers The SQLite date modifiers which turn a local time into the start of its
+     *                  period
+     */
+    private List<TrainingStatistics> getStatisticsPerPeriod(String modifiers) {
+        String period = "CAST(strftime('%s', " + KEY_START + " / 1000, 'unixepoch', 'localtime', " + modifiers + ", 'utc') AS INTEGER) * 1000";
+        Cursor c = getWritableDatabase().rawQuery("SELECT " + period + " AS period, " + SQL_STATISTICS_COLUMNS +
+                " FROM " + TABLE_NAME + " WHERE " + KEY_END + " > 0 GROUP BY period ORDER BY period ASC", null);
+        List<TrainingStatistics> statistics = new ArrayList<>();
+        try {
+            while (c.moveToNext()) {
+                statistics.add(statisticsFrom(c));
+            }
+        } finally {
+            c.close();
+        }
+        return statistics;
+    }
+
+    private static TrainingStatistics statisticsFrom(Cursor c) {
+        return new TrainingStatistics(c.getLong(0), c.getInt(1), c.getLong(2), c.getDouble(3), c.getDouble(4), c.getLong(5));
+    }
+
+    /**
+     * Updates the given training session in database.
+     * If the session is active in database, e.g. when it is stopped, its totals are kept and
+     * copied into the item. They are checkpointed by the step detector service, see
+     * {@link #updateTrainingTotals(long, int, double, double)}, so the item may hold older ones.
      *
      * @param item    The training session to update
      * @return the number of rows affected
@@ -206,12 +366,55 @@ public class TrainingDbHelper extends SQLiteOpenHelper {
         String selection = KEY_ID + " = ?";
         String[] selectionArgs = {String.valueOf(item.getId())};
 
-        int rowsAffected = getDatabase(this).update(
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            Cursor c = db.query(TABLE_NAME, new String[]{KEY_STEPS, KEY_DISTANCE, KEY_CALORIES},
+                    selection + " AND " + KEY_END + " = 0", selectionArgs, null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    values.remove(KEY_STEPS);
+                    values.remove(KEY_DISTANCE);
+                    values.remove(KEY_CALORIES);
+                    item.setSteps(c.getDouble(0));
+                    item.setDistance(c.getDouble(1));
+                    item.setCalories(c.getDouble(2));
+                }
+            } finally {
+                c.close();
+            }
+            int rowsAffected = db.update(
+                    TABLE_NAME,
+                    values,
+                    selection,
+                    selectionArgs);
+            db.setTransactionSuccessful();
+            return rowsAffected;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Updates the totals of the given training session. The session may have been stopped
+     * already, as the last totals are stored after its end was saved.
+     *
+     * @param id       The id of the training session
+     * @param steps    The steps since the start of the training session
+     * @param distance The distance in meters
+     * @param calories The calories in kcal
+     * @return the number of rows affected
+     */
+    protected int updateTrainingTotals(long id, int steps, double distance, double calories) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_STEPS, steps);
+        values.put(KEY_DISTANCE, distance);
+        values.put(KEY_CALORIES, calories);
+        return getWritableDatabase().update(
                 TABLE_NAME,
                 values,
-                selection,
-                selectionArgs);
-        return rowsAffected;
+                KEY_ID + " = ?",
+                new String[]{String.valueOf(id)});
     }
 
     /**
@@ -225,14 +428,14 @@ public class TrainingDbHelper extends SQLiteOpenHelper {
         }
         String selection = KEY_ID + " = ?";
         String[] selectionArgs = {String.valueOf(item.getId())};
-        getDatabase(this).delete(TABLE_NAME, selection, selectionArgs);
+        getWritableDatabase().delete(TABLE_NAME, selection, selectionArgs);
     }
 
     /**
      * Deletes all training data from database.
      */
     public void deleteAllTrainings(){
-        getDatabase(this).execSQL("delete from " + TABLE_NAME);
+        getWritableDatabase().execSQL("delete from " + TABLE_NAME);
     }
 
     protected Cursor getCursor(String selection, String[] selectionArgs){
@@ -247,23 +450,9 @@ public class TrainingDbHelper extends SQLiteOpenHelper {
      * @return the database cursor
      */
     protected Cursor getCursor(String selection, String[] selectionArgs, String sortOrder) {
-        // Define a projection that specifies which columns from the database
-        // you will actually use after this query.
-        String[] projection = {
-                KEY_ID,
-                KEY_NAME,
-                KEY_DESCRIPTION,
-                KEY_STEPS,
-                KEY_DISTANCE,
-                KEY_CALORIES,
-                KEY_START,
-                KEY_END,
-                KEY_FEELING
-        };
-
-        return getDatabase(this).query(
+        return getWritableDatabase().query(
                 TABLE_NAME,  // The table to query
-                projection,                                            // The columns to return
+                PROJECTION,                                            // The columns to return
                 selection,                                // The columns for the WHERE clause
                 selectionArgs,                            // The values for the WHERE clause
                 null,                                     // don't group the rows
@@ -18,11 +18,15 @@
 package com.example.clonepedometer.persistence;
 
 import android.content.Context;
+import android.content.Intent;
 
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.example.clonepedometer.models.Training;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * Helper to save and restore training sessions from database.
@@ -32,8 +36,23 @@ import java.util.List;
  */
 
 public class TrainingPersistenceHelper {
+    /**
+     * Broadcast action identifier for messages broadcast when a training session was started or
+     * stopped
+     */
+    public static final String BROADCAST_ACTION_ACTIVE_TRAINING_CHANGED = "org.secuso.privacyfriendlystepcounter.ACTIVE_TRAINING_CHANGED";
+    public static final String BROADCAST_EXTRA_TRAINING_ACTIVE = "org.secuso.privacyfriendlystepcounter.EXTRA_TRAINING_ACTIVE";
     public static final String LOG_CLASS = TrainingPersistenceHelper.class.getName();
 
+    private static final long NO_ACTIVE_TRAINING = 0;
+    private static final long ACTIVE_TRAINING_UNKNOWN = -1;
+
+    /**
+     * The id of the active training session, {@link #NO_ACTIVE_TRAINING} if there is none or
+     * {@link #ACTIVE_TRAINING_UNKNOWN} if it has to be loaded from database
+     */
+    private static volatile long activeTrainingId = ACTIVE_TRAINING_UNKNOWN;
+
     /**
      * @deprecated Use {@link TrainingDbHelper#getAllTrainings()} instead.
      *
@@ -43,7 +62,7 @@ public class TrainingPersistenceHelper {
      * @return a list of training sessions
      */
     public static List<Training> getAllItems(Context context) {
-        return new TrainingDbHelper(context).getAllTrainings();
+        return DatabaseProvider.getTrainingDbHelper(context).getAllTrainings();
     }
 
     /**
@@ -56,24 +75,93 @@ public class TrainingPersistenceHelper {
      * @return the requested training session or null
      */
     public static Training getItem(long id, Context context) {
-        return new TrainingDbHelper(context).getTraining((int) id);
+        return DatabaseProvider.getTrainingDbHelper(context).getTraining((int) id);
     }
 
     /**
-     * @deprecated Use {@link TrainingDbHelper#getActiveTraining()} instead.
-     *
-     * Gets the active training session
+     * Gets the active training session. Only the id of the active training session is cached, so
+     * the returned model can be changed and saved.
      *
      * @param context The application context
      * @return the requested training session or null
      */
     public static Training getActiveItem(Context context) {
-        return new TrainingDbHelper(context).getActiveTraining();
+        long id = getActiveTrainingId(context);
+        if (id == NO_ACTIVE_TRAINING) {
+            return null;
+        }
+        Training training = DatabaseProvider.getTrainingDbHelper(context).getTraining((int) id);
+        if (training == null || training.getEnd() != 0) {
+            // changed without this helper, load it again
+            invalidateCache();
+            id = getActiveTrainingId(context);
+            training = (id == NO_ACTIVE_TRAINING) ? null : DatabaseProvider.getTrainingDbHelper(context).getTraining((int) id);
+        }
+        return training;
+    }
+
+    /**
+     * Whether a training session is active. Reads the database only on first access after start
+     * or {@link #invalidateCache()}. Listen to {@link #BROADCAST_ACTION_ACTIVE_TRAINING_CHANGED}
+     * to get notified about changes.
+     *
+     * @param context The application context
+     * @return true if a training session is active
+     */
+    public static boolean isTrainingActive(Context context) {
+        return getActiveTrainingId(context) != NO_ACTIVE_TRAINING;
+    }
+
+    /**
+     * Drops the cached active training session. Has to be called whenever the training sessions
+     * were changed without using this helper, e.g. after restoring a backup.
+     */
+    public static synchronized void invalidateCache() {
+        activeTrainingId = ACTIVE_TRAINING_UNKNOWN;
+    }
+
+    private static long getActiveTrainingId(Context context) {
+        long id = activeTrainingId;
+        if (id == ACTIVE_TRAINING_UNKNOWN) {
+            id = loadActiveTrainingId(context);
+        }
+        return id;
+    }
+
+    private static synchronized long loadActiveTrainingId(Context context) {
+        if (activeTrainingId == ACTIVE_TRAINING_UNKNOWN) {
+            Training training = DatabaseProvider.getTrainingDbHelper(context).getActiveTraining();
+            activeTrainingId = (training != null) ? training.getId() : NO_ACTIVE_TRAINING;
+        }
+        return activeTrainingId;
+    }
+
+    /**
+     * Updates the cached active training session and broadcasts if it was started or stopped.
+     *
+     * @param id      The id of the new active training session or {@link #NO_ACTIVE_TRAINING}
+     * @param context The application context
+     */
+    private static void setActiveTrainingId(long id, Context context) {
+        long oldId;
+        synchronized (TrainingPersistenceHelper.class) {
+            oldId = activeTrainingId;
+            activeTrainingId = id;
+        }
+        if (oldId == id) {
+            return;
+        }
+        Intent localIntent = new Intent(BROADCAST_ACTION_ACTIVE_TRAINING_CHANGED);
+        localIntent.putExtra(BROADCAST_EXTRA_TRAINING_ACTIVE, id != NO_ACTIVE_TRAINING);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(localIntent);
     }
 
     /**
      * Stores the given training session to database.
-     * If id is set, the training session will be updated else it will be created
+     * If id is set, the training session will be updated else it will be created. The totals of
+     * the active training session are not overwritten, see {@link TrainingDbHelper#updateTraining(Training)}.
+     * Runs database work, so call it from {@link PersistenceExecutor} or use
+     * {@link #save(Training, Context, PersistenceExecutor.Callback)}.
      *
      * @param item    the training session to store
      * @param context The application context
@@ -89,6 +177,7 @@ public class TrainingPersistenceHelper {
                 return null;
             } else {
                 item.setId(insertedId);
+                onSaved(item, context);
                 return item;
             }
         } else {
@@ -96,11 +185,53 @@ public class TrainingPersistenceHelper {
             if (affectedRows == 0) {
                 return null;
             } else {
+                onSaved(item, context);
                 return item;
             }
         }
     }
 
+    /**
+     * Stores the given training session in background, see {@link #save(Training, Context)}.
+     *
+     * @param item     the training session to store
+     * @param context  The application context
+     * @param callback Receives the saved training session or null on the main thread, may be null
+     * @return the future result
+     */
+    public static Future<Training> save(final Training item, final Context context, PersistenceExecutor.Callback<Training> callback) {
+        return PersistenceExecutor.submit(new Callable<Training>() {
+            @Override
+            public Training call() {
+                return save(item, context);
+            }
+        }, callback);
+    }
+
+    private static void onSaved(Training item, Context context) {
+        if (item.getEnd() == 0) {
+            setActiveTrainingId(item.getId(), context);
+        } else if (item.getId() == activeTrainingId) {
+            setActiveTrainingId(NO_ACTIVE_TRAINING, context);
+        }
+    }
+
+    /**
+     * Stores the current totals of a training session. Also stores them if the session was
+     * stopped in the meantime, as the service checkpoints the last steps only after it was
+     * notified about the stopped session. Does nothing if the session was deleted.
+     *
+     * @param id       The id of the training session
+     * @param steps    The steps since the start of the training session
+     * @param distance The distance in meters
+     * @param calories The calories in kcal
+     * @param context  The application context
+     * @return true if the totals were stored
+     */
+    public static boolean saveProgress(long id, int steps, double distance, double calories, Context context) {
+        return DatabaseProvider.getTrainingDbHelper(context).updateTrainingTotals(id, steps, distance, calories) > 0;
+    }
+
     /**
      * @deprecated Use {@link TrainingDbHelper#deleteTraining(Training)} instead.
      *
@@ -111,10 +242,30 @@ public class TrainingPersistenceHelper {
      * @return true if deletion was successful else false
      */
     public static boolean delete(Training item, Context context) {
-        new TrainingDbHelper(context).deleteTraining(item);
+        DatabaseProvider.getTrainingDbHelper(context).deleteTraining(item);
+        if (item != null && item.getId() == activeTrainingId) {
+            setActiveTrainingId(NO_ACTIVE_TRAINING, context);
+        }
         return true;
     }
 
+    /**
+     * Deletes the given training session in background, see {@link #delete(Training, Context)}.
+     *
+     * @param item     the item to delete
+     * @param context  The application context
+     * @param callback Receives true if deletion was successful on the main thread, may be null
+     * @return the future result
+     */
+    public static Future<Boolean> delete(final Training item, final Context context, PersistenceExecutor.Callback<Boolean> callback) {
+        return PersistenceExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return delete(item, context);
+            }
+        }, callback);
+    }
+
     /**
      * @deprecated Use {@link TrainingDbHelper#addTraining(Training)} instead.
      *
@@ -125,7 +276,7 @@ public class TrainingPersistenceHelper {
      * @return the inserted id
      */
     protected static long insert(Training item, Context context) {
-        return new TrainingDbHelper(context).addTraining(item);
+        return DatabaseProvider.getTrainingDbHelper(context).addTraining(item);
     }
 
     /**
@@ -138,6 +289,6 @@ public class TrainingPersistenceHelper {
      * @return the number of rows affected
      */
     protected static int update(Training item, Context context) {
-        return new TrainingDbHelper(context).updateTraining(item);
+        return DatabaseProvider.getTrainingDbHelper(context).updateTraining(item);
     }
 }
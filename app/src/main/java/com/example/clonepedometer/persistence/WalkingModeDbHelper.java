@@ -69,26 +69,9 @@ public class WalkingModeDbHelper extends SQLiteOpenHelper {
                     WalkingModeEntry.KEY_IS_DELETED + INTEGER_TYPE +
                     " )";
     private static final String LOG_CLASS = WalkingModeDbHelper.class.getName();
-    private static SQLiteDatabase db;
 
     private Context context;
 
-    /**
-     * Returns a static database instance
-     * @param instance Instance of stepCountDbHelper to fetch new db-instance if necessary
-     * @return static database instance
-     */
-    private static SQLiteDatabase getDatabase(WalkingModeDbHelper instance){
-        if(db == null){
-            db = instance.getWritableDatabase();
-        }
-        return db;
-    }
-
-    public static void invalidateReference(){
-        db = null;
-    }
-
     public WalkingModeDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         this.context = context;
@@ -135,7 +118,7 @@ public class WalkingModeDbHelper extends SQLiteOpenHelper {
      * @return the inserted id
      */
     public long addWalkingMode(WalkingMode walkingMode){
-        return addWalkingMode(walkingMode, getDatabase(this));
+        return addWalkingMode(walkingMode, getWritableDatabase());
     }
 
     /**
@@ -160,7 +143,7 @@ public class WalkingModeDbHelper extends SQLiteOpenHelper {
     public void addWalkingModeWithID(WalkingMode walkingMode){
         ContentValues values = walkingMode.toContentValues();
         values.put(KEY_ID, walkingMode.getId());
-        getDatabase(this).insert(
+        getWritableDatabase().insert(
                 TABLE_NAME,
                 null,
                 values);
@@ -235,6 +218,24 @@ public class WalkingModeDbHelper extends SQLiteOpenHelper {
         return walkingModes;
     }
 
+    /**
+     * Gets all walking modes from database including the soft-deleted ones
+     *
+     * @return a list of walking modes
+     */
+    public List<WalkingMode> getAllWalkingModesIncludingDeleted(){
+        Cursor c = getCursor(null, null);
+        List<WalkingMode> walkingModes = new ArrayList<>();
+        if (c == null) {
+            return walkingModes;
+        }
+        while (c.moveToNext()) {
+            walkingModes.add(WalkingMode.from(c));
+        }
+        c.close();
+        return walkingModes;
+    }
+
     /**
      * Updates the given walking mode in database
      *
@@ -247,7 +248,7 @@ public class WalkingModeDbHelper extends SQLiteOpenHelper {
         String selection = KEY_ID + " = ?";
         String[] selectionArgs = {String.valueOf(walkingMode.getId())};
 
-        return getDatabase(this).update(
+        return getWritableDatabase().update(
                 TABLE_NAME,
                 values,
                 selection,
@@ -265,14 +266,14 @@ public class WalkingModeDbHelper extends SQLiteOpenHelper {
         }
         String selection = KEY_ID + " = ?";
         String[] selectionArgs = {String.valueOf(walkingMode.getId())};
-        getDatabase(this).delete(TABLE_NAME, selection, selectionArgs);
+        getWritableDatabase().delete(TABLE_NAME, selection, selectionArgs);
     }
 
     /**
      * Deletes all walking modes from database
      */
     public void deleteAllWalkingModes(){
-        getDatabase(this).execSQL("delete from " + TABLE_NAME);
+        getWritableDatabase().execSQL("delete from " + TABLE_NAME);
     }
 
     /**
@@ -298,7 +299,7 @@ public class WalkingModeDbHelper extends SQLiteOpenHelper {
         String sortOrder =
                 KEY_ID + " ASC";
 
-        return getDatabase(this).query(
+        return getWritableDatabase().query(
                 TABLE_NAME,                         // The table to query
                 projection,                         // The columns to return
                 selection,                          // The columns for the WHERE clause
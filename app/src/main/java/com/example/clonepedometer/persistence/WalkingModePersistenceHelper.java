@@ -24,7 +24,12 @@ import android.util.Log;
 
 import com.example.clonepedometer.models.WalkingMode;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * Helper to save and restore walking modes from database.
@@ -42,6 +47,73 @@ public class WalkingModePersistenceHelper {
     public static final String BROADCAST_EXTRA_NEW_WALKING_MODE = "org.secuso.privacyfriendlystepcounter.EXTRA_NEW_WALKING_MODE";
     public static final String LOG_CLASS = WalkingModePersistenceHelper.class.getName();
 
+    /**
+     * All walking modes (including soft-deleted ones) by id or null if they have to be reloaded.
+     * The map is never modified, it is replaced as a whole.
+     */
+    private static volatile Map<Long, WalkingMode> cachedWalkingModes = null;
+
+    /**
+     * Gets the specific walking mode from the in-memory cache. All walking modes are loaded at
+     * once on first access, so reading many step counts does not cause a query per row.
+     * <p>
+     * The returned instance is shared and must not be modified. Use {@link #getItem(long, Context)}
+     * to get a walking mode which should be changed and saved.
+     *
+     * @param id      the id of the walking mode
+     * @param context The application context
+     * @return the requested walking mode or null
+     */
+    public static WalkingMode getCachedItem(long id, Context context) {
+        Map<Long, WalkingMode> walkingModes = cachedWalkingModes;
+        if (walkingModes == null) {
+            walkingModes = loadCache(context);
+        }
+        return walkingModes.get(id);
+    }
+
+    /**
+     * Gets the step length of each walking mode, including deleted ones, from the in-memory cache.
+     *
+     * @param context The application context
+     * @return the step length in meters by walking mode id
+     */
+    public static Map<Long, Double> getCachedStepLengths(Context context) {
+        Map<Long, WalkingMode> walkingModes = cachedWalkingModes;
+        if (walkingModes == null) {
+            walkingModes = loadCache(context);
+        }
+        Map<Long, Double> stepLengths = new HashMap<>();
+        for (WalkingMode walkingMode : walkingModes.values()) {
+            stepLengths.put(walkingMode.getId(), walkingMode.getStepLength());
+        }
+        return stepLengths;
+    }
+
+    /**
+     * Drops the cached walking modes. Has to be called whenever the walking modes were changed
+     * without using this helper, e.g. after restoring a backup.
+     */
+    public static synchronized void invalidateCache() {
+        cachedWalkingModes = null;
+    }
+
+    private static synchronized Map<Long, WalkingMode> loadCache(Context context) {
+        // Loading and invalidating is synchronized, so a concurrent change cannot be overwritten
+        // by a stale map.
+        Map<Long, WalkingMode> walkingModes = cachedWalkingModes;
+        if (walkingModes != null) {
+            return walkingModes;
+        }
+        Map<Long, WalkingMode> loaded = new HashMap<>();
+        for (WalkingMode walkingMode : DatabaseProvider.getWalkingModeDbHelper(context).getAllWalkingModesIncludingDeleted()) {
+            loaded.put(walkingMode.getId(), walkingMode);
+        }
+        walkingModes = Collections.unmodifiableMap(loaded);
+        cachedWalkingModes = walkingModes;
+        return walkingModes;
+    }
+
     /**
      * @deprecated Use {@link WalkingModeDbHelper#getAllWalkingModes()} instead.
      *
@@ -51,7 +123,7 @@ public class WalkingModePersistenceHelper {
      * @return a list of walking modes
      */
     public static List<WalkingMode> getAllItems(Context context) {
-        return new WalkingModeDbHelper(context).getAllWalkingModes();
+        return DatabaseProvider.getWalkingModeDbHelper(context).getAllWalkingModes();
     }
 
     /**
@@ -64,12 +136,14 @@ public class WalkingModePersistenceHelper {
      * @return the requested walking mode or null
      */
     public static WalkingMode getItem(long id, Context context) {
-        return new WalkingModeDbHelper(context).getWalkingMode((int) id);
+        return DatabaseProvider.getWalkingModeDbHelper(context).getWalkingMode((int) id);
     }
 
     /**
      * Stores the given walking mode to database.
-     * If id is set, the walking mode will be updated else it will be created
+     * If id is set, the walking mode will be updated else it will be created.
+     * Runs database work, so call it from {@link PersistenceExecutor} or use
+     * {@link #save(WalkingMode, Context, PersistenceExecutor.Callback)}.
      *
      * @param item    the walking mode to store
      * @param context The application context
@@ -97,6 +171,23 @@ public class WalkingModePersistenceHelper {
         }
     }
 
+    /**
+     * Stores the given walking mode in background, see {@link #save(WalkingMode, Context)}.
+     *
+     * @param item     the walking mode to store
+     * @param context  The application context
+     * @param callback Receives the saved walking mode or null on the main thread, may be null
+     * @return the future result
+     */
+    public static Future<WalkingMode> save(final WalkingMode item, final Context context, PersistenceExecutor.Callback<WalkingMode> callback) {
+        return PersistenceExecutor.submit(new Callable<WalkingMode>() {
+            @Override
+            public WalkingMode call() {
+                return save(item, context);
+            }
+        }, callback);
+    }
+
     /**
      * @deprecated Use {@link WalkingModeDbHelper#deleteWalkingMode(WalkingMode)} instead.
      *
@@ -107,7 +198,8 @@ public class WalkingModePersistenceHelper {
      * @return true if deletion was successful else false
      */
     public static boolean delete(WalkingMode item, Context context) {
-        new WalkingModeDbHelper(context).deleteWalkingMode(item);
+        DatabaseProvider.getWalkingModeDbHelper(context).deleteWalkingMode(item);
+        invalidateCache();
         return true;
     }
 
@@ -128,7 +220,26 @@ public class WalkingModePersistenceHelper {
     }
 
     /**
-     * Sets the given walking mode to the active one
+     * Soft deletes the given walking mode in background, see {@link #softDelete(WalkingMode, Context)}.
+     *
+     * @param item     The item to soft delete
+     * @param context  The application context
+     * @param callback Receives true if soft deletion was successful on the main thread, may be null
+     * @return the future result
+     */
+    public static Future<Boolean> softDelete(final WalkingMode item, final Context context, PersistenceExecutor.Callback<Boolean> callback) {
+        return PersistenceExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return softDelete(item, context);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sets the given walking mode to the active one.
+     * Runs database work, so call it from {@link PersistenceExecutor} or use
+     * {@link #setActiveMode(WalkingMode, Context, PersistenceExecutor.Callback)}.
      *
      * @param mode    the walking mode to activate
      * @param context The application context
@@ -162,6 +273,23 @@ public class WalkingModePersistenceHelper {
         return success;
     }
 
+    /**
+     * Sets the given walking mode to the active one in background, see {@link #setActiveMode(WalkingMode, Context)}.
+     *
+     * @param mode     the walking mode to activate
+     * @param context  The application context
+     * @param callback Receives true if active mode changed to given one on the main thread, may be null
+     * @return the future result
+     */
+    public static Future<Boolean> setActiveMode(final WalkingMode mode, final Context context, PersistenceExecutor.Callback<Boolean> callback) {
+        return PersistenceExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return setActiveMode(mode, context);
+            }
+        }, callback);
+    }
+
     /**
      * @deprecated Use {@link WalkingModeDbHelper#getActiveWalkingMode} instead.
      *
@@ -171,7 +299,7 @@ public class WalkingModePersistenceHelper {
      * @return The walking mode with active-flag set
      */
     public static WalkingMode getActiveMode(Context context) {
-        return new WalkingModeDbHelper(context).getActiveWalkingMode();
+        return DatabaseProvider.getWalkingModeDbHelper(context).getActiveWalkingMode();
     }
 
     /**
@@ -184,7 +312,9 @@ public class WalkingModePersistenceHelper {
      * @return the inserted id
      */
     protected static long insert(WalkingMode item, Context context) {
-        return new WalkingModeDbHelper(context).addWalkingMode(item);
+        long insertedId = DatabaseProvider.getWalkingModeDbHelper(context).addWalkingMode(item);
+        invalidateCache();
+        return insertedId;
     }
 
     /**
@@ -197,6 +327,8 @@ public class WalkingModePersistenceHelper {
      * @return the number of rows affected
      */
     protected static int update(WalkingMode item, Context context) {
-        return new WalkingModeDbHelper(context).updateWalkingMode(item);
+        int affectedRows = DatabaseProvider.getWalkingModeDbHelper(context).updateWalkingMode(item);
+        invalidateCache();
+        return affectedRows;
     }
 }
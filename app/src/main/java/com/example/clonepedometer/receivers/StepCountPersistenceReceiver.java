@@ -28,10 +28,13 @@ import androidx.legacy.content.WakefulBroadcastReceiver;
 
 import com.example.clonepedometer.Factory;
 import com.example.clonepedometer.models.WalkingMode;
+import com.example.clonepedometer.persistence.PersistenceExecutor;
 import com.example.clonepedometer.persistence.StepCountPersistenceHelper;
 import com.example.clonepedometer.persistence.WalkingModePersistenceHelper;
 import com.example.clonepedometer.utils.StepDetectionServiceHelper;
 
+import java.util.concurrent.Callable;
+
 
 /**
  * Stores the current step count in database.
@@ -42,7 +45,10 @@ import com.example.clonepedometer.utils.StepDetectionServiceHelper;
 
 public class StepCountPersistenceReceiver extends WakefulBroadcastReceiver {
     private static final String LOG_CLASS = StepCountPersistenceReceiver.class.getName();
-    private WalkingMode oldWalkingMode;
+    /**
+     * Id of the walking mode the steps were taken in or -1 for the active one
+     */
+    private long oldWalkingModeId = -1;
     /**
      * The application context
      */
@@ -54,29 +60,54 @@ public class StepCountPersistenceReceiver extends WakefulBroadcastReceiver {
         }
 
         @Override
-        public void onServiceConnected(ComponentName name, IBinder service) {
-            StepCountPersistenceHelper.storeStepCounts(service, context, oldWalkingMode);
-            context.getApplicationContext().unbindService(mServiceConnection);
-            Log.d("service cycle", "UNbound service in onServiceConnected PERSISTENCEReceiver");
-
-            StepDetectionServiceHelper.stopAllIfNotRequired(false, context);
-            WidgetReceiver.forceWidgetUpdate(context);
-            if(mSaveListener != null) {
-                mSaveListener.onSaveDone();
-            }
+        public void onServiceConnected(ComponentName name, final IBinder service) {
+            // save in background, the service is unbound when the steps are committed
+            PersistenceExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    WalkingMode oldWalkingMode = null;
+                    if (oldWalkingModeId != -1) {
+                        oldWalkingMode = WalkingModePersistenceHelper.getItem(oldWalkingModeId, context);
+                    }
+                    if (oldWalkingMode == null) {
+                        oldWalkingMode = WalkingModePersistenceHelper.getActiveMode(context);
+                    }
+                    return StepCountPersistenceHelper.storeStepCounts(service, context, oldWalkingMode);
+                }
+            }, new PersistenceExecutor.Callback<Boolean>() {
+                @Override
+                public void onResult(Boolean saved) {
+                    onSaveFinished();
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    // the steps stay in the service and its journal, so they are saved next time
+                    onSaveFinished();
+                }
+            });
         }
     };
 
+    /**
+     * Releases the service and notifies the listener, whether the save succeeded or not.
+     */
+    private void onSaveFinished() {
+        context.getApplicationContext().unbindService(mServiceConnection);
+        Log.d("service cycle", "UNbound service in onServiceConnected PERSISTENCEReceiver");
+
+        StepDetectionServiceHelper.stopAllIfNotRequired(false, context);
+        WidgetReceiver.forceWidgetUpdate(context);
+        if (mSaveListener != null) {
+            mSaveListener.onSaveDone();
+        }
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         Log.i(LOG_CLASS, "Storing the steps");
         this.context = context.getApplicationContext();
-        if (intent.hasExtra(WalkingModePersistenceHelper.BROADCAST_EXTRA_OLD_WALKING_MODE)) {
-            oldWalkingMode = WalkingModePersistenceHelper.getItem(intent.getLongExtra(WalkingModePersistenceHelper.BROADCAST_EXTRA_OLD_WALKING_MODE, -1), context);
-        }
-        if(oldWalkingMode == null){
-            oldWalkingMode = WalkingModePersistenceHelper.getActiveMode(context);
-        }
+        oldWalkingModeId = intent.getLongExtra(WalkingModePersistenceHelper.BROADCAST_EXTRA_OLD_WALKING_MODE, -1);
         // bind to service
         Intent serviceIntent = new Intent(context, Factory.getStepDetectorServiceClass(context));
         context.getApplicationContext().bindService(serviceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
@@ -34,13 +34,13 @@ import android.widget.RemoteViews;
 
 import com.example.clonepedometer.MainActivity;
 import com.example.clonepedometer.R;
-import com.example.clonepedometer.models.StepCount;
-import com.example.clonepedometer.persistence.StepCountPersistenceHelper;
+import com.example.clonepedometer.models.StepTotals;
+import com.example.clonepedometer.persistence.PersistenceExecutor;
+import com.example.clonepedometer.persistence.StepAggregationHelper;
 import com.example.clonepedometer.utils.StepDetectionServiceHelper;
 import com.example.clonepedometer.utils.UnitHelper;
 
 import java.util.Calendar;
-import java.util.List;
 
 public class WidgetReceiver extends AppWidgetProvider {
     public static final String PAUSE_STEP_DETECTION_ACTION = "com.example.clonepedometer.PAUSE_STEP_DETECTION_ACTION";
@@ -49,17 +49,31 @@ public class WidgetReceiver extends AppWidgetProvider {
     public static final int DATA_SET_DISTANCE = 1;
     public static final int DATA_SET_CALORIES = 2;
 
-    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+    public void onUpdate(final Context context, final AppWidgetManager appWidgetManager, final int[] appWidgetIds) {
+        // query the step count in background, the broadcast is finished when the widgets are updated
+        final PendingResult pendingResult = goAsync();
+        PersistenceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    updateWidgets(context, appWidgetManager, appWidgetIds);
+                } finally {
+                    pendingResult.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Updates the given widgets with today's step count from database.
+     * Runs database work, so call it from {@link PersistenceExecutor}.
+     */
+    private void updateWidgets(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
-        List<StepCount> stepCounts = StepCountPersistenceHelper.getStepCountsForDay(Calendar.getInstance(), context);
-        int stepCount = 0;
-        double distance = 0;
-        int calories = 0;
-        for (StepCount s: stepCounts) {
-            stepCount += s.getStepCount();
-            distance += s.getDistance();
-            calories += s.getCalories(context);
-        }
+        StepTotals totals = StepAggregationHelper.getTotalsForDay(Calendar.getInstance(), context);
+        int stepCount = totals.getSteps();
+        double distance = totals.getDistance();
+        double calories = totals.getCalories();
 
         for (int appWidgetId : appWidgetIds) {
             Bundle appWidgetOptions = appWidgetManager.getAppWidgetOptions(appWidgetId);
@@ -17,10 +17,8 @@
 */
 package com.example.clonepedometer.services;
 
-import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -38,22 +36,27 @@ import android.util.Log;
 import android.widget.Toast;
 
 import androidx.core.app.JobIntentService;
-import androidx.core.app.NotificationCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 
-import com.example.clonepedometer.MainActivity;
 import com.example.clonepedometer.R;
 import com.example.clonepedometer.models.StepCount;
+import com.example.clonepedometer.models.StepTotals;
+import com.example.clonepedometer.models.Training;
+import com.example.clonepedometer.models.WalkingMode;
+import com.example.clonepedometer.persistence.PersistenceExecutor;
+import com.example.clonepedometer.persistence.StepAggregationHelper;
 import com.example.clonepedometer.persistence.StepCountPersistenceHelper;
+import com.example.clonepedometer.persistence.StepJournal;
 import com.example.clonepedometer.persistence.TrainingPersistenceHelper;
 import com.example.clonepedometer.persistence.WalkingModePersistenceHelper;
 import com.example.clonepedometer.utils.AndroidVersionHelper;
 import com.example.clonepedometer.utils.StepDetectionServiceHelper;
-import com.example.clonepedometer.utils.UnitHelper;
+import com.example.clonepedometer.utils.UserSettingsSnapshot;
 
 import java.util.Calendar;
-import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Generic class for a step detector.
@@ -67,15 +70,24 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
 
     /**
      * Broadcast action identifier for messages broadcasted when new steps were detected
+     *
+     * @deprecated New steps are no longer broadcasted, subscribe to {@link StepEventBus} instead.
      */
+    @Deprecated
     public static final String BROADCAST_ACTION_STEPS_DETECTED = "org.secuso.privacyfriendlystepcounter.STEPS_DETECTED";
     /**
      * Extra key for new steps which were added since last broadcast.
+     *
+     * @deprecated See {@link #BROADCAST_ACTION_STEPS_DETECTED}
      */
+    @Deprecated
     public static final String EXTENDED_DATA_NEW_STEPS = "org.secuso.privacyfriendlystepcounter.NEW_STEPS";
     /**
      * Extra key for total step count since service start
+     *
+     * @deprecated See {@link #BROADCAST_ACTION_STEPS_DETECTED}
      */
+    @Deprecated
     public static final String EXTENDED_DATA_TOTAL_STEPS = "org.secuso.privacyfriendlystepcounter.TOTAL_STEPS";
     /**
      * The notification id used for permanent step count notification
@@ -85,7 +97,12 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
     private static final String LOG_TAG = AbstractStepDetectorService.class.getName();
     private final IBinder mBinder = new StepDetectorBinder();
     private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver();
+    /**
+     * How often the permanent notification is updated at most
+     */
+    private static final int MAX_NOTIFICATION_UPDATES_PER_SECOND = 1;
     private NotificationManager mNotifyManager;
+    private StepNotificationRenderer mNotificationRenderer;
     private PowerManager.WakeLock mWakeLock;
     /**
      * Number of steps the user wants to walk every day
@@ -107,7 +124,17 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
     /**
      * Number of steps counted since service start
      */
-    private int total_steps = 0;
+    private final AtomicInteger total_steps = new AtomicInteger();
+    /**
+     * Journal of the steps since last save, survives if the service gets killed
+     */
+    private StepJournal mStepJournal;
+    /**
+     * Totals of the active training session or null if there is none
+     */
+    private volatile TrainingSessionAccumulator mTrainingSession;
+    private StepEventBus.Subscription mTrainingSubscription;
+    private boolean mDestroyed = false;
 
     /**
      * Creates an IntentService.  Invoked by your subclass's constructor.
@@ -126,77 +153,19 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
         if (count <= 0) {
             return;
         }
-        this.total_steps += count;
-        Log.i(LOG_TAG, count + " Step(s) detected. Steps since service start: " + this.total_steps);
-        // broadcast the new steps
-        Intent localIntent = new Intent(BROADCAST_ACTION_STEPS_DETECTED)
-                // Add new step count
-                .putExtra(EXTENDED_DATA_NEW_STEPS, count)
-                .putExtra(EXTENDED_DATA_TOTAL_STEPS, total_steps);
-        // Broadcasts the Intent to receivers in this app.
-        LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
+        // journal first, so the journal never holds less steps than a concurrent save reads
+        if (mStepJournal != null) {
+            mStepJournal.append(count, System.currentTimeMillis());
+        }
+        int totalSteps = this.total_steps.addAndGet(count);
+        Log.i(LOG_TAG, count + " Step(s) detected. Steps since service start: " + totalSteps);
+        // publish the new steps
+        StepEventBus.getInstance().publish(count, totalSteps);
 
         // Update notification
         updateNotification();
     }
 
-    /**
-     * Builds the permanent step count notification
-     *
-     * @param additionalStepCount The number of steps since last save
-     * @return the new notification
-     */
-    protected Notification buildNotification(StepCount additionalStepCount) {
-        int totalSteps = this.totalStepsAtLastSave + additionalStepCount.getStepCount();
-        double totalDistance = this.totalDistanceAtLastSave + additionalStepCount.getDistance();
-        double totalCalories = this.totalCaloriesAtLastSave + additionalStepCount.getCalories(getApplicationContext());
-        // Get user preferences
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
-        boolean showSteps = sharedPref.getBoolean(this.getString(R.string.pref_notification_permanent_show_steps), true);
-        boolean showDistance = sharedPref.getBoolean(this.getString(R.string.pref_notification_permanent_show_distance), false);
-        boolean showCalories = sharedPref.getBoolean(this.getString(R.string.pref_notification_permanent_show_calories), false);
-        String message = "";
-        if (showSteps) {
-            message = String.format(getString(R.string.notification_text_steps), totalSteps, this.dailyStepGoal);
-        }
-        if (showDistance) {
-            message += (!message.isEmpty()) ? "\n" : "";
-            message += String.format(getString(R.string.notification_text_distance), UnitHelper.kilometerToUsersLengthUnit(UnitHelper.metersToKilometers(totalDistance), this), UnitHelper.usersLengthDescriptionShort(this));
-        }
-        if (showCalories) {
-            message += (!message.isEmpty()) ? "\n" : "";
-            message += String.format(getString(R.string.notification_text_calories), totalCalories);
-        }
-        if(message.isEmpty()){
-            message = getString(R.string.notification_text_default);
-        }
-        Intent intent = new Intent(this, MainActivity.class);
-        PendingIntent pIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_IMMUTABLE);
-        mNotifyManager =
-                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        NotificationCompat.Builder mBuilder;
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-
-            mBuilder = new NotificationCompat.Builder(this, CHANNEL_ID);
-            mBuilder.setOnlyAlertOnce(true);
-        } else {
-            mBuilder = new NotificationCompat.Builder(this);
-        }
-        mBuilder.setContentTitle(getString(R.string.app_name))
-                .setContentText(message)
-                .setTicker(message)
-                .setStyle(new NotificationCompat.BigTextStyle().bigText(getString(R.string.app_name)))
-                .setStyle(new NotificationCompat.BigTextStyle().bigText(message))
-                .setSmallIcon(R.drawable.ic_stat_directions_walk);
-        mBuilder.setContentIntent(pIntent);
-        mBuilder.setProgress(this.dailyStepGoal, totalSteps, false);
-        mBuilder.setVisibility(NotificationCompat.VISIBILITY_SECRET);
-        mBuilder.setPriority(NotificationCompat.PRIORITY_MIN);
-        mBuilder.setSilent(true);
-        return mBuilder.build();
-    }
-
     // has to be implemented by subclasses
     @Override
     public abstract void onSensorChanged(SensorEvent event);
@@ -216,8 +185,33 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
 
     @Override
     public void onCreate() {
+        // save the steps which were not saved when the service was killed the last time
+        final Context context = getApplicationContext();
+        mStepJournal = StepJournal.getInstance(context);
+        if (mStepJournal != null) {
+            // steps journaled from now on are counted by this service
+            final long journalEnd = mStepJournal.getEnd();
+            PersistenceExecutor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return StepCountPersistenceHelper.restoreStepJournal(context, journalEnd);
+                }
+            });
+        }
         createNotificationChannel();
-        startForeground(NOTIFICATION_ID, buildNotification(this.stepCountFromTotalSteps()));
+        mNotifyManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        mNotificationRenderer = new StepNotificationRenderer(this, NOTIFICATION_ID, CHANNEL_ID, MAX_NOTIFICATION_UPDATES_PER_SECOND, new StepNotificationRenderer.ContentProvider() {
+            @Override
+            public void fillContent(StepNotificationRenderer.Content content) {
+                StepCount additionalStepCount = stepCountFromTotalSteps();
+                content.steps = totalStepsAtLastSave + additionalStepCount.getStepCount();
+                content.dailyStepGoal = dailyStepGoal;
+                content.distance = totalDistanceAtLastSave + additionalStepCount.getDistance();
+                content.calories = totalCaloriesAtLastSave + additionalStepCount.getCalories(getApplicationContext());
+            }
+        });
+        startForeground(NOTIFICATION_ID, mNotificationRenderer.build());
+        updateTrainingSession();
         super.onCreate();
         Log.i(LOG_TAG, "Creating service cycle."+ this.getClass().getName());
     }
@@ -227,10 +221,15 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
         Log.i(LOG_TAG, "Destroying service cycle."+ this.getClass().getName());
         // release wake lock if any
         acquireOrReleaseWakeLock();
+        mDestroyed = true;
+        stopTrainingSession();
         // Unregister sensor listeners
         SensorManager sensorManager = (SensorManager) getApplicationContext().getSystemService(SENSOR_SERVICE);
         sensorManager.unregisterListener(this);
         // Cancel notification
+        if (mNotificationRenderer != null) {
+            mNotificationRenderer.destroy();
+        }
         if (mNotifyManager != null && cancelNotificationOnDestroy()) {
             mNotifyManager.cancel(NOTIFICATION_ID);
         }
@@ -238,7 +237,14 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
         SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
         sharedPref.unregisterOnSharedPreferenceChangeListener(this);
         // Force save of step count
-        StepCountPersistenceHelper.storeStepCounts(this.mBinder, getApplicationContext(), WalkingModePersistenceHelper.getActiveMode(getApplicationContext()));
+        final Context context = getApplicationContext();
+        final IBinder binder = this.mBinder;
+        PersistenceExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return StepCountPersistenceHelper.storeStepCounts(binder, context, WalkingModePersistenceHelper.getActiveMode(context));
+            }
+        });
         // StepDetectionServiceHelper.startPersistenceService(this);
         super.onDestroy();
     }
@@ -258,9 +264,7 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
         // register for sensors
         if(!AndroidVersionHelper.isHardwareStepCounterEnabled(this)){
             //use accelerometer
-            SensorManager sensorManager = (SensorManager) getApplicationContext().getSystemService(SENSOR_SERVICE);
-            Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-            sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_NORMAL);
+            registerAccelerometerListener(sharedPref);
         } else if(counter) {
             SensorManager sensorManager = (SensorManager) getApplicationContext().getSystemService(SENSOR_SERVICE);
             Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
@@ -287,7 +291,7 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
         filterRefreshUpdate.addAction(StepCountPersistenceHelper.BROADCAST_ACTION_STEPS_SAVED);
         filterRefreshUpdate.addAction(StepCountPersistenceHelper.BROADCAST_ACTION_STEPS_INSERTED);
         filterRefreshUpdate.addAction(StepCountPersistenceHelper.BROADCAST_ACTION_STEPS_UPDATED );
-//        filterRefreshUpdate.addAction(TrainingActivity.BROADCAST_ACTION_TRAINING_STOPPED);
+        filterRefreshUpdate.addAction(TrainingPersistenceHelper.BROADCAST_ACTION_ACTIVE_TRAINING_CHANGED);
         LocalBroadcastManager.getInstance(this).registerReceiver(broadcastReceiver, filterRefreshUpdate);
         // load step count from database
         getStepsAtLastSave();
@@ -295,6 +299,20 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
         return START_STICKY;
     }
 
+    /**
+     * Registers this service for accelerometer events.
+     * The events are batched in the sensor hardware FIFO for up to the user's max report latency,
+     * so the CPU is not woken for every single sample.
+     *
+     * @param sharedPref The default shared preferences
+     */
+    protected void registerAccelerometerListener(SharedPreferences sharedPref) {
+        int maxReportLatencyUs = Integer.parseInt(sharedPref.getString(getString(R.string.pref_accelerometer_max_report_latency), getString(R.string.pref_default_accelerometer_max_report_latency)));
+        SensorManager sensorManager = (SensorManager) getApplicationContext().getSystemService(SENSOR_SERVICE);
+        Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_NORMAL, maxReportLatencyUs);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return this.mBinder;
@@ -304,31 +322,35 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         // Detect changes on preferences and update our internal variable
+        // Changes of the notification's display preferences are handled by the notification renderer
         if (key.equals(getString(R.string.pref_daily_step_goal))) {
             dailyStepGoal = Integer.parseInt(sharedPreferences.getString(getString(R.string.pref_daily_step_goal), "10000"));
             updateNotification();
-        } else if (key.equals(getString(R.string.pref_notification_permanent_show_steps)) ||
-                key.equals(getString(R.string.pref_notification_permanent_show_distance)) ||
-                key.equals(getString(R.string.pref_notification_permanent_show_calories))) {
-            updateNotification();
         } else if(key.equals(getString(R.string.pref_use_wake_lock))){
             acquireOrReleaseWakeLock();
         }
     }
 
     /**
-     * Fetches the step count for this day from database
+     * Fetches the step count for this day from database in background and updates the notification
+     * afterwards
      */
     private void getStepsAtLastSave() {
-        List<StepCount> stepCounts = StepCountPersistenceHelper.getStepCountsForDay(Calendar.getInstance(), getApplicationContext());
-        totalStepsAtLastSave = 0;
-        totalDistanceAtLastSave = 0;
-        totalCaloriesAtLastSave = 0;
-        for (StepCount stepCount : stepCounts) {
-            totalStepsAtLastSave += stepCount.getStepCount();
-            totalDistanceAtLastSave += stepCount.getDistance();
-            totalCaloriesAtLastSave += stepCount.getCalories(getApplicationContext());
-        }
+        final Context context = getApplicationContext();
+        PersistenceExecutor.submit(new Callable<StepTotals>() {
+            @Override
+            public StepTotals call() {
+                return StepAggregationHelper.getTotalsForDay(Calendar.getInstance(), context);
+            }
+        }, new PersistenceExecutor.Callback<StepTotals>() {
+            @Override
+            public void onResult(StepTotals totals) {
+                totalStepsAtLastSave = totals.getSteps();
+                totalDistanceAtLastSave = totals.getDistance();
+                totalCaloriesAtLastSave = totals.getCalories();
+                updateNotification();
+            }
+        });
     }
 
     /**
@@ -338,26 +360,24 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
      */
     protected StepCount stepCountFromTotalSteps() {
         StepCount stepCount = new StepCount();
-        stepCount.setStepCount(total_steps);
+        stepCount.setStepCount(total_steps.get());
         stepCount.setWalkingMode(WalkingModePersistenceHelper.getActiveMode(getApplicationContext())); // use current walking mode
         return stepCount;
     }
 
     /**
-     * Updates or creates the progress notification
+     * Updates the progress notification.
+     * The update is rate-limited and skipped if the shown values did not change.
      */
     protected void updateNotification() {
-        if(PreferenceManager.getDefaultSharedPreferences(this).getBoolean(this.getString(R.string.pref_step_counter_enabled), true)){
-            Notification notification = buildNotification(this.stepCountFromTotalSteps());
-            mNotifyManager.notify(NOTIFICATION_ID, notification);
-        }
+        mNotificationRenderer.requestUpdate();
     }
 
     private void acquireOrReleaseWakeLock(){
         SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
         boolean useWakeLock = sharedPref.getBoolean(getString(R.string.pref_use_wake_lock), false);
         boolean useWakeLockDuringTraining = sharedPref.getBoolean(getString(R.string.pref_use_wake_lock_during_training), true);
-        boolean isTrainingActive = TrainingPersistenceHelper.getActiveItem(getApplicationContext()) != null;
+        boolean isTrainingActive = TrainingPersistenceHelper.isTrainingActive(getApplicationContext());
         if(mWakeLock == null && (useWakeLock || (useWakeLockDuringTraining && isTrainingActive))) {
             acquireWakeLock();
         }
@@ -366,6 +386,74 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
         }
     }
 
+    /**
+     * Loads the active training session in background and starts or stops accumulating its steps
+     * accordingly.
+     */
+    private void updateTrainingSession() {
+        final Context context = getApplicationContext();
+        PersistenceExecutor.submit(new Callable<TrainingSessionAccumulator>() {
+            @Override
+            public TrainingSessionAccumulator call() {
+                Training training = TrainingPersistenceHelper.getActiveItem(context);
+                if (training == null) {
+                    return null;
+                }
+                TrainingSessionAccumulator current = mTrainingSession;
+                if (current != null && current.getTrainingId() == training.getId()) {
+                    return current;
+                }
+                return createTrainingSession(training, context);
+            }
+        }, new PersistenceExecutor.Callback<TrainingSessionAccumulator>() {
+            @Override
+            public void onResult(TrainingSessionAccumulator session) {
+                if (mDestroyed || session == mTrainingSession) {
+                    return;
+                }
+                stopTrainingSession();
+                if (session != null) {
+                    mTrainingSession = session;
+                    mTrainingSubscription = StepEventBus.getInstance().subscribe(session, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the accumulator for the given training session, which checkpoints its totals in
+     * background. Runs database work, so call it from {@link PersistenceExecutor}.
+     */
+    private static TrainingSessionAccumulator createTrainingSession(Training training, final Context context) {
+        WalkingMode walkingMode = WalkingModePersistenceHelper.getActiveMode(context);
+        TrainingSessionAccumulator session = new TrainingSessionAccumulator(training.getId(), training.getStart(),
+                (walkingMode != null) ? walkingMode.getStepLength() : 0,
+                UserSettingsSnapshot.get(context).getBodyWeight(),
+                new TrainingSessionAccumulator.CheckpointListener() {
+                    @Override
+                    public void onCheckpoint(final long trainingId, final int steps, final double distance, final double calories) {
+                        PersistenceExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                TrainingPersistenceHelper.saveProgress(trainingId, steps, distance, calories, context);
+                            }
+                        });
+                    }
+                });
+        session.resume((int) training.getSteps(), training.getDistance());
+        return session;
+    }
+
+    private void stopTrainingSession() {
+        if (mTrainingSession == null) {
+            return;
+        }
+        StepEventBus.getInstance().unsubscribe(mTrainingSubscription);
+        mTrainingSession.checkpoint();
+        mTrainingSubscription = null;
+        mTrainingSession = null;
+    }
+
     /**
      * Acquires a wakelock
      */
@@ -400,15 +488,26 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
          * @return Step count since service start
          */
         public int stepsSinceLastSave() {
-            return total_steps;
+            return total_steps.get();
         }
 
         /**
-         * Resets the step count since last save
-         * Is usually called when we saved the steps.
+         * Removes the saved steps from the step count since last save.
+         * Is usually called when we saved the steps. Steps which were detected while saving are kept.
+         *
+         * @param savedSteps The number of saved steps
          */
-        public void resetStepCount() {
-            total_steps = 0;
+        public void removeSavedSteps(int savedSteps) {
+            total_steps.addAndGet(-savedSteps);
+        }
+
+        /**
+         * Get the running totals of the active training session.
+         *
+         * @return the training session or null if no training session is active
+         */
+        public TrainingSessionAccumulator getTrainingSession() {
+            return mTrainingSession;
         }
 
         public AbstractStepDetectorService getService() {
@@ -430,10 +529,15 @@ public abstract class AbstractStepDetectorService extends JobIntentService imple
                 case StepCountPersistenceHelper.BROADCAST_ACTION_STEPS_SAVED:
                     // Steps were saved, reload step count from database
                     getStepsAtLastSave();
-                    updateNotification();
                     break;
-//                case TrainingActivity.BROADCAST_ACTION_TRAINING_STOPPED:
-//                    acquireOrReleaseWakeLock();
+                case TrainingPersistenceHelper.BROADCAST_ACTION_ACTIVE_TRAINING_CHANGED:
+                    // Training was started or stopped
+                    acquireOrReleaseWakeLock();
+                    updateTrainingSession();
+                    if (!StepDetectionServiceHelper.isStepDetectionEnabled(getApplicationContext())) {
+                        stopSelf();
+                    }
+                    break;
                 default:
             }
         }
@@ -47,6 +47,7 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.example.clonepedometer.MainActivity;
 import com.example.clonepedometer.R;
+import com.example.clonepedometer.utils.DistanceHelper;
 import com.example.clonepedometer.utils.UnitHelper;
 
 import org.jetbrains.annotations.NotNull;
@@ -204,7 +205,7 @@ public class MovementSpeedService extends JobIntentService implements LocationLi
             speed = location.getSpeed();
         } else {
             Log.i(LOG_TAG, "Location has no speed");
-            double distance = calculationBydistance(newLat,newLon,oldLat,oldLon);
+            double distance = DistanceHelper.haversine(newLat,newLon,oldLat,oldLon);
             double timeDifferent = (newTime - curTime) / 1000; // seconds
             speed = (float) (distance / timeDifferent);
             curTime = newTime;
@@ -220,25 +221,6 @@ public class MovementSpeedService extends JobIntentService implements LocationLi
         Log.i(LOG_TAG, "New speed is " + speed + "m/sec " + speed * 3.6 + "km/h" );
     }
 
-    /**
-     * Calculates the distance between two lat/lon-pairs.
-     * @param lat1
-     * @param lon1
-     * @param lat2
-     * @param lon2
-     * @return Distance in meters
-     */
-    private double calculationBydistance(double lat1, double lon1, double lat2, double lon2){
-        double radius = 6371000.785;//EARTH_RADIUS;
-        double dLat = Math.toRadians(lat2-lat1);
-        double dLon = Math.toRadians(lon2-lon1);
-        double a = Math.sin(dLat/2) * Math.sin(dLat/2) +
-                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
-                        Math.sin(dLon/2) * Math.sin(dLon/2);
-        double c = 2 * Math.asin(Math.sqrt(a));
-        return radius * c;
-    }
-
     /**
      * Class used for the client Binder.
      *
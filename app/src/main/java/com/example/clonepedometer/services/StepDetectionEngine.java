@@ -0,0 +1,294 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.services;
+
+/**
+ * Detects steps in a stream of accelerometer samples.
+ * This class does not depend on the Android framework and does not allocate any objects per
+ * sample, so it can be fed at full sensor rate and be tested or benchmarked on a plain JVM.
+ *
+ * @see AccelerometerStepDetectorService
+ */
+public class StepDetectionEngine {
+
+    /**
+     * Default sensitivity, see R.string.pref_accelerometer_threshold
+     */
+    public static final float DEFAULT_ACCELEROMETER_THRESHOLD = 0.75f;
+    /**
+     * Default number of regular steps before counting starts, see R.string.pref_accelerometer_steps_threshold
+     */
+    public static final int DEFAULT_VALID_STEPS_THRESHOLD = 10;
+
+    /**
+     * Receives the detected steps.
+     */
+    public interface StepListener {
+        /**
+         * Called when steps were detected
+         *
+         * @param count          The number of detected steps (greater zero)
+         * @param timestampNanos The timestamp of the sample which completed the step(s)
+         */
+        void onStepsDetected(int count, long timestampNanos);
+    }
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final StepListener listener;
+    private final float[] gravity = new float[3];
+    private final float[] last_extrema = new float[2];
+    private final long[] mLastStepDeltas = new long[10];
+    private final float[] mLastStepAccelerationDeltas = new float[6];
+    private float last_sign;
+    private float last_acceleration_value;
+    private float last_acceleration_diff;
+    private long last_step_time;
+    private int mLastStepDeltasIndex;
+    private int mLastStepAccelerationDeltasIndex;
+    private float accelerometerThreshold = DEFAULT_ACCELEROMETER_THRESHOLD;
+    private int valid_steps;
+    private int validStepsThreshold = DEFAULT_VALID_STEPS_THRESHOLD;
+
+    /**
+     * Creates a new engine
+     *
+     * @param listener The listener which is notified about detected steps
+     */
+    public StepDetectionEngine(StepListener listener) {
+        this.listener = listener;
+        reset();
+    }
+
+    public float getAccelerometerThreshold() {
+        return accelerometerThreshold;
+    }
+
+    public void setAccelerometerThreshold(float accelerometerThreshold) {
+        this.accelerometerThreshold = accelerometerThreshold;
+    }
+
+    public int getValidStepsThreshold() {
+        return validStepsThreshold;
+    }
+
+    public void setValidStepsThreshold(int validStepsThreshold) {
+        this.validStepsThreshold = validStepsThreshold;
+    }
+
+    /**
+     * Resets the filter and regularity state as if no sample was processed yet.
+     * The thresholds are kept.
+     */
+    public void reset() {
+        gravity[0] = gravity[1] = gravity[2] = 0;
+        last_extrema[0] = last_extrema[1] = 0;
+        for (int i = 0; i < mLastStepDeltas.length; i++) {
+            mLastStepDeltas[i] = -1;
+        }
+        for (int i = 0; i < mLastStepAccelerationDeltas.length; i++) {
+            mLastStepAccelerationDeltas[i] = -1;
+        }
+        last_sign = 0;
+        last_acceleration_value = 0;
+        last_acceleration_diff = 0;
+        last_step_time = 0;
+        mLastStepDeltasIndex = 0;
+        mLastStepAccelerationDeltasIndex = 0;
+        valid_steps = 0;
+    }
+
+    /**
+     * Processes one accelerometer sample.
+     *
+     * @param timestampNanos The sample timestamp in nanoseconds (monotonic, e.g. SensorEvent#timestamp)
+     * @param x              Acceleration on x-axis in m/s^2
+     * @param y              Acceleration on y-axis in m/s^2
+     * @param z              Acceleration on z-axis in m/s^2
+     */
+    public void onSample(long timestampNanos, float x, float y, float z) {
+        // the following part will add some basic low/high-pass filter
+        // to ignore earth acceleration
+        final float alpha = 0.8f;
+
+        // Isolate the force of gravity with the low-pass filter.
+        gravity[0] = alpha * gravity[0] + (1 - alpha) * x;
+        gravity[1] = alpha * gravity[1] + (1 - alpha) * y;
+        gravity[2] = alpha * gravity[2] + (1 - alpha) * z;
+
+        // Remove the gravity contribution with the high-pass filter.
+        float acceleration = (x - gravity[0]) + (y - gravity[1]) + (z - gravity[2]);
+        float current_sign = Math.signum(acceleration);
+
+        if (current_sign == last_sign) {
+            // the maximum is not reached yet, keep on waiting
+            return;
+        }
+
+        if (!isSignificantValue(acceleration)) {
+            // not significant (acceleration delta is too small)
+            return;
+        }
+
+        float acceleration_diff = Math.abs(last_extrema[current_sign < 0 ? 1 : 0] /* the opposite */ - acceleration);
+        if (!isAlmostAsLargeAsPreviousOne(acceleration_diff)) {
+            last_acceleration_diff = acceleration_diff;
+            return;
+        }
+
+        if (!wasPreviousLargeEnough(acceleration_diff)) {
+            last_acceleration_diff = acceleration_diff;
+            return;
+        }
+
+        long current_step_time = timestampNanos / NANOS_PER_MILLI;
+
+        if (last_step_time > 0) {
+            long step_time_delta = current_step_time - last_step_time;
+
+            // Ignore steps with more than 180bpm and less than 20bpm
+            if (step_time_delta < 60 * 1000 / 180) {
+                return;
+            } else if (step_time_delta > 60 * 1000 / 20) {
+                last_step_time = current_step_time;
+                valid_steps = 0;
+                return;
+            }
+
+            // check if this occurrence is regular with regard to the step frequency data
+            if (!isRegularlyOverTime(step_time_delta)) {
+                last_step_time = current_step_time;
+                return;
+            }
+            last_step_time = current_step_time;
+
+            // check if this occurrence is regular with regard to the acceleration data
+            if (!isRegularlyOverAcceleration(acceleration_diff)) {
+                last_acceleration_value = acceleration;
+                last_acceleration_diff = acceleration_diff;
+                valid_steps = 0;
+                return;
+            }
+            last_acceleration_value = acceleration;
+            last_acceleration_diff = acceleration_diff;
+            // okay, finally this has to be a step
+            valid_steps++;
+            // count it only if we got more than validStepsThreshold steps
+            if (valid_steps == validStepsThreshold) {
+                listener.onStepsDetected(valid_steps, timestampNanos);
+            } else if (valid_steps > validStepsThreshold) {
+                listener.onStepsDetected(1, timestampNanos);
+            }
+        }
+
+        last_step_time = current_step_time;
+        last_acceleration_value = acceleration;
+        last_acceleration_diff = acceleration_diff;
+        last_sign = current_sign;
+        last_extrema[current_sign < 0 ? 0 : 1] = acceleration;
+    }
+
+    /**
+     * Processes a batch of accelerometer samples in one pass, e.g. the content of a drained sensor
+     * FIFO.
+     *
+     * @param timestampsNanos The sample timestamps in nanoseconds, oldest first
+     * @param values          The interleaved x, y, z values of the samples (3 * count entries)
+     * @param count           The number of samples to process
+     */
+    public void onSamples(long[] timestampsNanos, float[] values, int count) {
+        for (int i = 0, j = 0; i < count; i++, j += 3) {
+            onSample(timestampsNanos[i], values[j], values[j + 1], values[j + 2]);
+        }
+    }
+
+    /**
+     * Determines if this value is significant.
+     *
+     * @param val the value to check
+     * @return true if it is significant else false
+     */
+    private boolean isSignificantValue(float val) {
+        return Math.abs(val) > accelerometerThreshold;
+    }
+
+    /**
+     * The current acceleration difference has to be almost as large as the last one.
+     *
+     * @param diff The acceleration difference between current and last value
+     * @return true if almost as large as last one
+     */
+    private boolean isAlmostAsLargeAsPreviousOne(float diff) {
+        return diff > last_acceleration_diff * 0.5;
+    }
+
+    /**
+     * Determines if the last maximum was great enough
+     *
+     * @param diff the current acceleration diff
+     * @return true if was great enough else false
+     */
+    private boolean wasPreviousLargeEnough(float diff) {
+        return last_acceleration_diff > diff / 3;
+    }
+
+    /**
+     * Checks if the given delta time (between current and last step) is regularly.
+     * The value is regularly if at most 20 percent of the older values differs from the given value
+     * significantly.
+     *
+     * @param delta The difference between current and last step time
+     * @return true if is regularly else false
+     */
+    private boolean isRegularlyOverTime(long delta) {
+        mLastStepDeltas[mLastStepDeltasIndex] = delta;
+        mLastStepDeltasIndex = (mLastStepDeltasIndex + 1) % mLastStepDeltas.length;
+
+        int numIrregularValues = 0;
+        for (long mLastStepDelta : mLastStepDeltas) {
+            if (Math.abs(mLastStepDelta - delta) > 200) {
+                numIrregularValues++;
+                break;
+            }
+        }
+
+        return numIrregularValues < 1;//mLastStepDeltas.length*0.2;
+    }
+
+    /**
+     * Checks if the given diff (between current and last acceleration data) is regularly in respect
+     * to the older values.
+     * The value is regularly if at most 20 percent of the older values differs from the given value
+     * significantly.
+     *
+     * @param diff The difference between current and last acceleration value
+     * @return true if is regularly else false
+     */
+    private boolean isRegularlyOverAcceleration(float diff) {
+        mLastStepAccelerationDeltas[mLastStepAccelerationDeltasIndex] = diff;
+        mLastStepAccelerationDeltasIndex = (mLastStepAccelerationDeltasIndex + 1) % mLastStepAccelerationDeltas.length;
+        int numIrregularAccelerationValues = 0;
+        for (float mLastStepAccelerationDelta : mLastStepAccelerationDeltas) {
+            if (Math.abs(mLastStepAccelerationDelta - last_acceleration_diff) > 0.5) {
+                numIrregularAccelerationValues++;
+                break;
+            }
+        }
+        return numIrregularAccelerationValues < mLastStepAccelerationDeltas.length * 0.2;
+    }
+}
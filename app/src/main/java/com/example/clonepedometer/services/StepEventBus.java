@@ -0,0 +1,165 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.services;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process publish/subscribe channel for detected steps.
+ * Publishing is lock-free and does not allocate. Subscribers with an executor (e.g. the main
+ * thread) get coalesced updates: while a delivery is pending, further step deltas are added up
+ * and delivered at once.
+ *
+ * @see AbstractStepDetectorService#onStepDetected(int)
+ */
+public final class StepEventBus {
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+    private static final StepEventBus INSTANCE = new StepEventBus();
+
+    /**
+     * Receives detected steps
+     */
+    public interface StepListener {
+        /**
+         * Called when steps were detected
+         *
+         * @param newSteps   The number of steps detected since the last call
+         * @param totalSteps The number of steps detected since the service start
+         */
+        void onStepsDetected(int newSteps, int totalSteps);
+    }
+
+    /**
+     * Copy-on-write array of all subscriptions, so publishing can iterate without locks or
+     * iterator allocations.
+     */
+    private volatile Subscription[] subscriptions = NO_SUBSCRIPTIONS;
+    private volatile int totalSteps = 0;
+
+    private StepEventBus() {
+    }
+
+    public static StepEventBus getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Subscribes to detected steps
+     *
+     * @param listener The listener to notify
+     * @param executor The executor to deliver the steps on, e.g. the main thread executor. If null
+     *                 the listener is called directly on the publishing thread.
+     * @return The subscription, which has to be passed to {@link #unsubscribe(Subscription)}
+     */
+    public Subscription subscribe(StepListener listener, Executor executor) {
+        Subscription subscription = new Subscription(listener, executor);
+        synchronized (this) {
+            Subscription[] old = subscriptions;
+            Subscription[] updated = new Subscription[old.length + 1];
+            System.arraycopy(old, 0, updated, 0, old.length);
+            updated[old.length] = subscription;
+            subscriptions = updated;
+        }
+        return subscription;
+    }
+
+    /**
+     * Cancels the subscription. Pending deliveries are dropped.
+     *
+     * @param subscription The subscription to cancel
+     */
+    public void unsubscribe(Subscription subscription) {
+        if (subscription == null) {
+            return;
+        }
+        subscription.active = false;
+        synchronized (this) {
+            Subscription[] old = subscriptions;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == subscription) {
+                    Subscription[] updated = new Subscription[old.length - 1];
+                    System.arraycopy(old, 0, updated, 0, i);
+                    System.arraycopy(old, i + 1, updated, i, old.length - i - 1);
+                    subscriptions = updated;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes new steps to all subscribers
+     *
+     * @param newSteps   The number of newly detected steps
+     * @param totalSteps The number of steps detected since the service start
+     */
+    public void publish(int newSteps, int totalSteps) {
+        this.totalSteps = totalSteps;
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            current[i].post(newSteps);
+        }
+    }
+
+    /**
+     * @return The most recently published number of steps since the service start
+     */
+    public int getTotalSteps() {
+        return totalSteps;
+    }
+
+    /**
+     * A subscription to the step event bus
+     */
+    public final class Subscription implements Runnable {
+        private final StepListener listener;
+        private final Executor executor;
+        private final AtomicInteger pendingSteps = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean active = true;
+
+        private Subscription(StepListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        private void post(int newSteps) {
+            if (executor == null) {
+                listener.onStepsDetected(newSteps, totalSteps);
+                return;
+            }
+            pendingSteps.addAndGet(newSteps);
+            // schedule a delivery only if none is pending, otherwise the steps are coalesced
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            scheduled.set(false);
+            int steps = pendingSteps.getAndSet(0);
+            if (active && steps > 0) {
+                listener.onStepsDetected(steps, totalSteps);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.services;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+
+import androidx.core.app.NotificationCompat;
+
+import com.example.clonepedometer.MainActivity;
+import com.example.clonepedometer.R;
+import com.example.clonepedometer.utils.UnitHelper;
+import com.example.clonepedometer.utils.UserSettingsSnapshot;
+
+/**
+ * Renders the permanent step count notification.
+ * The notification builder, its intent and the user's display preferences are kept, so an
+ * update only formats the new values. Updates are published at most with the given rate and
+ * only if the rendered content changed.
+ * Has to be used from the main thread.
+ *
+ * @see AbstractStepDetectorService
+ */
+public class StepNotificationRenderer implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    /**
+     * The values shown in the notification
+     */
+    public static class Content {
+        public int steps;
+        public int dailyStepGoal;
+        /**
+         * The distance in meters
+         */
+        public double distance;
+        /**
+         * The calories in kcal
+         */
+        public double calories;
+    }
+
+    /**
+     * Provides the current values shown in the notification.
+     * Is only called when the notification is rendered, i.e. at most with the update rate.
+     */
+    public interface ContentProvider {
+        void fillContent(Content content);
+    }
+
+    private final Context context;
+    private final ContentProvider contentProvider;
+    private final int notificationId;
+    private final long minUpdateIntervalMillis;
+    private final NotificationManager notificationManager;
+    private final NotificationCompat.Builder builder;
+    private final NotificationCompat.BigTextStyle style = new NotificationCompat.BigTextStyle();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable publishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+    private final Content content = new Content();
+    private final String textSteps;
+    private final String textDistance;
+    private final String textCalories;
+    private final String textDefault;
+
+    // cached preferences
+    private boolean enabled;
+    private boolean showSteps;
+    private boolean showDistance;
+    private boolean showCalories;
+    private double lengthUnitFactor;
+
+    private boolean updatePending = false;
+    private long lastPublishTime = 0;
+    private String lastMessage = null;
+    private int lastProgress = -1;
+    private int lastProgressMax = -1;
+
+    /**
+     * Creates a new renderer
+     *
+     * @param context             The service context
+     * @param notificationId      The id of the notification
+     * @param channelId           The notification channel
+     * @param maxUpdatesPerSecond How often the notification may be published at most
+     * @param contentProvider     Provides the values to show
+     */
+    public StepNotificationRenderer(Context context, int notificationId, String channelId, int maxUpdatesPerSecond, ContentProvider contentProvider) {
+        this.context = context;
+        this.notificationId = notificationId;
+        this.minUpdateIntervalMillis = 1000 / maxUpdatesPerSecond;
+        this.contentProvider = contentProvider;
+        this.notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        this.textSteps = context.getString(R.string.notification_text_steps);
+        this.textDistance = context.getString(R.string.notification_text_distance);
+        this.textCalories = context.getString(R.string.notification_text_calories);
+        this.textDefault = context.getString(R.string.notification_text_default);
+
+        Intent intent = new Intent(context, MainActivity.class);
+        PendingIntent pIntent = PendingIntent.getActivity(context, 0, intent, PendingIntent.FLAG_IMMUTABLE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder = new NotificationCompat.Builder(context, channelId);
+            builder.setOnlyAlertOnce(true);
+        } else {
+            builder = new NotificationCompat.Builder(context);
+        }
+        builder.setContentTitle(context.getString(R.string.app_name))
+                .setSmallIcon(R.drawable.ic_stat_directions_walk)
+                .setContentIntent(pIntent)
+                .setVisibility(NotificationCompat.VISIBILITY_SECRET)
+                .setPriority(NotificationCompat.PRIORITY_MIN)
+                .setSilent(true);
+
+        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
+        loadPreferences(UserSettingsSnapshot.get(context));
+        sharedPref.registerOnSharedPreferenceChangeListener(this);
+    }
+
+    /**
+     * Renders the notification immediately, e.g. to start the foreground service.
+     *
+     * @return the notification
+     */
+    public Notification build() {
+        render();
+        lastPublishTime = SystemClock.uptimeMillis();
+        return builder.build();
+    }
+
+    /**
+     * Requests an update of the notification. The update is published immediately or - if the
+     * last update was published too recently - delayed. Requests during a pending update are
+     * coalesced.
+     */
+    public void requestUpdate() {
+        if (updatePending) {
+            return;
+        }
+        long delay = lastPublishTime + minUpdateIntervalMillis - SystemClock.uptimeMillis();
+        if (delay <= 0) {
+            publish();
+        } else {
+            updatePending = true;
+            handler.postDelayed(publishRunnable, delay);
+        }
+    }
+
+    /**
+     * Cancels pending updates and stops listening to preference changes
+     */
+    public void destroy() {
+        handler.removeCallbacks(publishRunnable);
+        updatePending = false;
+        PreferenceManager.getDefaultSharedPreferences(context).unregisterOnSharedPreferenceChangeListener(this);
+    }
+
+    private void publish() {
+        updatePending = false;
+        lastPublishTime = SystemClock.uptimeMillis();
+        if (!enabled) {
+            return;
+        }
+        if (render()) {
+            notificationManager.notify(notificationId, builder.build());
+        }
+    }
+
+    /**
+     * Updates the builder with the current content
+     *
+     * @return true if the rendered content changed since the last call
+     */
+    private boolean render() {
+        contentProvider.fillContent(content);
+        String message = "";
+        if (showSteps) {
+            message = String.format(textSteps, content.steps, content.dailyStepGoal);
+        }
+        if (showDistance) {
+            message += (!message.isEmpty()) ? "\n" : "";
+            message += String.format(textDistance, UnitHelper.metersToKilometers(content.distance) * lengthUnitFactor,
+                    UnitHelper.getUsersUnit(UnitHelper.USER_UNIT_SHORT_DESCRIPTION, context));
+        }
+        if (showCalories) {
+            message += (!message.isEmpty()) ? "\n" : "";
+            message += String.format(textCalories, content.calories);
+        }
+        if (message.isEmpty()) {
+            message = textDefault;
+        }
+        if (message.equals(lastMessage) && content.steps == lastProgress && content.dailyStepGoal == lastProgressMax) {
+            return false;
+        }
+        lastMessage = message;
+        lastProgress = content.steps;
+        lastProgressMax = content.dailyStepGoal;
+        builder.setContentText(message)
+                .setTicker(message)
+                .setStyle(style.bigText(message))
+                .setProgress(content.dailyStepGoal, content.steps, false);
+        return true;
+    }
+
+    private void loadPreferences(UserSettingsSnapshot settings) {
+        enabled = settings.isStepCounterEnabled();
+        showSteps = settings.isNotificationShowSteps();
+        showDistance = settings.isNotificationShowDistance();
+        showCalories = settings.isNotificationShowCalories();
+        lengthUnitFactor = settings.getLengthUnitFactor();
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (key == null) {
+            return;
+        }
+        if (key.equals(context.getString(R.string.pref_step_counter_enabled)) ||
+                key.equals(context.getString(R.string.pref_notification_permanent_show_steps)) ||
+                key.equals(context.getString(R.string.pref_notification_permanent_show_distance)) ||
+                key.equals(context.getString(R.string.pref_notification_permanent_show_calories)) ||
+                key.equals(context.getString(R.string.pref_unit_of_length))) {
+            loadPreferences(UserSettingsSnapshot.refresh(context));
+            requestUpdate();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.services;
+
+import com.example.clonepedometer.models.StepTotals;
+
+/**
+ * Keeps the running totals of an active training session, fed directly by the detected steps.
+ * <p>
+ * Steps, distance, calories and velocity are available in constant time, so live screens and
+ * notifications do not have to query the step history. The steps of the last
+ * {@link #SPLIT_CAPACITY} minutes are kept as per-minute splits in primitive ring buffers; minutes
+ * without steps have no split. At most every {@link #CHECKPOINT_INTERVAL} milliseconds the totals
+ * are passed to the {@link CheckpointListener}, which persists them.
+ * Does not depend on the Android framework.
+ */
+public class TrainingSessionAccumulator implements StepEventBus.StepListener {
+
+    /**
+     * Number of per-minute splits which are kept
+     */
+    public static final int SPLIT_CAPACITY = 60;
+    /**
+     * Minimum time between two automatic checkpoints in milliseconds
+     */
+    public static final long CHECKPOINT_INTERVAL = 30000L;
+    private static final long MINUTE_IN_MILLIS = 60000L;
+
+    /**
+     * Receives the totals of the training session to persist them
+     */
+    public interface CheckpointListener {
+        /**
+         * Is called on the thread which added the steps, so it should not block.
+         *
+         * @param trainingId The id of the training session
+         * @param steps      The steps since the start of the training session
+         * @param distance   The distance in meters
+         * @param calories   The calories in kcal
+         */
+        void onCheckpoint(long trainingId, int steps, double distance, double calories);
+    }
+
+    private final long trainingId;
+    private final long startTime;
+    private final double stepLength;
+    private final double bodyWeight;
+    private final CheckpointListener listener;
+
+    private int steps;
+    private double distance;
+    private long lastCheckpoint;
+    private boolean dirty;
+
+    private final long[] splitStarts = new long[SPLIT_CAPACITY];
+    private final int[] splitSteps = new int[SPLIT_CAPACITY];
+    /**
+     * Index of the newest split
+     */
+    private int splitHead = -1;
+    private int splitCount;
+
+    /**
+     * @param trainingId The id of the training session
+     * @param startTime  The start of the training session
+     * @param stepLength The step length of the active walking mode in meters
+     * @param bodyWeight The user's body weight in kg
+     * @param listener   The listener to persist the totals, may be null
+     */
+    public TrainingSessionAccumulator(long trainingId, long startTime, double stepLength, double bodyWeight, CheckpointListener listener) {
+        this.trainingId = trainingId;
+        this.startTime = startTime;
+        this.stepLength = stepLength;
+        this.bodyWeight = bodyWeight;
+        this.listener = listener;
+        this.lastCheckpoint = startTime;
+    }
+
+    /**
+     * Continues with the persisted totals, e.g. when the service was restarted during a training
+     * session.
+     *
+     * @param steps    The persisted steps
+     * @param distance The persisted distance in meters
+     */
+    public synchronized void resume(int steps, double distance) {
+        this.steps = steps;
+        this.distance = distance;
+    }
+
+    @Override
+    public void onStepsDetected(int newSteps, int totalSteps) {
+        addSteps(newSteps, System.currentTimeMillis());
+    }
+
+    /**
+     * Adds the given steps and checkpoints if the last checkpoint is old enough.
+     *
+     * @param newSteps  The number of detected steps
+     * @param timestamp The time the steps were detected
+     */
+    public void addSteps(int newSteps, long timestamp) {
+        if (newSteps <= 0) {
+            return;
+        }
+        int checkpointSteps;
+        double checkpointDistance;
+        synchronized (this) {
+            steps += newSteps;
+            distance += newSteps * stepLength;
+            dirty = true;
+            long minute = timestamp - Math.floorMod(timestamp, MINUTE_IN_MILLIS);
+            if (splitCount == 0 || splitStarts[splitHead] != minute) {
+                splitHead = (splitHead + 1) % SPLIT_CAPACITY;
+                splitStarts[splitHead] = minute;
+                splitSteps[splitHead] = 0;
+                splitCount = Math.min(splitCount + 1, SPLIT_CAPACITY);
+            }
+            splitSteps[splitHead] += newSteps;
+            if (listener == null || timestamp - lastCheckpoint < CHECKPOINT_INTERVAL) {
+                return;
+            }
+            lastCheckpoint = timestamp;
+            dirty = false;
+            checkpointSteps = steps;
+            checkpointDistance = distance;
+        }
+        listener.onCheckpoint(trainingId, checkpointSteps, checkpointDistance, StepTotals.calories(checkpointDistance, bodyWeight));
+    }
+
+    /**
+     * Passes the totals to the listener if they changed since the last checkpoint, e.g. before the
+     * service is destroyed.
+     */
+    public void checkpoint() {
+        int checkpointSteps;
+        double checkpointDistance;
+        synchronized (this) {
+            if (listener == null || !dirty) {
+                return;
+            }
+            dirty = false;
+            checkpointSteps = steps;
+            checkpointDistance = distance;
+        }
+        listener.onCheckpoint(trainingId, checkpointSteps, checkpointDistance, StepTotals.calories(checkpointDistance, bodyWeight));
+    }
+
+    public long getTrainingId() {
+        return trainingId;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public synchronized int getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the distance in meters
+     */
+    public synchronized double getDistance() {
+        return distance;
+    }
+
+    /**
+     * @return the calories in kcal
+     */
+    public synchronized double getCalories() {
+        return StepTotals.calories(distance, bodyWeight);
+    }
+
+    /**
+     * @param now The current time
+     * @return the average velocity since the start in meters per second
+     */
+    public synchronized double getAverageVelocity(long now) {
+        long duration = now - startTime;
+        if (duration < 1000) {
+            return 0;
+        }
+        return distance / (duration / 1000.0);
+    }
+
+    /**
+     * @param now The current time
+     * @return the velocity during the last full minute in meters per second
+     */
+    public synchronized double getCurrentVelocity(long now) {
+        long lastMinute = now - Math.floorMod(now, MINUTE_IN_MILLIS) - MINUTE_IN_MILLIS;
+        // the last minute is either the newest split or the one before
+        for (int i = 0; i < Math.min(splitCount, 2); i++) {
+            int index = Math.floorMod(splitHead - i, SPLIT_CAPACITY);
+            if (splitStarts[index] == lastMinute) {
+                return splitSteps[index] * stepLength / (MINUTE_IN_MILLIS / 1000.0);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of per-minute splits, at most {@link #SPLIT_CAPACITY}
+     */
+    public synchronized int getSplitCount() {
+        return splitCount;
+    }
+
+    /**
+     * @param index The index of the split, 0 is the oldest
+     * @return the start of the split's minute
+     */
+    public synchronized long getSplitStart(int index) {
+        return splitStarts[toBufferIndex(index)];
+    }
+
+    /**
+     * @param index The index of the split, 0 is the oldest
+     * @return the steps of the split's minute
+     */
+    public synchronized int getSplitSteps(int index) {
+        return splitSteps[toBufferIndex(index)];
+    }
+
+    private int toBufferIndex(int index) {
+        if (index < 0 || index >= splitCount) {
+            throw new IndexOutOfBoundsException("Split " + index + " of " + splitCount);
+        }
+        return Math.floorMod(splitHead - splitCount + 1 + index, SPLIT_CAPACITY);
+    }
+}
@@ -230,7 +230,7 @@ public class StepDetectionServiceHelper {
         boolean isStepDetectionEnabled = sharedPref.getBoolean(context.getString(R.string.pref_step_counter_enabled), true);
         boolean isWalkingModeLearningActive = sharedPref.getBoolean(context.getString(R.string.pref_walking_mode_learning_active), false);
         boolean isDistanceMeasurementActive = sharedPref.getLong(context.getString(R.string.pref_distance_measurement_start_timestamp), -1) > 0;
-        return isStepDetectionEnabled || (TrainingPersistenceHelper.getActiveItem(context) != null) || isWalkingModeLearningActive || isDistanceMeasurementActive;
+        return isStepDetectionEnabled || TrainingPersistenceHelper.isTrainingActive(context) || isWalkingModeLearningActive || isDistanceMeasurementActive;
     }
 
     /**
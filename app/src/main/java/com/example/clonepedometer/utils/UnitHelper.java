@@ -18,8 +18,6 @@
 package com.example.clonepedometer.utils;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 
 import com.example.clonepedometer.R;
 
@@ -95,7 +93,7 @@ public class UnitHelper {
      * @return converted kilometers
      */
     public static double kilometerToUsersLengthUnit(double km, Context context) {
-        double factor = Double.parseDouble(getUsersUnit(USER_UNIT_FACTOR, context));
+        double factor = UserSettingsSnapshot.get(context).getLengthUnitFactor();
         return km * factor;
     }
 
@@ -107,7 +105,7 @@ public class UnitHelper {
      * @return converted kilometers
      */
     public static double kilometerToUsersSmallLengthUnit(double km, Context context) {
-        double factor = Double.parseDouble(getUsersUnit(USER_SMALL_UNIT_FACTOR, context));
+        double factor = UserSettingsSnapshot.get(context).getSmallLengthUnitFactor();
         return km * factor;
     }
 
@@ -119,7 +117,7 @@ public class UnitHelper {
      * @return kilometers
      */
     public static double usersLengthUnitToKilometers(double length, Context context) {
-        double factor = Double.parseDouble(getUsersUnit(USER_UNIT_FACTOR, context));
+        double factor = UserSettingsSnapshot.get(context).getLengthUnitFactor();
         return length / factor;
     }
 
@@ -131,7 +129,7 @@ public class UnitHelper {
      * @return converted velocity
      */
     public static double kilometersPerHourToUsersVelocityUnit(double kmh, Context context) {
-        double factor = Double.parseDouble(getUsersUnit(USER_UNIT_FACTOR, context));
+        double factor = UserSettingsSnapshot.get(context).getLengthUnitFactor();
         return kmh * factor;
     }
 
@@ -189,9 +187,7 @@ public class UnitHelper {
     }
 
     public static FormattedUnitPair formatCalories(double kcal, Context context){
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
-        String unit_key = sharedPref.getString(context.getString(R.string.pref_unit_of_energy), "cal");
-        if(unit_key.equals("J")) {
+        if(UserSettingsSnapshot.get(context).isEnergyInJoule()) {
             double joule = kcal * 4184;
             if (joule < 100) {
                 return new FormattedUnitPair(formatString("%.2f", joule, context), context.getString(R.string.joules));
@@ -212,29 +208,14 @@ public class UnitHelper {
     }
 
     /**
-     * Fetches the users unit information from preferences
+     * Fetches the users unit information from the settings snapshot
      *
      * @param type    USER_UNIT_FACTOR,USER_UNIT_SHORT_DESCRIPTION, USER_UNIT_DESCRIPTION, USER_UNIT_VELOCITY_DESCRIPTION
      * @param context The application context
      * @return the requested information or "-" if not set
      */
     public static String getUsersUnit(int type, Context context) {
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
-        String unit_key = sharedPref.getString(context.getString(R.string.pref_unit_of_length), "km");
-        String unit;
-        switch(unit_key){
-            case "mi":
-                unit = context.getString(R.string.unit_of_length_mi);
-                break;
-            case "km":
-            default:
-                unit = context.getString(R.string.unit_of_length_km);
-        }
-        String[] units = unit.split("\\|");
-        if (units.length <= type) {
-            return "-";
-        }
-        return units[type];
+        return UserSettingsSnapshot.get(context).getLengthUnit(context, type);
     }
 
     public static class FormattedUnitPair{
@@ -0,0 +1,222 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.example.clonepedometer.R;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable, already parsed copy of the user settings which are read in hot paths, e.g. per step
+ * or per step count entry.
+ * <p>
+ * The snapshot is built on first use and replaced as a whole whenever one of its preferences
+ * changes, so readers on any thread always see a consistent set of values without touching the
+ * preferences. Localized texts are not part of the snapshot, they follow the current locale.
+ */
+public final class UserSettingsSnapshot {
+
+    private static final AtomicReference<UserSettingsSnapshot> current = new AtomicReference<>();
+    /**
+     * Shared preferences only keep a weak reference to their listeners
+     */
+    private static SharedPreferences.OnSharedPreferenceChangeListener listener;
+
+    private final float bodyWeight;
+    /**
+     * The string resource describing the users length unit, see {@link #getLengthUnit(Context, int)}
+     */
+    private final int lengthUnitResource;
+    private final double lengthUnitFactor;
+    private final double smallLengthUnitFactor;
+    private final boolean energyInJoule;
+    private final boolean stepCounterEnabled;
+    private final boolean notificationShowSteps;
+    private final boolean notificationShowDistance;
+    private final boolean notificationShowCalories;
+
+    private UserSettingsSnapshot(Context context, SharedPreferences sharedPref) {
+        bodyWeight = parseWeight(sharedPref.getString(context.getString(R.string.pref_weight), null),
+                Float.parseFloat(context.getString(R.string.pref_default_weight)));
+        switch (sharedPref.getString(context.getString(R.string.pref_unit_of_length), "km")) {
+            case "mi":
+                lengthUnitResource = R.string.unit_of_length_mi;
+                break;
+            case "km":
+            default:
+                lengthUnitResource = R.string.unit_of_length_km;
+        }
+        // the factors are numbers in every locale
+        String[] lengthUnit = context.getString(lengthUnitResource).split("\\|");
+        lengthUnitFactor = Double.parseDouble(lengthUnit[UnitHelper.USER_UNIT_FACTOR]);
+        smallLengthUnitFactor = Double.parseDouble(lengthUnit[UnitHelper.USER_SMALL_UNIT_FACTOR]);
+        energyInJoule = sharedPref.getString(context.getString(R.string.pref_unit_of_energy), "cal").equals("J");
+        stepCounterEnabled = sharedPref.getBoolean(context.getString(R.string.pref_step_counter_enabled), true);
+        notificationShowSteps = sharedPref.getBoolean(context.getString(R.string.pref_notification_permanent_show_steps), true);
+        notificationShowDistance = sharedPref.getBoolean(context.getString(R.string.pref_notification_permanent_show_distance), false);
+        notificationShowCalories = sharedPref.getBoolean(context.getString(R.string.pref_notification_permanent_show_calories), false);
+    }
+
+    /**
+     * Parses the body weight entered by the user
+     *
+     * @param value         The preference value, may be null
+     * @param defaultWeight The weight to use if the value is not a valid weight
+     * @return the body weight in kg
+     */
+    static float parseWeight(String value, float defaultWeight) {
+        if (value == null) {
+            return defaultWeight;
+        }
+        try {
+            float weight = Float.parseFloat(value.trim());
+            if (weight > 0 && !Float.isInfinite(weight)) {
+                return weight;
+            }
+        } catch (NumberFormatException e) {
+            // not a number, e.g. restored from a broken backup
+        }
+        return defaultWeight;
+    }
+
+    /**
+     * Returns the current settings
+     *
+     * @param context The application context
+     * @return the snapshot of the current settings
+     */
+    public static UserSettingsSnapshot get(Context context) {
+        UserSettingsSnapshot snapshot = current.get();
+        if (snapshot == null) {
+            snapshot = init(context.getApplicationContext());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Rebuilds the snapshot from the preferences. Preference listeners which read the snapshot
+     * call this first, since the order in which listeners are notified is undefined.
+     *
+     * @param context The application context
+     * @return the snapshot of the current settings
+     */
+    public static UserSettingsSnapshot refresh(Context context) {
+        context = context.getApplicationContext();
+        if (current.get() == null) {
+            return init(context);
+        }
+        UserSettingsSnapshot snapshot = new UserSettingsSnapshot(context, PreferenceManager.getDefaultSharedPreferences(context));
+        current.set(snapshot);
+        return snapshot;
+    }
+
+    private static synchronized UserSettingsSnapshot init(final Context context) {
+        UserSettingsSnapshot snapshot = current.get();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
+        final Set<String> keys = new HashSet<>(Arrays.asList(
+                context.getString(R.string.pref_weight),
+                context.getString(R.string.pref_unit_of_length),
+                context.getString(R.string.pref_unit_of_energy),
+                context.getString(R.string.pref_step_counter_enabled),
+                context.getString(R.string.pref_notification_permanent_show_steps),
+                context.getString(R.string.pref_notification_permanent_show_distance),
+                context.getString(R.string.pref_notification_permanent_show_calories)));
+        listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                // the key is null if the preferences were cleared
+                if (key == null || keys.contains(key)) {
+                    current.set(new UserSettingsSnapshot(context, sharedPreferences));
+                }
+            }
+        };
+        sharedPref.registerOnSharedPreferenceChangeListener(listener);
+        snapshot = new UserSettingsSnapshot(context, sharedPref);
+        current.set(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * @return the body weight in kg
+     */
+    public float getBodyWeight() {
+        return bodyWeight;
+    }
+
+    /**
+     * Reads the localized description of the users length unit, so it follows the current locale.
+     *
+     * @param context The context
+     * @param type    The requested unit information, e.g. {@link UnitHelper#USER_UNIT_SHORT_DESCRIPTION}
+     * @return the requested information of the users length unit or "-" if not set
+     */
+    public String getLengthUnit(Context context, int type) {
+        String[] lengthUnit = context.getString(lengthUnitResource).split("\\|");
+        if (lengthUnit.length <= type) {
+            return "-";
+        }
+        return lengthUnit[type];
+    }
+
+    /**
+     * @return the factor for conversion from kilometers to the users length unit
+     */
+    public double getLengthUnitFactor() {
+        return lengthUnitFactor;
+    }
+
+    /**
+     * @return the factor for conversion from kilometers to the users small length unit
+     */
+    public double getSmallLengthUnitFactor() {
+        return smallLengthUnitFactor;
+    }
+
+    /**
+     * @return true if energy is shown in joule instead of calories
+     */
+    public boolean isEnergyInJoule() {
+        return energyInJoule;
+    }
+
+    public boolean isStepCounterEnabled() {
+        return stepCounterEnabled;
+    }
+
+    public boolean isNotificationShowSteps() {
+        return notificationShowSteps;
+    }
+
+    public boolean isNotificationShowDistance() {
+        return notificationShowDistance;
+    }
+
+    public boolean isNotificationShowCalories() {
+        return notificationShowCalories;
+    }
+}
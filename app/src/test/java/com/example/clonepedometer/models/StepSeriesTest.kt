@@ -0,0 +1,62 @@
+package com.example.clonepedometer.models
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * Unit tests for [StepSeries]
+ */
+class StepSeriesTest {
+
+    private fun series(): StepSeries {
+        val series = StepSeries(2)
+        series.add(0, HOUR, 100, 1)
+        series.add(HOUR, 2 * HOUR, 200, 2)
+        series.add(2 * HOUR, 3 * HOUR, 300, 1)
+        series.add(3 * HOUR, 4 * HOUR, 400, 7)
+        return series
+    }
+
+    @Test
+    fun storesIntervalsAndWalkingModes() {
+        val series = series()
+
+        assertEquals(4, series.size())
+        assertEquals(2 * HOUR, series.getStartTime(2))
+        assertEquals(3 * HOUR, series.getEndTime(2))
+        assertEquals(300, series.getStepCount(2))
+        assertEquals(3, series.walkingModeCount)
+        assertEquals(0, series.getWalkingModeIndex(2))
+        assertEquals(7L, series.getWalkingModeId(series.getWalkingModeIndex(3)))
+    }
+
+    @Test
+    fun sumsRangesByEndTime() {
+        val series = series()
+
+        assertEquals(1000L, series.sum())
+        assertEquals(500L, series.sum(1, 3))
+        // start exclusive, end inclusive
+        assertEquals(500L, series.sumInRange(HOUR, 3 * HOUR))
+        assertEquals(0L, series.sumInRange(4 * HOUR, 5 * HOUR))
+    }
+
+    @Test
+    fun sumsPerBucketAndWalkingMode() {
+        val series = series()
+
+        assertArrayEquals(longArrayOf(300, 700, 0), series.sumPerBucket(longArrayOf(0, 2 * HOUR, 4 * HOUR, 6 * HOUR)))
+        assertArrayEquals(longArrayOf(400, 200, 400), series.sumPerWalkingMode())
+        assertEquals(400 * 0.5 + 200 * 1.0 + 400 * 2.0, series.getDistance(doubleArrayOf(0.5, 1.0, 2.0)), 1e-9)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun rejectsUnorderedIntervals() {
+        series().add(0, HOUR, 1, 1)
+    }
+
+    companion object {
+        private const val HOUR = 3600000L
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.clonepedometer.persistence
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * Unit tests for [StepAggregationHelper.BucketAccumulator]
+ */
+class StepAggregationHelperTest {
+
+    private val stepLengths = mapOf(1L to 0.5, 2L to 1.0)
+
+    @Test
+    fun sumsStepsAndDistancePerBucket() {
+        val accumulator = StepAggregationHelper.BucketAccumulator(longArrayOf(0, HOUR, 2 * HOUR, 3 * HOUR), 80.0, stepLengths)
+        accumulator.visit(0, HOUR / 2, 100, 1)
+        accumulator.visit(HOUR / 2, HOUR, 50, 2)
+        accumulator.visit(HOUR, 3 * HOUR, 20, 1)
+
+        val totals = accumulator.totals
+        assertEquals(3, totals.size)
+        // an entry ending on a boundary belongs to the bucket before
+        assertEquals(150, totals[0].steps)
+        assertEquals(100.0, totals[0].distance, DELTA)
+        assertEquals(0, totals[1].steps)
+        assertEquals(20, totals[2].steps)
+        assertEquals(10.0, totals[2].distance, DELTA)
+        assertEquals(80.0, totals[2].bodyWeight, DELTA)
+    }
+
+    @Test
+    fun ignoresEntriesOutsideOfBuckets() {
+        val accumulator = StepAggregationHelper.BucketAccumulator(longArrayOf(HOUR, 2 * HOUR), 80.0, stepLengths)
+        accumulator.visit(0, HOUR, 100, 1)
+        accumulator.visit(HOUR, HOUR + 1, 10, 2)
+        accumulator.visit(2 * HOUR, 2 * HOUR + 1, 1000, 2)
+
+        assertEquals(1, accumulator.totals.size)
+        assertEquals(10, accumulator.totals[0].steps)
+    }
+
+    @Test
+    fun countsUnknownWalkingModesWithoutDistance() {
+        val accumulator = StepAggregationHelper.BucketAccumulator(longArrayOf(0, HOUR), 80.0, stepLengths)
+        accumulator.visit(0, 1, 30, 42)
+
+        assertEquals(30, accumulator.totals[0].steps)
+        assertEquals(0.0, accumulator.totals[0].distance, DELTA)
+        assertEquals(0.0, accumulator.totals[0].calories, DELTA)
+    }
+
+    companion object {
+        private const val HOUR = 3600000L
+        private const val DELTA = 1e-9
+    }
+}
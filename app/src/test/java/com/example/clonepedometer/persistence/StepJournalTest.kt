@@ -0,0 +1,165 @@
+package com.example.clonepedometer.persistence
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.RandomAccessFile
+
+/**
+ * Unit tests for [StepJournal]
+ */
+class StepJournalTest {
+    private lateinit var file: File
+
+    @Before
+    fun setUp() {
+        file = File.createTempFile("step_journal", null)
+    }
+
+    @After
+    fun tearDown() {
+        file.delete()
+    }
+
+    @Test
+    fun mergesStepsOfTheSameMinute() {
+        val journal = StepJournal(file)
+        journal.append(3, START)
+        journal.append(4, START + 30 * SECOND)
+        journal.append(5, START + 60 * SECOND)
+
+        assertEquals(listOf(START to 7, START + 60 * SECOND to 5), entries(journal))
+        assertEquals(12, journal.steps)
+    }
+
+    @Test
+    fun survivesReopening() {
+        StepJournal(file).apply {
+            append(3, START)
+            append(5, START + 60 * SECOND)
+        }
+
+        assertEquals(listOf(START to 3, START + 60 * SECOND to 5), entries(StepJournal(file)))
+    }
+
+    @Test
+    fun clearRemovesAllRecords() {
+        StepJournal(file).apply {
+            append(3, START)
+            append(5, START + 60 * SECOND)
+            clear()
+            assertTrue(entries.isEmpty())
+            append(2, START + 120 * SECOND)
+        }
+
+        assertEquals(listOf(START + 120 * SECOND to 2), entries(StepJournal(file)))
+    }
+
+    @Test
+    fun discardKeepsStepsAppendedAfterSave() {
+        StepJournal(file).apply {
+            append(3, START)
+            append(5, START + 60 * SECOND)
+            append(2, START + 120 * SECOND)
+            discard(5)
+        }
+
+        assertEquals(listOf(START + 60 * SECOND to 3, START + 120 * SECOND to 2), entries(StepJournal(file)))
+    }
+
+    @Test
+    fun discardIsIdempotent() {
+        val journal = StepJournal(file)
+        journal.append(3, START)
+        journal.append(5, START + 60 * SECOND)
+        journal.discard(4)
+        // replaying the same or an older position after a restart must not remove more steps
+        journal.discard(4)
+        journal.discard(2)
+        StepJournal(file).discard(4)
+
+        assertEquals(listOf(START + 60 * SECOND to 4), entries(StepJournal(file)))
+        assertEquals(4L, StepJournal(file).start)
+    }
+
+    @Test
+    fun keepsPositionWhenEmpty() {
+        StepJournal(file).apply {
+            append(3, START)
+            append(5, START + 60 * SECOND)
+            discard(8)
+            assertTrue(entries.isEmpty())
+        }
+
+        val journal = StepJournal(file)
+        assertEquals(8L, journal.start)
+        assertEquals(8L, journal.end)
+        journal.append(2, START + 120 * SECOND)
+        assertEquals(listOf(8L to 2), StepJournal(file).entries.map { it.position to it.steps })
+        // positions after the end are not journaled yet
+        journal.discard(20)
+        assertEquals(10L, StepJournal(file).start)
+    }
+
+    @Test
+    fun recoversFromInterruptedDiscard() {
+        StepJournal(file).apply {
+            append(3, START)
+            append(5, START + 60 * SECOND)
+            append(2, START + 120 * SECOND)
+        }
+        // the third record was moved to the front, then the process died before the others were removed
+        RandomAccessFile(file, "rw").use { raf ->
+            val third = ByteArray(StepJournal.RECORD_SIZE)
+            raf.seek(2L * StepJournal.RECORD_SIZE)
+            raf.readFully(third)
+            raf.seek(0)
+            raf.write(third)
+        }
+
+        val journal = StepJournal(file)
+        assertEquals(listOf(START + 120 * SECOND to 2), entries(journal))
+        assertEquals(8L, journal.start)
+        journal.append(1, START + 180 * SECOND)
+        assertEquals(listOf(START + 120 * SECOND to 2, START + 180 * SECOND to 1), entries(StepJournal(file)))
+    }
+
+    @Test
+    fun ignoresIncompleteRecord() {
+        StepJournal(file).append(3, START)
+        // second record with timestamp but a broken check value, as if the process died while writing
+        RandomAccessFile(file, "rw").use {
+            it.seek(StepJournal.RECORD_SIZE.toLong())
+            it.writeLong(START + 60 * SECOND)
+            it.writeInt(5)
+        }
+
+        val journal = StepJournal(file)
+        assertEquals(listOf(START to 3), entries(journal))
+        // the broken record is overwritten by the next one
+        journal.append(1, START + 120 * SECOND)
+        assertEquals(listOf(START to 3, START + 120 * SECOND to 1), entries(StepJournal(file)))
+    }
+
+    @Test
+    fun addsToLastRecordIfFull() {
+        val journal = StepJournal(file)
+        for (i in 0 until StepJournal.CAPACITY + 10) {
+            journal.append(1, START + i * 60 * SECOND)
+        }
+
+        assertEquals(StepJournal.CAPACITY, journal.entries.size)
+        assertEquals(StepJournal.CAPACITY + 10, journal.steps)
+        assertEquals(11, journal.entries.last().steps)
+    }
+
+    private fun entries(journal: StepJournal) = journal.entries.map { it.timestamp to it.steps }
+
+    companion object {
+        private const val SECOND = 1000L
+        private const val START = 1500000000000L
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.clonepedometer.services
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.Executor
+
+/**
+ * Local unit tests for [StepEventBus].
+ */
+class StepEventBusTest {
+
+    @Test
+    fun deliversInlineWithoutExecutor() {
+        val received = ArrayList<Pair<Int, Int>>()
+        val bus = StepEventBus.getInstance()
+        val subscription = bus.subscribe({ newSteps, totalSteps -> received.add(newSteps to totalSteps) }, null)
+        try {
+            bus.publish(10, 10)
+            bus.publish(1, 11)
+        } finally {
+            bus.unsubscribe(subscription)
+        }
+        assertEquals(listOf(10 to 10, 1 to 11), received)
+    }
+
+    @Test
+    fun coalescesPendingDeliveries() {
+        val queue = ArrayList<Runnable>()
+        val executor = Executor { queue.add(it) }
+        val received = ArrayList<Pair<Int, Int>>()
+        val bus = StepEventBus.getInstance()
+        val subscription = bus.subscribe({ newSteps, totalSteps -> received.add(newSteps to totalSteps) }, executor)
+        try {
+            bus.publish(1, 1)
+            bus.publish(1, 2)
+            bus.publish(3, 5)
+            // only one delivery is scheduled while it is pending
+            assertEquals(1, queue.size)
+            queue.removeAt(0).run()
+            assertEquals(listOf(5 to 5), received)
+
+            bus.publish(2, 7)
+            assertEquals(1, queue.size)
+            queue.removeAt(0).run()
+            assertEquals(listOf(5 to 5, 2 to 7), received)
+        } finally {
+            bus.unsubscribe(subscription)
+        }
+    }
+
+    @Test
+    fun dropsDeliveriesAfterUnsubscribe() {
+        val queue = ArrayList<Runnable>()
+        val received = ArrayList<Int>()
+        val bus = StepEventBus.getInstance()
+        val subscription = bus.subscribe({ newSteps, _ -> received.add(newSteps) }, Executor { queue.add(it) })
+        bus.publish(1, 1)
+        bus.unsubscribe(subscription)
+        bus.publish(1, 2)
+        queue.forEach { it.run() }
+        assertTrue(received.isEmpty())
+    }
+}
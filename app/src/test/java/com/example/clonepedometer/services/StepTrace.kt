@@ -0,0 +1,108 @@
+package com.example.clonepedometer.services
+
+import java.io.BufferedReader
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.InputStreamReader
+import java.io.OutputStream
+
+/**
+ * A recorded accelerometer trace with the number of steps actually walked.
+ *
+ * Two file formats are supported:
+ *  * CSV: one `timestampNanos,x,y,z` sample per line. Lines starting with `#` are comments,
+ *    `# steps=<n>` sets the ground truth.
+ *  * Binary: big endian, magic `PFST`, version (short), ground truth (int, -1 if unknown),
+ *    sample count (int) followed by `timestampNanos (long), x, y, z (float)` per sample.
+ *
+ * @param timestamps sample timestamps in nanoseconds
+ * @param values interleaved x, y, z values (3 * size entries)
+ * @param groundTruthSteps number of steps actually walked or -1 if unknown
+ */
+class StepTrace(val name: String, val timestamps: LongArray, val values: FloatArray, val groundTruthSteps: Int) {
+
+    val size: Int
+        get() = timestamps.size
+
+    fun writeBinary(out: OutputStream) {
+        val data = DataOutputStream(out)
+        data.writeInt(BINARY_MAGIC)
+        data.writeShort(BINARY_VERSION)
+        data.writeInt(groundTruthSteps)
+        data.writeInt(size)
+        for (i in 0 until size) {
+            data.writeLong(timestamps[i])
+            data.writeFloat(values[i * 3])
+            data.writeFloat(values[i * 3 + 1])
+            data.writeFloat(values[i * 3 + 2])
+        }
+        data.flush()
+    }
+
+    companion object {
+        const val BINARY_MAGIC = 0x50465354 // "PFST"
+        const val BINARY_VERSION = 1
+        private const val GROUND_TRUTH_PREFIX = "# steps="
+
+        /**
+         * Reads a trace from the given stream. The format is chosen by the file extension.
+         */
+        fun read(name: String, input: InputStream): StepTrace {
+            return if (name.endsWith(".csv")) readCsv(name, input) else readBinary(name, input)
+        }
+
+        fun readCsv(name: String, input: InputStream): StepTrace {
+            var groundTruth = -1
+            var timestamps = LongArray(1024)
+            var values = FloatArray(3 * 1024)
+            var count = 0
+            BufferedReader(InputStreamReader(input, Charsets.UTF_8)).useLines { lines ->
+                lines.forEach { raw ->
+                    val line = raw.trim()
+                    if (line.startsWith(GROUND_TRUTH_PREFIX)) {
+                        groundTruth = line.substring(GROUND_TRUTH_PREFIX.length).trim().toInt()
+                    } else if (line.isNotEmpty() && !line.startsWith("#")) {
+                        val columns = line.split(',')
+                        if (columns.size != 4) {
+                            throw IOException("$name: expected timestamp,x,y,z but got '$line'")
+                        }
+                        if (count == timestamps.size) {
+                            timestamps = timestamps.copyOf(count * 2)
+                            values = values.copyOf(count * 6)
+                        }
+                        timestamps[count] = columns[0].trim().toLong()
+                        values[count * 3] = columns[1].trim().toFloat()
+                        values[count * 3 + 1] = columns[2].trim().toFloat()
+                        values[count * 3 + 2] = columns[3].trim().toFloat()
+                        count++
+                    }
+                }
+            }
+            return StepTrace(name, timestamps.copyOf(count), values.copyOf(count * 3), groundTruth)
+        }
+
+        fun readBinary(name: String, input: InputStream): StepTrace {
+            val data = DataInputStream(input.buffered())
+            if (data.readInt() != BINARY_MAGIC) {
+                throw IOException("$name: not a binary step trace")
+            }
+            val version = data.readShort().toInt()
+            if (version != BINARY_VERSION) {
+                throw IOException("$name: unsupported trace version $version")
+            }
+            val groundTruth = data.readInt()
+            val count = data.readInt()
+            val timestamps = LongArray(count)
+            val values = FloatArray(count * 3)
+            for (i in 0 until count) {
+                timestamps[i] = data.readLong()
+                values[i * 3] = data.readFloat()
+                values[i * 3 + 1] = data.readFloat()
+                values[i * 3 + 2] = data.readFloat()
+            }
+            return StepTrace(name, timestamps, values, groundTruth)
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.clonepedometer.services
+
+import org.junit.Assert.*
+import org.junit.Assume.assumeFalse
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import kotlin.math.abs
+
+/**
+ * Replays the accelerometer traces in `src/test/resources/traces` through the step detection
+ * engine and prints accuracy and throughput for each of them. The detected steps of a trace have to
+ * be within [TOLERANCE] of its ground truth.
+ *
+ * Additional recorded traces (.csv or binary) can be replayed by passing a directory, e.g.
+ * `./gradlew :app:testDebugUnitTest -DstepTraces=/path/to/traces`.
+ */
+class StepTraceReplayTest {
+
+    @Test
+    fun replaysTraces() {
+        val replayer = StepTraceReplayer()
+        for (trace in loadTraces()) {
+            val result = replayer.replay(trace)
+            println(result)
+            if (trace.groundTruthSteps > 0) {
+                assertTrue(result.toString(), abs(result.error) <= TOLERANCE)
+            } else if (trace.groundTruthSteps == 0) {
+                assertEquals(result.toString(), 0, result.detectedSteps)
+            }
+        }
+    }
+
+    @Test
+    fun detectsWalking() {
+        val result = StepTraceReplayer().replay(loadTrace("synthetic_walking_2hz.csv"))
+        assertTrue(result.toString(), abs(result.error) <= TOLERANCE)
+    }
+
+    @Test
+    fun ignoresStandingStill() {
+        val result = StepTraceReplayer().replay(loadTrace("synthetic_standing.csv"))
+        assertEquals(result.toString(), 0, result.detectedSteps)
+    }
+
+    @Test
+    fun replayIsIndependentOfBatchSize() {
+        val trace = loadTrace("synthetic_walking_2hz.csv")
+        val expected = StepTraceReplayer(batchSize = 1).replay(trace).detectedSteps
+        assertEquals(expected, StepTraceReplayer(batchSize = 7).replay(trace).detectedSteps)
+        assertEquals(expected, StepTraceReplayer(batchSize = 256).replay(trace).detectedSteps)
+    }
+
+    @Test
+    fun detectionDoesNotAllocatePerSample() {
+        val replayer = StepTraceReplayer()
+        val trace = loadTrace("synthetic_walking_2hz.csv")
+        // warm up so that class loading and JIT compilation are not measured
+        repeat(20) { replayer.replay(trace) }
+        val result = replayer.replay(trace)
+        assumeFalse("Allocation measurement not supported", result.allocatedBytesPerSample.isNaN())
+        assertTrue(result.toString(), result.allocatedBytesPerSample < 1.0)
+    }
+
+    @Test
+    fun binaryAndCsvTracesAreEquivalent() {
+        val csv = loadTrace("synthetic_walking_2hz.csv")
+        val out = ByteArrayOutputStream()
+        csv.writeBinary(out)
+        val binary = StepTrace.readBinary("synthetic_walking_2hz.bin", ByteArrayInputStream(out.toByteArray()))
+        assertEquals(csv.groundTruthSteps, binary.groundTruthSteps)
+        assertArrayEquals(csv.timestamps, binary.timestamps)
+        assertArrayEquals(csv.values, binary.values, 0f)
+    }
+
+    companion object {
+        /**
+         * Maximum relative error of the detected steps. The engine misses the first steps of a walk
+         * until the steps are regular, so short traces need a larger tolerance.
+         */
+        private const val TOLERANCE = 0.15
+    }
+
+    private fun loadTrace(name: String): StepTrace {
+        val input = javaClass.classLoader!!.getResourceAsStream("traces/$name")
+            ?: throw IllegalStateException("Missing trace $name")
+        return input.use { StepTrace.read(name, it) }
+    }
+
+    private fun loadTraces(): List<StepTrace> {
+        val traces = ArrayList<StepTrace>()
+        traces.add(loadTrace("synthetic_walking_2hz.csv"))
+        traces.add(loadTrace("synthetic_standing.csv"))
+        val directory = System.getProperty("stepTraces") ?: return traces
+        File(directory).listFiles()?.sortedBy { it.name }?.forEach { file ->
+            if (file.isFile) {
+                traces.add(file.inputStream().use { StepTrace.read(file.name, it) })
+            }
+        }
+        return traces
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.clonepedometer.services
+
+import java.lang.management.ManagementFactory
+import java.util.Locale
+
+/**
+ * Feeds recorded accelerometer traces through the [StepDetectionEngine] the same way
+ * [AccelerometerStepDetectorService] does (in batches) and measures accuracy and throughput.
+ */
+class StepTraceReplayer(
+    private val accelerometerThreshold: Float = StepDetectionEngine.DEFAULT_ACCELEROMETER_THRESHOLD,
+    private val validStepsThreshold: Int = StepDetectionEngine.DEFAULT_VALID_STEPS_THRESHOLD,
+    private val batchSize: Int = 256
+) {
+
+    class Result(
+        val trace: StepTrace,
+        val detectedSteps: Int,
+        val elapsedNanos: Long,
+        /**
+         * Bytes allocated by the replaying thread or -1 if the JVM cannot measure it
+         */
+        val allocatedBytes: Long
+    ) {
+        val samplesPerSecond: Double
+            get() = if (elapsedNanos == 0L) Double.POSITIVE_INFINITY else trace.size * 1e9 / elapsedNanos
+
+        val allocatedBytesPerSample: Double
+            get() = if (allocatedBytes < 0 || trace.size == 0) Double.NaN else allocatedBytes.toDouble() / trace.size
+
+        /**
+         * Relative error against the ground truth, e.g. -0.1 if 10 percent of the steps were missed
+         */
+        val error: Double
+            get() = if (trace.groundTruthSteps <= 0) Double.NaN
+            else (detectedSteps - trace.groundTruthSteps).toDouble() / trace.groundTruthSteps
+
+        override fun toString(): String {
+            return String.format(
+                Locale.US, "%s: %d/%d steps (error %+.1f%%), %.0f samples/s, %.3f bytes/sample",
+                trace.name, detectedSteps, trace.groundTruthSteps, error * 100, samplesPerSecond, allocatedBytesPerSample
+            )
+        }
+    }
+
+    /**
+     * Replays the trace on a fresh engine.
+     */
+    fun replay(trace: StepTrace): Result {
+        val counter = StepCounter()
+        val engine = StepDetectionEngine(counter)
+        engine.accelerometerThreshold = accelerometerThreshold
+        engine.validStepsThreshold = validStepsThreshold
+        val batchTimestamps = LongArray(batchSize)
+        val batchValues = FloatArray(batchSize * 3)
+
+        val allocatedBefore = allocatedBytes()
+        val start = System.nanoTime()
+        var offset = 0
+        while (offset < trace.size) {
+            val count = minOf(batchSize, trace.size - offset)
+            System.arraycopy(trace.timestamps, offset, batchTimestamps, 0, count)
+            System.arraycopy(trace.values, offset * 3, batchValues, 0, count * 3)
+            engine.onSamples(batchTimestamps, batchValues, count)
+            offset += count
+        }
+        val elapsed = System.nanoTime() - start
+        val allocatedAfter = allocatedBytes()
+        val allocated = if (allocatedBefore < 0 || allocatedAfter < 0) -1 else allocatedAfter - allocatedBefore
+        return Result(trace, counter.steps, elapsed, allocated)
+    }
+
+    private class StepCounter : StepDetectionEngine.StepListener {
+        var steps = 0
+
+        override fun onStepsDetected(count: Int, timestampNanos: Long) {
+            steps += count
+        }
+    }
+
+    companion object {
+        private fun allocatedBytes(): Long {
+            val bean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+            if (bean == null || !bean.isThreadAllocatedMemorySupported || !bean.isThreadAllocatedMemoryEnabled) {
+                return -1
+            }
+            return bean.getThreadAllocatedBytes(Thread.currentThread().id)
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.clonepedometer.services
+
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Local unit tests for [TrainingSessionAccumulator].
+ */
+class TrainingSessionAccumulatorTest {
+
+    private val checkpoints = ArrayList<Pair<Int, Double>>()
+    private val listener = TrainingSessionAccumulator.CheckpointListener { trainingId, steps, distance, _ ->
+        assertEquals(7L, trainingId)
+        checkpoints.add(steps to distance)
+    }
+
+    @Test
+    fun keepsRunningTotals() {
+        val session = TrainingSessionAccumulator(7, START, 0.5, 80.0, null)
+        session.resume(100, 50.0)
+        session.addSteps(10, START + 1000)
+        session.addSteps(0, START + 2000)
+
+        assertEquals(110, session.steps)
+        assertEquals(55.0, session.distance, DELTA)
+        assertEquals(55.0 / 100, session.getAverageVelocity(START + 100 * SECOND), DELTA)
+        assertTrue(session.calories > 0)
+    }
+
+    @Test
+    fun keepsPerMinuteSplits() {
+        val session = TrainingSessionAccumulator(7, START, 1.0, 80.0, null)
+        session.addSteps(10, START + 1000)
+        session.addSteps(20, START + 59 * SECOND)
+        session.addSteps(30, START + MINUTE)
+        // a minute without steps has no split
+        session.addSteps(5, START + 3 * MINUTE)
+
+        assertEquals(3, session.splitCount)
+        assertEquals(START, session.getSplitStart(0))
+        assertEquals(30, session.getSplitSteps(0))
+        assertEquals(START + MINUTE, session.getSplitStart(1))
+        assertEquals(5, session.getSplitSteps(2))
+        assertEquals(5.0 / 60, session.getCurrentVelocity(START + 4 * MINUTE + SECOND), DELTA)
+        assertEquals(0.0, session.getCurrentVelocity(START + 3 * MINUTE), DELTA)
+    }
+
+    @Test
+    fun dropsOldestSplitsWhenFull() {
+        val session = TrainingSessionAccumulator(7, START, 1.0, 80.0, null)
+        for (minute in 0 until TrainingSessionAccumulator.SPLIT_CAPACITY + 5) {
+            session.addSteps(minute + 1, START + minute * MINUTE)
+        }
+
+        assertEquals(TrainingSessionAccumulator.SPLIT_CAPACITY, session.splitCount)
+        assertEquals(START + 5 * MINUTE, session.getSplitStart(0))
+        assertEquals(6, session.getSplitSteps(0))
+        assertEquals(TrainingSessionAccumulator.SPLIT_CAPACITY + 5, session.getSplitSteps(session.splitCount - 1))
+    }
+
+    @Test
+    fun checkpointsAtBoundedRate() {
+        val session = TrainingSessionAccumulator(7, START, 1.0, 80.0, listener)
+        session.addSteps(1, START + 1000)
+        session.addSteps(1, START + TrainingSessionAccumulator.CHECKPOINT_INTERVAL)
+        session.addSteps(1, START + TrainingSessionAccumulator.CHECKPOINT_INTERVAL + 1000)
+        assertEquals(listOf(2 to 2.0), checkpoints)
+
+        // forced checkpoint only if something changed
+        session.checkpoint()
+        session.checkpoint()
+        assertEquals(listOf(2 to 2.0, 3 to 3.0), checkpoints)
+    }
+
+    @Test(expected = IndexOutOfBoundsException::class)
+    fun rejectsSplitIndexOutOfRange() {
+        TrainingSessionAccumulator(7, START, 1.0, 80.0, null).getSplitSteps(0)
+    }
+
+    companion object {
+        private const val SECOND = 1000L
+        private const val MINUTE = 60 * SECOND
+        private const val START = 1_500_000_000_000L - 1_500_000_000_000L % MINUTE
+        private const val DELTA = 1e-9
+    }
+}
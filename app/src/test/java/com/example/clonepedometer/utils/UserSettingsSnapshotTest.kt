@@ -0,0 +1,27 @@
+package com.example.clonepedometer.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * Unit tests for [UserSettingsSnapshot]
+ */
+class UserSettingsSnapshotTest {
+
+    @Test
+    fun parsesWeight() {
+        assertEquals(72.5f, UserSettingsSnapshot.parseWeight("72.5", DEFAULT))
+        assertEquals(80f, UserSettingsSnapshot.parseWeight(" 80 ", DEFAULT))
+    }
+
+    @Test
+    fun fallsBackToDefaultForInvalidWeight() {
+        for (value in listOf(null, "", "abc", "72,5", "-3", "0", "NaN", "Infinity")) {
+            assertEquals(value, DEFAULT, UserSettingsSnapshot.parseWeight(value, DEFAULT))
+        }
+    }
+
+    companion object {
+        private const val DEFAULT = 65f
+    }
+}
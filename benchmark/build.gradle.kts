@@ -0,0 +1,44 @@
+// JMH microbenchmarks for the pure Java hot paths of the app.
+//
+// Run with `./gradlew :benchmark:jmh`. The results are written as JSON to
+// build/results/jmh/results-<commit>.json, so runs of different commits can be compared
+// (e.g. with https://jmh.morethan.io).
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+sourceSets {
+    main {
+        java {
+            // Compile the Android independent classes of the app directly from its sources
+            srcDir("../app/src/main/java")
+            include(
+                "com/example/clonepedometer/models/StepSeries.java",
+                "com/example/clonepedometer/models/StepTotals.java",
+                "com/example/clonepedometer/services/StepDetectionEngine.java",
+                "com/example/clonepedometer/utils/DistanceHelper.java"
+            )
+        }
+    }
+}
+
+// Resolved only when the jmh task runs, so other builds do not spawn git
+val commit: Provider<String> = providers.exec {
+    commandLine("git", "rev-parse", "--short", "HEAD")
+    isIgnoreExitValue = true
+}.standardOutput.asText.map { it.trim().ifEmpty { "unknown" } }
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file(commit.map { "results/jmh/results-$it.json" }))
+}
@@ -0,0 +1,69 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.benchmark;
+
+import com.example.clonepedometer.utils.DistanceHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the haversine distance calculation used by the movement speed service.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DistanceHelperBenchmark {
+    private static final int POINTS = 1024;
+
+    private final double[] latitudes = new double[POINTS];
+    private final double[] longitudes = new double[POINTS];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        double lat = 49.87;
+        double lon = 8.65;
+        for (int i = 0; i < POINTS; i++) {
+            // a walk with some meters between two location updates
+            lat += (random.nextDouble() - 0.5) * 0.0001;
+            lon += (random.nextDouble() - 0.5) * 0.0001;
+            latitudes[i] = lat;
+            longitudes[i] = lon;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS - 1)
+    public double haversine() {
+        double distance = 0;
+        for (int i = 1; i < POINTS; i++) {
+            distance += DistanceHelper.haversine(latitudes[i], longitudes[i], latitudes[i - 1], longitudes[i - 1]);
+        }
+        return distance;
+    }
+}
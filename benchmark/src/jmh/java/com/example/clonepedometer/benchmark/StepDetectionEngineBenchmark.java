@@ -0,0 +1,96 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.benchmark;
+
+import com.example.clonepedometer.services.StepDetectionEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-sample cost of the accelerometer step detection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StepDetectionEngineBenchmark {
+    /**
+     * One minute of walking at 2 steps/s sampled with 50 Hz
+     */
+    private static final int SAMPLES = 60 * 50;
+    private static final int BATCH_SIZE = 256;
+
+    private final long[] timestamps = new long[SAMPLES];
+    private final float[] values = new float[SAMPLES * 3];
+    private final long[] batchTimestamps = new long[BATCH_SIZE];
+    private final float[] batchValues = new float[BATCH_SIZE * 3];
+    private int steps;
+    private StepDetectionEngine engine;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            double wave = Math.sin(2 * Math.PI * 2.0 * i / 50.0);
+            timestamps[i] = 1000000000000L + i * 20000000L;
+            values[i * 3] = (float) (0.2 * wave + random.nextGaussian() * 0.05);
+            values[i * 3 + 1] = (float) (2.5 * wave + random.nextGaussian() * 0.05);
+            values[i * 3 + 2] = (float) (9.81 + 1.25 * wave + random.nextGaussian() * 0.05);
+        }
+        engine = new StepDetectionEngine(new StepDetectionEngine.StepListener() {
+            @Override
+            public void onStepsDetected(int count, long timestampNanos) {
+                steps += count;
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int perSample() {
+        engine.reset();
+        steps = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            engine.onSample(timestamps[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2]);
+        }
+        return steps;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int perSampleBatched() {
+        engine.reset();
+        steps = 0;
+        for (int offset = 0; offset < SAMPLES; offset += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, SAMPLES - offset);
+            System.arraycopy(timestamps, offset, batchTimestamps, 0, count);
+            System.arraycopy(values, offset * 3, batchValues, 0, count * 3);
+            engine.onSamples(batchTimestamps, batchValues, count);
+        }
+        return steps;
+    }
+}
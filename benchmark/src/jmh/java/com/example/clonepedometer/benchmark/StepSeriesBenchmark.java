@@ -0,0 +1,105 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.benchmark;
+
+import com.example.clonepedometer.models.StepSeries;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures summing up hourly step counts per day, as a chart over a long history does, with the
+ * columnar step series and with one object per interval.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StepSeriesBenchmark {
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+
+    /**
+     * Number of days with one interval per hour
+     */
+    @Param({"30", "730"})
+    public int days;
+
+    private StepSeries series;
+    private List<Interval> intervals;
+    private long[] boundaries;
+
+    /**
+     * Stands in for a StepCount model with its boxed walking mode
+     */
+    private static class Interval {
+        final long startTime;
+        final long endTime;
+        final int stepCount;
+        final Long walkingModeId;
+
+        Interval(long startTime, long endTime, int stepCount, Long walkingModeId) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.stepCount = stepCount;
+            this.walkingModeId = walkingModeId;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        series = new StepSeries(days * 24);
+        intervals = new ArrayList<>(days * 24);
+        for (int i = 0; i < days * 24; i++) {
+            int steps = random.nextInt(1000);
+            long walkingMode = 1 + random.nextInt(3);
+            series.add(i * HOUR, (i + 1) * HOUR, steps, walkingMode);
+            intervals.add(new Interval(i * HOUR, (i + 1) * HOUR, steps, walkingMode));
+        }
+        boundaries = new long[days + 1];
+        for (int i = 0; i <= days; i++) {
+            boundaries[i] = i * DAY;
+        }
+    }
+
+    @Benchmark
+    public long[] sumPerDayWithSeries() {
+        return series.sumPerBucket(boundaries);
+    }
+
+    @Benchmark
+    public long[] sumPerDayWithObjects() {
+        long[] sums = new long[days];
+        for (Interval interval : intervals) {
+            int day = (int) ((interval.endTime - 1) / DAY);
+            sums[day] += interval.stepCount;
+        }
+        return sums;
+    }
+}
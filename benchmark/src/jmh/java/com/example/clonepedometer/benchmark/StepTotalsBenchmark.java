@@ -0,0 +1,94 @@
+/*
+    Privacy Friendly Pedometer is licensed under the GPLv3.
+    Copyright (C) 2017  Tobias Neidig
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.example.clonepedometer.benchmark;
+
+import com.example.clonepedometer.models.StepTotals;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures summing up the step count intervals of a day as done by the widget and the step
+ * detector service.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StepTotalsBenchmark {
+    private static final String BODY_WEIGHT = "65.0";
+    private static final double[] STEP_LENGTHS = {0.75, 1.1, 0.6};
+
+    /**
+     * Number of intervals; one day holds up to 48 intervals of 30 minutes
+     */
+    @Param({"48", "1440"})
+    public int intervals;
+
+    private int[] steps;
+    private double[] stepLengths;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        steps = new int[intervals];
+        stepLengths = new double[intervals];
+        for (int i = 0; i < intervals; i++) {
+            steps[i] = random.nextInt(2000);
+            stepLengths[i] = STEP_LENGTHS[random.nextInt(STEP_LENGTHS.length)];
+        }
+    }
+
+    /**
+     * One pass with the body weight read once
+     */
+    @Benchmark
+    public double sumWithTotals() {
+        StepTotals totals = new StepTotals(Float.parseFloat(BODY_WEIGHT));
+        for (int i = 0; i < intervals; i++) {
+            totals.add(steps[i], stepLengths[i]);
+        }
+        return totals.getSteps() + totals.getDistance() + totals.getCalories();
+    }
+
+    /**
+     * Calories calculated per interval with the body weight parsed per interval, as
+     * StepCount#getCalories does
+     */
+    @Benchmark
+    public double sumPerInterval() {
+        int stepCount = 0;
+        double distance = 0;
+        double calories = 0;
+        for (int i = 0; i < intervals; i++) {
+            double intervalDistance = steps[i] * stepLengths[i];
+            stepCount += steps[i];
+            distance += intervalDistance;
+            calories += StepTotals.calories(intervalDistance, Float.parseFloat(BODY_WEIGHT));
+        }
+        return stepCount + distance + calories;
+    }
+}
@@ -22,6 +22,7 @@ dependencyResolutionManagement {
 rootProject.name = "Clone Pedometer"
 include(":app")
 include(":BackupAPI")
+include(":benchmark")
 
 
  
\ No newline at end of file